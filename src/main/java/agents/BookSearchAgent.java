@@ -4,23 +4,28 @@ import jade.core.Agent;
 import jade.core.behaviours.CyclicBehaviour;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
+import agents.ontology.SearchOntology;
 import utils.HttpHelper;
 
 public class BookSearchAgent extends Agent {
     protected void setup() {
         System.out.println(getAID().getName() + " is ready for book searches.");
+        ServiceRegistry.register(this, "BookSearchAgent", ServiceDirectory.describe(
+                "googlebooks", ServiceDirectory.CostClass.LOW, ServiceDirectory.BOOKS));
 
         addBehaviour(new CyclicBehaviour(this) {
+            private final PriorityInbox inbox = new PriorityInbox(myAgent, MessageTemplate.MatchPerformative(ACLMessage.REQUEST));
+
             public void action() {
-                ACLMessage msg = receive(MessageTemplate.MatchPerformative(ACLMessage.REQUEST));
+                ACLMessage msg = inbox.next();
                 if (msg != null) {
-                    String query = msg.getContent();
+                    String query = SearchOntology.queryText(msg);
                     System.out.println("Searching Google Books for: " + query);
                     String response = HttpHelper.searchExternalSource("googlebooks", query);
 
                     ACLMessage reply = msg.createReply();
                     reply.setPerformative(ACLMessage.INFORM);
-                    reply.setContent("\n" + response);
+                    SearchOntology.setResult(myAgent, reply, msg, "BookSearchAgent", "\n" + response);
                     send(reply);
                 } else {
                     block();
@@ -28,4 +33,8 @@ public class BookSearchAgent extends Agent {
             }
         });
     }
-}
\ No newline at end of file
+
+    protected void takeDown() {
+        ServiceRegistry.deregister(this);
+    }
+}
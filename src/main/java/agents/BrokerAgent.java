@@ -5,83 +5,171 @@ import jade.core.Agent;
 import jade.core.behaviours.CyclicBehaviour;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
+import agents.ontology.ExecutionSummary;
+import agents.ontology.PayloadCompression;
+import agents.ontology.SearchOntology;
+import agents.ontology.SourceResult;
+import agents.ontology.SubQuery;
+import utils.BatchPrompt;
+import utils.ExpressionEvaluator;
+
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class BrokerAgent extends Agent {
-    // List of all available resource agents
-    private static final String[] ALL_AGENTS = {
-            "WikipediaAgent",
-            "DuckDuckGoAgent",
-            "WikidataAgent",
-            "OpenRouterAgent",
-            "LangsearchAgent",
-            "TogetherAgent",
-            "DeepInfraAgent",
-    };
-
-    private static final String[] BOOK_AGENTS = {
-            "BookSearchAgent"
-    };
-
-    private static final String[] MATH_AGENTS = {
-            "WolframAlphaAgent"
-    };
-
-    // Agents that should be excluded when adding specialty agents
-    private static final String[] EXCLUDED_AGENTS = {
-            "WikipediaAgent",
-            "DuckDuckGoAgent",
-            "WikidataAgent"
-    };
+    // -Dbroker.packSubQueries=false sends every sub-query to the LLMs separately
+    private static final boolean PACK_SUBQUERIES =
+            Boolean.parseBoolean(System.getProperty("broker.packSubQueries", "true"));
+
+    // Admission control: a few queries run at once, a bounded number wait, the rest are refused
+    private static final int QUERY_WORKERS = Integer.getInteger("broker.queryWorkers", 4);
+    private static final int MAX_PENDING_QUERIES = Integer.getInteger("broker.maxPendingQueries", 32);
+    // Global cap on concurrent (sub-query x agent) requests across all queries
+    private static final int MAX_FAN_OUT_TASKS = Integer.getInteger("broker.maxFanOutTasks", 16);
+    // One client may not hold more than this many waiting or running queries
+    private static final int MAX_PENDING_PER_SESSION = Integer.getInteger("broker.maxPendingPerSession", 8);
+    private static final long SESSION_IDLE_TIMEOUT_MS = 30 * 60 * 1000;
+
+    // Average query latency above which the brownout controller starts shedding fan-out
+    private static final long BROWNOUT_TARGET_LATENCY_MS = Long.getLong("broker.brownoutTargetLatencyMs", 20000);
+
+    // Local full-text search answers alone from this confidence on, and stands in for the LLMs from the lower one
+    private static final double LOCAL_ANSWER_CONFIDENCE = Double.parseDouble(System.getProperty("broker.localAnswerConfidence", "0.9"));
+    private static final double LOCAL_DEMOTE_CONFIDENCE = Double.parseDouble(System.getProperty("broker.localDemoteConfidence", "0.6"));
+    private static final long LOCAL_SEARCH_TIMEOUT_MS = Long.getLong("broker.localSearchTimeoutMs", 1000);
+
+    // Both pools run interactive work before history replays and background refreshes;
+    // fan-out slots are additionally shared fairly between sessions
+    private PriorityExecutor queryWorkers;
+    private FairScheduler fanOutPool;
+    private BrownoutController brownout;
+    // Resource agents currently registered with the DF, and their capabilities
+    private ServiceDirectory directory;
+    // Cached answers, spread over the InternalAgent shards
+    private KnowledgeClient knowledge;
+    // Spreads requests for a resource agent over its registered replicas
+    private ReplicaBalancer replicas;
+    // Parsed Wikidata claims about people and things asked about before
+    private EntityFactStore facts;
 
     protected void setup() {
         System.out.println("BrokerAgent " + getAID().getName() + " is ready.");
 
+        queryWorkers = new PriorityExecutor("broker-query", QUERY_WORKERS);
+        fanOutPool = new FairScheduler("broker-fanout", MAX_FAN_OUT_TASKS);
+        directory = new ServiceDirectory(this);
+        directory.start();
+        replicas = new ReplicaBalancer(directory);
+        knowledge = new KnowledgeClient(this);
+        knowledge.start();
+        facts = EntityFactStore.shared();
+
+        // Clients find brokers through the DF and spread queries over them
+        ServiceRegistry.register(this, "broker", null);
+
+        brownout = new BrownoutController(() -> queryWorkers.getQueue().size(), MAX_PENDING_QUERIES,
+                BROWNOUT_TARGET_LATENCY_MS, agentName -> directory.hasCapability(agentName, ServiceDirectory.LLM));
+
         addBehaviour(new CyclicBehaviour(this) {
-            private final Map<String, String> contextMap = new ConcurrentHashMap<>();
-            private final Set<String> activeAgents = new HashSet<>();
+            // Context and pending-query counts per client, keyed by sender AID (and optional session id)
+            private final Map<String, SessionState> sessions = new ConcurrentHashMap<>();
+            private long lastSessionSweep = System.currentTimeMillis();
 
             public void action() {
                 ACLMessage msg = receive(MessageTemplate.MatchPerformative(ACLMessage.REQUEST));
                 if (msg != null) {
-                    String query = msg.getContent();
-                    System.out.println("Broker received query: " + query);
-
-                    // Update context with previous interactions
-                    updateContextFromQuery(query);
-
-                    if (isComplexQuery(query)) {
-                        System.out.println("Detected COMPLEX query");
-                        handleComplexQuery(msg);
+                    QueryPriority priority = QueryPriority.of(msg);
+                    SessionState session = sessionFor(msg);
+                    if (session.getPendingQueries().get() >= MAX_PENDING_PER_SESSION) {
+                        System.out.println("Session " + session.getId() + " has too many pending queries");
+                        refuseOverloaded(msg);
+                    // A full queue only turns away work if nothing less urgent can be pushed out
+                    } else if (queryWorkers.getQueue().size() >= MAX_PENDING_QUERIES
+                            && !queryWorkers.evictLowerThan(priority)) {
+                        refuseOverloaded(msg);
                     } else {
-                        System.out.println("Detected SIMPLE query");
-                        handleSimpleQuery(msg);
+                        session.getPendingQueries().incrementAndGet();
+                        queryWorkers.submit(priority, () -> {
+                            try {
+                                processQuery(msg, session);
+                            } finally {
+                                session.getPendingQueries().decrementAndGet();
+                            }
+                        }, () -> {
+                            session.getPendingQueries().decrementAndGet();
+                            refuseOverloaded(msg);
+                        });
                     }
                 } else {
                     block();
                 }
             }
 
-            private void updateContextFromQuery(String query) {
+            private SessionState sessionFor(ACLMessage msg) {
+                long now = System.currentTimeMillis();
+                if (now - lastSessionSweep > 60000) {
+                    lastSessionSweep = now;
+                    sessions.values().removeIf(session -> session.getPendingQueries().get() == 0
+                            && now - session.getLastSeen() > SESSION_IDLE_TIMEOUT_MS);
+                }
+
+                SessionState session = sessions.computeIfAbsent(SessionState.sessionIdOf(msg), SessionState::new);
+                session.touch();
+                return session;
+            }
+
+            private void processQuery(ACLMessage msg, SessionState session) {
+                String query = SearchOntology.queryText(msg);
+                System.out.println("Broker received query: " + query);
+
+                // Update context with previous interactions
+                updateContextFromQuery(query, session);
+
+                int brownoutLevel = brownout.evaluate();
+                long start = System.currentTimeMillis();
+                if (isComplexQuery(query, session)) {
+                    System.out.println("Detected COMPLEX query");
+                    handleComplexQuery(msg, brownoutLevel, session);
+                } else {
+                    System.out.println("Detected SIMPLE query");
+                    handleSimpleQuery(msg, brownoutLevel, session);
+                }
+                brownout.recordLatency(System.currentTimeMillis() - start);
+            }
+
+            private void refuseOverloaded(ACLMessage msg) {
+                int pending = queryWorkers.getQueue().size();
+                // Rough estimate: each worker drains its share of the queue in a few seconds
+                int retryAfterSeconds = 2 + (pending / QUERY_WORKERS) * 5;
+                System.out.println("Broker overloaded, refusing query: " + SearchOntology.queryText(msg));
+
+                ACLMessage reply = msg.createReply();
+                reply.setPerformative(ACLMessage.REFUSE);
+                reply.addUserDefinedParameter("retry-after", String.valueOf(retryAfterSeconds));
+                reply.setContent("The broker is busy (" + pending + " queries waiting). " +
+                        "Please retry in " + retryAfterSeconds + " seconds.");
+                send(reply);
+            }
+
+            private void updateContextFromQuery(String query, SessionState session) {
                 // Extract named entities and store in context
                 if (query.matches(".*\\b(Steven Spielberg|Albert Einstein|Elon Musk)\\b.*")) {
                     String subject = query.replaceAll(".*\\b(Steven Spielberg|Albert Einstein|Elon Musk)\\b.*", "$1");
-                    contextMap.put("current_subject", subject);
+                    session.getContextMap().put("current_subject", subject);
                     System.out.println("Updated context with subject: " + subject);
                 }
             }
 
-            private boolean isComplexQuery(String query) {
+            private boolean isComplexQuery(String query, SessionState session) {
                 String lowerQuery = query.toLowerCase();
                 return lowerQuery.matches(".*\\b(and|or|but|then|also|as well as|before|after|while|meanwhile)\\b.*") ||
                         lowerQuery.contains(",") ||
                         lowerQuery.contains(";") ||
                         lowerQuery.split("\\?").length > 1 ||
                         lowerQuery.matches(".*\\b(list|compare|difference|between|advantages|disadvantages|pros|cons)\\b.*") ||
-                        (lowerQuery.matches(".*\\b(he|she|they|it)\\b.*") && contextMap.containsKey("current_subject"));
+                        (lowerQuery.matches(".*\\b(he|she|they|it)\\b.*") && session.getContextMap().containsKey("current_subject"));
             }
 
             private List<String> decomposeQuery(String query) {
@@ -254,138 +342,156 @@ public class BrokerAgent extends Agent {
 //
 //                send(reply);
 //            }
-private void handleComplexQuery(ACLMessage originalMsg) {
-    String query = originalMsg.getContent();
-    String resolvedQuery = resolvePronouns(query);
+private void handleComplexQuery(ACLMessage originalMsg, int brownoutLevel, SessionState session) {
+    String query = SearchOntology.queryText(originalMsg);
+    QueryPriority priority = QueryPriority.of(originalMsg);
+    String resolvedQuery = resolvePronouns(query, session);
     System.out.println("Processing complex query: " + resolvedQuery);
 
+    // Under load a cached answer beats a slow fresh one
+    if (brownoutLevel > 0) {
+        String cachedResponse = knowledge.retrieve(resolvedQuery);
+        if (cachedResponse != null) {
+            replyWithSummary(originalMsg, cachedSummary(resolvedQuery, true, cachedResponse), 0);
+            return;
+        }
+    }
+
     // 1. First decompose the query
-    List<String> subQueries = decomposeQuery(resolvedQuery);
+    List<String> subQueries = brownout.capSubQueries(decomposeQuery(resolvedQuery), resolvedQuery, brownoutLevel);
     System.out.println("Divided into subqueries:");
     for (int i = 0; i < subQueries.size(); i++) {
         System.out.println("Subquery " + (i+1) + ": " + subQueries.get(i));
     }
 
     // 2. Agents to use for each subquery
-    String[] agentsToQuery = {"OpenRouterAgent", "TogetherAgent", "DeepInfraAgent", "LangsearchAgent"};
+    Set<String> narrowedAgents = brownout.narrowAgents(
+            new LinkedHashSet<>(directory.servicesWith(ServiceDirectory.SUB_QUERY)), brownoutLevel);
+    narrowedAgents.removeIf(agentName -> !directory.isAvailable(agentName));
+    String[] agentsToQuery = narrowedAgents.toArray(new String[0]);
 
     // 3. Structure to store all results
     Map<String, Map<String, String>> allResults = new LinkedHashMap<>(); // Preserves order
-    List<String> globalTimeouts = new ArrayList<>();
-    List<String> globalErrors = new ArrayList<>();
+    List<String> globalTimeouts = Collections.synchronizedList(new ArrayList<>());
+    List<String> globalErrors = Collections.synchronizedList(new ArrayList<>());
 
-    // 4. Process each subquery through all agents
-    ExecutorService executor = Executors.newFixedThreadPool(subQueries.size());
-    CountDownLatch subqueryLatch = new CountDownLatch(subQueries.size());
+    // 4. Pack all subqueries into one prompt per LLM agent when there is more than one
+    Set<String> packedAgents = new LinkedHashSet<>();
+    if (PACK_SUBQUERIES && subQueries.size() > 1) {
+        for (String agentName : agentsToQuery) {
+            if (directory.hasCapability(agentName, ServiceDirectory.LLM)) {
+                packedAgents.add(agentName);
+            }
+        }
+    }
 
+    // Pre-fill in subquery order; worker threads only touch the inner concurrent maps
     for (String subQuery : subQueries) {
-        executor.execute(() -> {
-            Map<String, String> subQueryResults = new ConcurrentHashMap<>();
-            CountDownLatch agentLatch = new CountDownLatch(agentsToQuery.length);
-
-            for (String agentName : agentsToQuery) {
-                new Thread(() -> {
-                    try {
-                        String processedQuery = agentSpecificPreprocessing(subQuery, agentName);
-                        System.out.println("Processing '"+subQuery+"' with "+agentName);
-
-                        ACLMessage request = new ACLMessage(ACLMessage.REQUEST);
-                        request.addReceiver(new AID(agentName, AID.ISLOCALNAME));
-                        request.setContent(processedQuery);
-                        send(request);
-
-                        ACLMessage reply = blockingReceive(
-                                MessageTemplate.and(
-                                        MessageTemplate.MatchPerformative(ACLMessage.INFORM),
-                                        MessageTemplate.MatchSender(new AID(agentName, AID.ISLOCALNAME))
-                                ),
-                                20000 // 20 seconds per agent
-                        );
-
-                        if (reply != null) {
-                            subQueryResults.put(agentName, reply.getContent());
-                        } else {
-                            globalTimeouts.add(agentName+" (subquery: '"+subQuery+"')");
-                        }
-                    } catch (Exception e) {
-                        globalErrors.add(agentName+" (subquery: '"+subQuery+"'): "+e.getMessage());
-                    } finally {
-                        agentLatch.countDown();
-                    }
-                }).start();
-            }
+        allResults.put(subQuery, new ConcurrentHashMap<>());
+    }
 
-            try {
-                agentLatch.await(25, TimeUnit.SECONDS); // Slightly longer than individual timeout
-                allResults.put(subQuery, subQueryResults);
-            } catch (InterruptedException e) {
-                System.out.println("Interrupted while processing subquery: " + subQuery);
+    long deadline = System.currentTimeMillis() + 60000;
+    Map<String, Future<Boolean>> packedFutures = new LinkedHashMap<>();
+    // Each task with the name it is reported under if it misses the deadline
+    Map<Future<?>, String> tasks = new LinkedHashMap<>();
+    for (String agentName : agentsToQuery) {
+        if (packedAgents.contains(agentName)) {
+            // A packed prompt costs as much fan-out budget as the subqueries it replaces
+            packedFutures.put(agentName, fanOutPool.submit(session.getId(), priority, subQueries.size(),
+                    () -> queryPacked(agentName, subQueries, allResults, priority)));
+        } else {
+            for (String subQuery : subQueries) {
+                tasks.put(fanOutPool.submit(session.getId(), priority, () -> querySubQuery(agentName, subQueries.indexOf(subQuery), subQuery, allResults.get(subQuery), globalTimeouts, globalErrors, priority)),
+                        agentName+" (subquery: '"+subQuery+"')");
             }
-            subqueryLatch.countDown();
-        });
+        }
     }
 
-    // 5. Wait for all subqueries to complete
-    try {
-        if (!subqueryLatch.await(60, TimeUnit.SECONDS)) {
-            System.out.println("Overall complex query timeout");
+    // 5. Wait for all subqueries to complete, falling back to individual calls where packing failed
+    for (Map.Entry<String, Future<Boolean>> packed : packedFutures.entrySet()) {
+        String agentName = packed.getKey();
+        boolean parsed = false;
+        try {
+            parsed = packed.getValue().get(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            System.out.println("Packed query failed for " + agentName + ": " + e.getMessage());
+        }
+        if (!parsed) {
+            System.out.println("Could not parse packed answer from " + agentName + ", falling back to individual calls");
+            for (String subQuery : subQueries) {
+                tasks.put(fanOutPool.submit(session.getId(), priority, () -> querySubQuery(agentName, subQueries.indexOf(subQuery), subQuery, allResults.get(subQuery), globalTimeouts, globalErrors, priority)),
+                        agentName+" (subquery: '"+subQuery+"')");
+            }
         }
-    } catch (InterruptedException e) {
-        System.out.println("Complex query processing interrupted");
-    } finally {
-        executor.shutdown();
+    }
+    if (!awaitAll(tasks, deadline, globalTimeouts)) {
+        System.out.println("Overall complex query timeout");
     }
 
-    // 6. Build comprehensive output
-    StringBuilder finalOutput = new StringBuilder();
-    finalOutput.append("=== Decomposed Query Results ===\n\n");
-
-    // 6a. Add results per subquery
+    // 6. Collect the valid results per subquery
+    ExecutionSummary summary = new ExecutionSummary(resolvedQuery, true);
     for (Map.Entry<String, Map<String, String>> entry : allResults.entrySet()) {
-        finalOutput.append("\n──── Subquery: \"").append(entry.getKey()).append("\" ────\n");
-
-        boolean hasValidResults = false;
+        summary.getSubQueries().add(new SubQuery(summary.getSubQueries().size(), entry.getKey()));
+        List<SourceResult> subQueryResults = new ArrayList<>();
         for (String agentName : agentsToQuery) {
             String result = entry.getValue().get(agentName);
             if (result != null && isValidResponse(result, agentName)) {
-                finalOutput.append(formatResponse(agentName, result)).append("\n\n");
-                hasValidResults = true;
+                subQueryResults.add(new SourceResult(entry.getKey(), agentName, result));
             }
         }
-
-        if (!hasValidResults) {
-            finalOutput.append("No valid results for this subquery\n");
-        }
+        summary.getResults().addAll(ResultFusion.fuse(subQueryResults));
     }
-
-    // 6b. Add summary
-    finalOutput.append("\n=== Execution Summary ===\n");
-    finalOutput.append("Processed ").append(subQueries.size()).append(" subqueries\n");
-    finalOutput.append("Successful responses: ").append(allResults.values().stream()
+    summary.setResponseCount(allResults.values().stream()
             .mapToInt(Map::size)
-            .sum()).append("\n");
+            .sum());
+    summary.getTimeouts().addAll(globalTimeouts);
+    summary.getErrors().addAll(globalErrors);
+
+    // 7. Send response
+    replyWithSummary(originalMsg, summary, brownoutLevel);
 
-    if (!globalTimeouts.isEmpty()) {
-        finalOutput.append("Timeouts:\n");
-        globalTimeouts.forEach(timeout -> finalOutput.append("- ").append(timeout).append("\n"));
+    // 8. Cache results (degraded answers are not worth keeping)
+    if (brownoutLevel == 0) {
+        knowledge.store(resolvedQuery, SummaryFormatter.format(summary));
     }
+}
+
+    private void querySubQuery(String agentName, int index, String subQuery, Map<String, String> subQueryResults,
+                               List<String> globalTimeouts, List<String> globalErrors, QueryPriority priority) {
+        try {
+            String processedQuery = agentSpecificPreprocessing(subQuery, agentName);
+            System.out.println("Processing '"+subQuery+"' with "+agentName);
+
+            ACLMessage reply = queryAgent(agentName, index, processedQuery, 20000, priority); // 20 seconds per agent
 
-    if (!globalErrors.isEmpty()) {
-        finalOutput.append("Errors:\n");
-        globalErrors.forEach(error -> finalOutput.append("- ").append(error).append("\n"));
+            if (reply != null) {
+                subQueryResults.put(agentName, SearchOntology.resultText(reply));
+            } else {
+                globalTimeouts.add(agentName+" (subquery: '"+subQuery+"')");
+            }
+        } catch (Exception e) {
+            globalErrors.add(agentName+" (subquery: '"+subQuery+"'): "+e.getMessage());
+        }
     }
 
-    // 7. Send response
-    ACLMessage reply = originalMsg.createReply();
-    reply.setPerformative(ACLMessage.INFORM);
-    reply.setContent(finalOutput.toString());
-    send(reply);
+    // One round trip for all subqueries; returns false so the caller can fall back to individual calls
+    private boolean queryPacked(String agentName, List<String> subQueries, Map<String, Map<String, String>> allResults,
+                                QueryPriority priority) {
+        System.out.println("Processing " + subQueries.size() + " packed subqueries with " + agentName);
+        ACLMessage reply = queryAgent(agentName, 0, BatchPrompt.build(subQueries), 30000, priority);
+        List<String> answers = reply != null ? BatchPrompt.parse(SearchOntology.resultText(reply), subQueries.size()) : null;
+        if (answers == null) {
+            return false;
+        }
 
-    // 8. Cache results
-    KnowledgeStorage.store(resolvedQuery, finalOutput.toString());
-}
+        for (int i = 0; i < subQueries.size(); i++) {
+            allResults.get(subQueries.get(i)).put(agentName, "\n" + answers.get(i));
+        }
+        return true;
+    }
 
-            private String resolvePronouns(String query) {
+            private String resolvePronouns(String query, SessionState session) {
+                Map<String, String> contextMap = session.getContextMap();
                 if (contextMap.containsKey("current_subject")) {
                     String resolved = query.replaceAll("\\b(he|she|they|it)\\b", contextMap.get("current_subject"));
                     System.out.println("Resolved pronouns: " + resolved);
@@ -394,58 +500,87 @@ private void handleComplexQuery(ACLMessage originalMsg) {
                 return query;
             }
 
-            private void handleSimpleQuery(ACLMessage originalMsg) {
-                String query = originalMsg.getContent();
-                String resolvedQuery = resolvePronouns(query);
+            private void handleSimpleQuery(ACLMessage originalMsg, int brownoutLevel, SessionState session) {
+                String query = SearchOntology.queryText(originalMsg);
+                QueryPriority priority = QueryPriority.of(originalMsg);
+                String resolvedQuery = resolvePronouns(query, session);
                 System.out.println("Processing simple query: " + resolvedQuery);
 
-                // First check internal knowledge
-                String cachedResponse = KnowledgeStorage.retrieve(resolvedQuery);
+                // Calculations are done here; Wolfram Alpha only gets what this cannot parse
+                if (isMathQuery(resolvedQuery)) {
+                    String calculated = ExpressionEvaluator.answer(resolvedQuery);
+                    if (calculated != null) {
+                        System.out.println("Answering from the expression evaluator");
+                        ExecutionSummary summary = new ExecutionSummary(resolvedQuery, false);
+                        summary.getResults().add(new SourceResult(resolvedQuery, "ExpressionEvaluator", calculated));
+                        summary.setResponseCount(1);
+                        replyWithSummary(originalMsg, summary, brownoutLevel);
+                        return;
+                    }
+                }
+
+                // Then internal knowledge
+                String cachedResponse = knowledge.retrieve(resolvedQuery);
                 if (cachedResponse != null) {
                     System.out.println("Returning cached response");
-                    ACLMessage reply = originalMsg.createReply();
-                    reply.setPerformative(ACLMessage.INFORM);
-                    reply.setContent("Cached Result:\n" + cachedResponse);
-                    send(reply);
+                    replyWithSummary(originalMsg, cachedSummary(resolvedQuery, false, cachedResponse), 0);
+                    return;
+                }
+
+                // Questions about a known entity's facts need no sources at all
+                String factAnswer = facts.answer(resolvedQuery);
+                if (factAnswer != null) {
+                    System.out.println("Answering from entity facts");
+                    ExecutionSummary summary = new ExecutionSummary(resolvedQuery, false);
+                    summary.getResults().add(new SourceResult(resolvedQuery, "EntityFactStore", factAnswer));
+                    summary.setResponseCount(1);
+                    replyWithSummary(originalMsg, summary, brownoutLevel);
+                    return;
+                }
+
+                // Then stored answers to other queries that may cover this one
+                LocalAnswer local = searchLocally(resolvedQuery, priority);
+                if (local != null && local.confidence >= LOCAL_ANSWER_CONFIDENCE) {
+                    System.out.println("Answering from local search, confidence " + local.confidence);
+                    ExecutionSummary summary = new ExecutionSummary(resolvedQuery, false);
+                    summary.getResults().add(local.result);
+                    summary.setResponseCount(1);
+                    replyWithSummary(originalMsg, summary, brownoutLevel);
                     return;
                 }
 
                 // Determine which agents should process this query
-                String[] agentsToQuery = determineAgentsForQuery(resolvedQuery);
+                String[] agentsToQuery = determineAgentsForQuery(resolvedQuery, brownoutLevel);
+                boolean useLocal = local != null && local.confidence >= LOCAL_DEMOTE_CONFIDENCE;
+                if (useLocal) {
+                    // A partial local answer stands in for the slowest sources
+                    agentsToQuery = Arrays.stream(agentsToQuery)
+                            .filter(agentName -> !directory.hasCapability(agentName, ServiceDirectory.LLM))
+                            .toArray(String[]::new);
+                }
                 System.out.println("Selected agents: " + Arrays.toString(agentsToQuery));
 
                 // Create a map to store results by agent
                 Map<String, String> resultsByAgent = new ConcurrentHashMap<>();
-                List<String> agentsWithTimeout = new ArrayList<>();
-                List<String> agentsWithError = new ArrayList<>();
+                List<String> agentsWithTimeout = Collections.synchronizedList(new ArrayList<>());
+                List<String> agentsWithError = Collections.synchronizedList(new ArrayList<>());
 
                 // Query all resources in parallel
-                ExecutorService executor = Executors.newFixedThreadPool(agentsToQuery.length);
-                CountDownLatch latch = new CountDownLatch(agentsToQuery.length);
+                Map<Future<?>, String> tasks = new LinkedHashMap<>();
 
                 for (String agentName : agentsToQuery) {
-                    executor.execute(() -> {
+                    tasks.put(fanOutPool.submit(session.getId(), priority, () -> {
                         try {
                             String processedQuery = agentSpecificPreprocessing(resolvedQuery, agentName);
                             System.out.println("Sending to " + agentName + ": " + processedQuery);
 
-                            ACLMessage request = new ACLMessage(ACLMessage.REQUEST);
-                            request.addReceiver(new AID(agentName, AID.ISLOCALNAME));
-                            request.setContent(processedQuery);
-                            send(request);
-
                             // Wait for response with timeout
-                            ACLMessage reply = blockingReceive(
-                                    MessageTemplate.and(
-                                            MessageTemplate.MatchPerformative(ACLMessage.INFORM),
-                                            MessageTemplate.MatchSender(new AID(agentName, AID.ISLOCALNAME))
-                                    ),
-                                    15000 // 15 seconds timeout
-                            );
+                            ACLMessage reply = queryAgent(agentName, 0, processedQuery, 15000, priority); // 15 seconds timeout
 
                             if (reply != null) {
-                                System.out.println("Received from " + agentName + ": " + reply.getContent());
-                                resultsByAgent.put(agentName, reply.getContent());
+                                String result = SearchOntology.resultText(reply);
+                                System.out.println("Received from " + agentName + ": " + result);
+                                resultsByAgent.put(agentName, result);
                             } else {
                                 System.out.println("Timeout waiting for " + agentName);
                                 agentsWithTimeout.add(agentName);
@@ -453,54 +588,49 @@ private void handleComplexQuery(ACLMessage originalMsg) {
                         } catch (Exception e) {
                             System.out.println("Error with " + agentName + ": " + e.getMessage());
                             agentsWithError.add(agentName);
-                        } finally {
-                            latch.countDown();
                         }
-                    });
+                    }), agentName);
                 }
 
-                try {
-                    if (!latch.await(20, TimeUnit.SECONDS)) {
-                        System.out.println("Overall query timeout occurred");
-                    }
-                } catch (InterruptedException e) {
-                    System.out.println("Query interrupted");
-                } finally {
-                    executor.shutdown();
+                if (!awaitAll(tasks, System.currentTimeMillis() + 20000, agentsWithTimeout)) {
+                    System.out.println("Overall query timeout occurred");
                 }
 
                 // Process and combine results
-                StringBuilder combinedResults = new StringBuilder();
-                combinedResults.append("=== Context-Aware Combined Results ===\n\n");
-                StringBuilder allValidResponses = new StringBuilder();
+                ExecutionSummary summary = new ExecutionSummary(resolvedQuery, false);
+                List<SourceResult> validResults = new ArrayList<>();
+                if (useLocal) {
+                    validResults.add(local.result);
+                }
 
                 for (String agentName : agentsToQuery) {
                     String result = resultsByAgent.get(agentName);
                     if (result != null) {
-                        String formatted = formatResponse(agentName, result);
                         if (isValidResponse(result, agentName)) {
-                            combinedResults.append(formatted).append("\n\n");
-                            allValidResponses.append(formatted).append("\n\n");
-                            updateContextFromResponse(result);
-                            activeAgents.add(agentName); // Mark as active
+                            validResults.add(new SourceResult(resolvedQuery, agentName, result));
+                            session.getActiveAgents().add(agentName); // Mark as active
                         } else {
                             System.out.println("Filtered out invalid response from " + agentName);
                         }
                     }
                 }
-
-                // Store all valid responses
-                if (allValidResponses.length() > 0) {
-                    KnowledgeStorage.store(resolvedQuery, allValidResponses.toString());
+                updateContextFromFacts(session);
+                // Near-duplicates are merged before the answer is assembled and stored
+                StringBuilder allValidResponses = new StringBuilder();
+                for (SourceResult result : ResultFusion.fuse(validResults)) {
+                    summary.getResults().add(result);
+                    allValidResponses.append(SummaryFormatter.formatResult(result)).append("\n\n");
                 }
+                summary.setResponseCount(resultsByAgent.size());
+                summary.getTimeouts().addAll(agentsWithTimeout);
+                summary.getErrors().addAll(agentsWithError);
 
-                // Send combined response
-                ACLMessage reply = originalMsg.createReply();
-                reply.setPerformative(ACLMessage.INFORM);
+                // Store all valid responses (degraded answers are not worth keeping)
+                if (allValidResponses.length() > 0 && brownoutLevel == 0) {
+                    knowledge.store(resolvedQuery, allValidResponses.toString());
+                }
 
-                if (combinedResults.length() > 0) {
-                    reply.setContent(combinedResults.toString());
-                } else {
+                if (summary.getResults().isEmpty()) {
                     // Provide detailed error information
                     StringBuilder errorMsg = new StringBuilder("No valid results found. ");
                     if (!agentsWithTimeout.isEmpty()) {
@@ -509,11 +639,12 @@ private void handleComplexQuery(ACLMessage originalMsg) {
                     if (!agentsWithError.isEmpty()) {
                         errorMsg.append("Errors from: ").append(agentsWithError).append(". ");
                     }
-                    errorMsg.append("Active agents: ").append(activeAgents);
-                    reply.setContent(errorMsg.toString());
+                    errorMsg.append("Active agents: ").append(session.getActiveAgents());
+                    summary.setMessage(errorMsg.toString());
                 }
 
-                send(reply);
+                // Send combined response
+                replyWithSummary(originalMsg, summary, brownoutLevel);
             }
 
             private String agentSpecificPreprocessing(String query, String agentName) {
@@ -543,18 +674,24 @@ private void handleComplexQuery(ACLMessage originalMsg) {
                 return query;
             }
 
-            private void updateContextFromResponse(String response) {
-                if (response.matches(".*\\b(born|age)\\b.*\\d{4}.*")) {
-                    String ageInfo = response.replaceAll(".*\\b(born|age)\\b.*?(\\d{4}).*", "$1 $2");
-                    if (contextMap.containsKey("current_subject")) {
-                        contextMap.put(contextMap.get("current_subject") + "_age", ageInfo);
-                        System.out.println("Updated context with age info: " + ageInfo);
-                    }
+            // The subject's age comes from its Wikidata claims, fetched in the background the first time
+            private void updateContextFromFacts(SessionState session) {
+                Map<String, String> contextMap = session.getContextMap();
+                String subject = contextMap.get("current_subject");
+                if (subject == null) {
+                    return;
+                }
+                EntityFacts subjectFacts = facts.cached(subject);
+                if (subjectFacts == null) {
+                    facts.refresh(subject);
+                } else if (subjectFacts.age() != null) {
+                    contextMap.put(subject + "_age", String.valueOf(subjectFacts.age()));
+                    System.out.println("Updated context with age info: " + subjectFacts.age());
                 }
             }
 
-            private String[] determineAgentsForQuery(String query) {
-                Set<String> agents = new HashSet<>(Arrays.asList(ALL_AGENTS));
+            private String[] determineAgentsForQuery(String query, int brownoutLevel) {
+                Set<String> agents = new LinkedHashSet<>(directory.servicesWith(ServiceDirectory.GENERAL));
 
                 // Special handling for TogetherAgent - only use for certain queries
                 if (isQuerySuitableForTogetherAgent(query)) {
@@ -564,25 +701,25 @@ private void handleComplexQuery(ACLMessage originalMsg) {
 
                 if (isBookQuery(query)) {
                     System.out.println("books agents first");
-                    for (String bookAgent : BOOK_AGENTS) {
-                        if (!Arrays.asList(EXCLUDED_AGENTS).contains(bookAgent)) {
-                            agents.add(bookAgent);
-                        }
-                    }
+                    agents.addAll(directory.servicesWith(ServiceDirectory.BOOKS));
                 }
 
                 if (isMathQuery(query)) {
                     System.out.println("math agents first");
-                    for (String mathAgent : MATH_AGENTS) {
-                        if (!Arrays.asList(EXCLUDED_AGENTS).contains(mathAgent)) {
-                            agents.add(mathAgent);
-                        }
-                    }
+                    agents.addAll(directory.servicesWith(ServiceDirectory.MATH));
+                }
+
+                // Shed slow agents while the broker is overloaded
+                Set<String> narrowed = brownout.narrowAgents(agents, brownoutLevel);
+                // Never wait out a timeout on an agent that is not running
+                narrowed.removeIf(agentName -> !directory.isAvailable(agentName));
+                if (brownoutLevel > 0) {
+                    System.out.println("Brownout level " + brownoutLevel + ", narrowed agents to " + narrowed);
                 }
 
-                System.out.println("agents:::::"+agents);
+                System.out.println("agents:::::"+narrowed);
 
-                return agents.toArray(new String[0]);
+                return narrowed.toArray(new String[0]);
             }
 
             private boolean isQuerySuitableForTogetherAgent(String query) {
@@ -602,11 +739,6 @@ private void handleComplexQuery(ACLMessage originalMsg) {
                         lowerQuery.matches(".*\\b(sin|cos|tan|log|ln|sqrt|root|square|cube|factorial|permutation|combination)\\b.*");
             }
 
-            private String formatResponse(String agentName, String content) {
-                String sourceName = agentName.replace("Agent", "");
-                return "" + sourceName + " Result\n" + content;
-            }
-
             private boolean isValidResponse(String response, String agentName) {
                 if (response == null || response.trim().isEmpty()) {
                     return false;
@@ -623,7 +755,7 @@ private void handleComplexQuery(ACLMessage originalMsg) {
                                 !lowerResponse.matches(".*\\bno (result|response)\\b.*") &&
                                 response.length() > 30; // Longer minimum length for LLM responses
 
-                    case "LangsearchAgent":
+                    case "LangSearchAgent":
                         return !lowerResponse.contains("no results found") &&
                                 !lowerResponse.contains("error fetching") &&
                                 !lowerResponse.contains("api error") &&
@@ -651,4 +783,124 @@ private void handleComplexQuery(ACLMessage originalMsg) {
             }
         });
     }
-}
\ No newline at end of file
+
+    protected void takeDown() {
+        ServiceRegistry.deregister(this);
+        if (queryWorkers != null) queryWorkers.shutdownNow();
+        if (fanOutPool != null) fanOutPool.shutdownNow();
+        System.out.println("Payload compression: " + PayloadCompression.stats());
+        System.out.println("BrokerAgent " + getAID().getName() + " terminating.");
+    }
+
+    // Clients that asked in the search ontology get the structured summary, others its text
+    private void replyWithSummary(ACLMessage request, ExecutionSummary summary, int brownoutLevel) {
+        summary.setBrownoutLevel(brownoutLevel);
+        ACLMessage reply = request.createReply();
+        reply.setPerformative(ACLMessage.INFORM);
+        if (SearchOntology.isEncoded(request)) {
+            SearchOntology.setReplyContent(this, reply, request, summary);
+        } else {
+            reply.setContent(SummaryFormatter.format(summary));
+        }
+        brownout.tagReply(reply, brownoutLevel);
+        send(reply);
+    }
+
+    private static class LocalAnswer {
+        final SourceResult result;
+        final double confidence;
+
+        LocalAnswer(SourceResult result, double confidence) {
+            this.result = result;
+            this.confidence = confidence;
+        }
+    }
+
+    // The most confident answer of the local search agents, or null if none found anything
+    private LocalAnswer searchLocally(String query, QueryPriority priority) {
+        LocalAnswer best = null;
+        for (String agentName : directory.servicesWith(ServiceDirectory.LOCAL)) {
+            ACLMessage reply = queryAgent(agentName, 0, query, LOCAL_SEARCH_TIMEOUT_MS, priority);
+            if (reply == null) {
+                System.out.println("Timeout waiting for " + agentName);
+                continue;
+            }
+            double confidence;
+            try {
+                confidence = Double.parseDouble(reply.getUserDefinedParameter(LocalSearchAgent.CONFIDENCE));
+            } catch (NullPointerException | NumberFormatException e) {
+                confidence = 0;
+            }
+            if (confidence > 0 && (best == null || confidence > best.confidence)) {
+                best = new LocalAnswer(new SourceResult(query, agentName, SearchOntology.resultText(reply)), confidence);
+            }
+        }
+        return best;
+    }
+
+    private static ExecutionSummary cachedSummary(String query, boolean decomposed, String cachedResponse) {
+        ExecutionSummary summary = new ExecutionSummary(query, decomposed);
+        summary.setCached(true);
+        summary.getResults().add(new SourceResult(query, "KnowledgeStorage", cachedResponse));
+        return summary;
+    }
+
+    // Waits for every task until the deadline; queued tasks still waiting for a slot are dropped.
+    // Running ones are not interrupted, their own receive timeout bounds them. Either way the
+    // task's name goes into timeouts, unless the task got there first.
+    private boolean awaitAll(Map<Future<?>, String> tasks, long deadline, List<String> timeouts) {
+        boolean completed = true;
+        for (Map.Entry<Future<?>, String> entry : tasks.entrySet()) {
+            Future<?> task = entry.getKey();
+            try {
+                task.get(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                task.cancel(false);
+                completed = false;
+                synchronized (timeouts) {
+                    if (!timeouts.contains(entry.getValue())) {
+                        timeouts.add(entry.getValue());
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException e) {
+                System.out.println("Fan-out task failed: " + e.getCause());
+            }
+        }
+        return completed;
+    }
+
+    // Sends a request and waits for the reply to that exact conversation, so concurrent
+    // requests to the same agent never pick up each other's answers
+    private ACLMessage queryAgent(String agentName, int subQueryIndex, String content, long timeoutMillis,
+                                  QueryPriority priority) {
+        String conversationId = agentName + "-" + UUID.randomUUID();
+        AID replica = replicas.acquire(agentName);
+        if (replica == null) {
+            // Deregistered since the agents were picked
+            return null;
+        }
+
+        try {
+            ACLMessage request = new ACLMessage(ACLMessage.REQUEST);
+            request.addReceiver(replica);
+            request.setConversationId(conversationId);
+            priority.applyTo(request); // resource agents order their own queue the same way
+            SearchOntology.setContent(request, new SubQuery(subQueryIndex, content));
+            PayloadCompression.advertise(this, request); // LLM answers from remote replicas are large
+            send(request);
+
+            return blockingReceive(
+                    MessageTemplate.and(
+                            MessageTemplate.MatchPerformative(ACLMessage.INFORM),
+                            MessageTemplate.MatchConversationId(conversationId)
+                    ),
+                    timeoutMillis
+            );
+        } finally {
+            replicas.release(replica);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package agents;
+
+import jade.lang.acl.ACLMessage;
+
+import java.util.*;
+import java.util.function.IntSupplier;
+import java.util.function.Predicate;
+
+/**
+ * Watches the broker's queue depth and recent query latency and decides how
+ * much of the fan-out to keep. Levels go up as soon as load crosses a
+ * threshold and come back down one step at a time once load has stayed low.
+ *
+ * Level 0: normal fan-out
+ * Level 1: LLM agents dropped, Wikipedia/DuckDuckGo used instead
+ * Level 2: as level 1, and complex queries capped at 2 sub-queries
+ * Level 3: only Wikipedia/DuckDuckGo, complex queries answered as 1 sub-query
+ */
+public class BrownoutController {
+    public static final int MAX_LEVEL = 3;
+
+    // Pressure thresholds for entering level 1, 2 and 3
+    private static final double[] ENTER_THRESHOLDS = {0.5, 0.75, 1.0};
+    // Pressure has to fall this far below a level's threshold before we step down
+    private static final double EXIT_FACTOR = 0.7;
+    private static final long MIN_LEVEL_HOLD_MS = 10000;
+    private static final double LATENCY_SMOOTHING = 0.2;
+    // Without fresh samples the latency average halves every 30 seconds
+    private static final long LATENCY_HALF_LIFE_MS = 30000;
+
+    private static final String[] FAST_AGENTS = {"WikipediaAgent", "DuckDuckGoAgent"};
+
+    private final IntSupplier queueDepth;
+    private final int maxQueueDepth;
+    private final long targetLatencyMillis;
+    private final Predicate<String> isLlmAgent;
+
+    private int level = 0;
+    private long levelChangedAt = System.currentTimeMillis();
+    private double averageLatencyMillis = 0;
+    private long lastLatencySampleAt = System.currentTimeMillis();
+
+    public BrownoutController(IntSupplier queueDepth, int maxQueueDepth, long targetLatencyMillis, Predicate<String> isLlmAgent) {
+        this.queueDepth = queueDepth;
+        this.maxQueueDepth = Math.max(1, maxQueueDepth);
+        this.targetLatencyMillis = Math.max(1, targetLatencyMillis);
+        this.isLlmAgent = isLlmAgent;
+    }
+
+    // Re-evaluates the load and returns the level the next query should run at
+    public synchronized int evaluate() {
+        long now = System.currentTimeMillis();
+        decayLatency(now);
+        double pressure = Math.max(
+                (double) queueDepth.getAsInt() / maxQueueDepth,
+                averageLatencyMillis / targetLatencyMillis);
+
+        int target = 0;
+        for (int i = 0; i < ENTER_THRESHOLDS.length; i++) {
+            if (pressure >= ENTER_THRESHOLDS[i]) {
+                target = i + 1;
+            }
+        }
+
+        if (target > level) {
+            changeLevel(target, pressure, now);
+        } else if (level > 0 && now - levelChangedAt >= MIN_LEVEL_HOLD_MS
+                && pressure < ENTER_THRESHOLDS[level - 1] * EXIT_FACTOR) {
+            changeLevel(level - 1, pressure, now);
+        }
+        return level;
+    }
+
+    public synchronized void recordLatency(long millis) {
+        long now = System.currentTimeMillis();
+        decayLatency(now);
+        averageLatencyMillis = averageLatencyMillis == 0
+                ? millis
+                : LATENCY_SMOOTHING * millis + (1 - LATENCY_SMOOTHING) * averageLatencyMillis;
+        lastLatencySampleAt = now;
+    }
+
+    // Lets the average recover while the broker is idle, otherwise a slow burst would pin the level
+    private void decayLatency(long now) {
+        long idle = now - lastLatencySampleAt;
+        if (idle > 0) {
+            averageLatencyMillis *= Math.pow(0.5, (double) idle / LATENCY_HALF_LIFE_MS);
+            lastLatencySampleAt = now;
+        }
+    }
+
+    public synchronized int getLevel() {
+        return level;
+    }
+
+    public Set<String> narrowAgents(Set<String> agents, int level) {
+        if (level <= 0) {
+            return agents;
+        }
+
+        Set<String> narrowed = new LinkedHashSet<>(agents);
+        narrowed.removeIf(isLlmAgent);
+        if (level >= MAX_LEVEL) {
+            narrowed.retainAll(Arrays.asList(FAST_AGENTS));
+        }
+        // Make sure there is always something quick left to answer with (callers drop
+        // any of these that are not running)
+        narrowed.addAll(Arrays.asList(FAST_AGENTS));
+        return narrowed;
+    }
+
+    public List<String> capSubQueries(List<String> subQueries, String originalQuery, int level) {
+        if (level >= MAX_LEVEL) {
+            return Collections.singletonList(originalQuery);
+        }
+        if (level == 2 && subQueries.size() > 2) {
+            return new ArrayList<>(subQueries.subList(0, 2));
+        }
+        return subQueries;
+    }
+
+    // Marks a degraded reply; the banner itself is part of the rendered summary
+    public void tagReply(ACLMessage reply, int level) {
+        if (level <= 0) {
+            return;
+        }
+        reply.addUserDefinedParameter("degraded", "true");
+        reply.addUserDefinedParameter("brownout-level", String.valueOf(level));
+    }
+
+    public static String degradedBanner(int level) {
+        return "[Degraded mode (level " + level + "): the system is under heavy load, "
+                + "some sources were skipped]\n";
+    }
+
+    private void changeLevel(int newLevel, double pressure, long now) {
+        System.out.println(String.format("Brownout level %d -> %d (pressure %.2f, avg latency %.0f ms)",
+                level, newLevel, pressure, averageLatencyMillis));
+        level = newLevel;
+        levelChangedAt = now;
+    }
+}
@@ -4,18 +4,23 @@ import jade.core.Agent;
 import jade.core.behaviours.CyclicBehaviour;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
+import agents.ontology.SearchOntology;
 import utils.HttpHelper;
 
 public class DeepInfraAgent extends Agent {
     protected void setup() {
         System.out.println(getAID().getName() + " is ready for DeepInfra-powered responses.");
+        ServiceRegistry.register(this, "DeepInfraAgent", ServiceDirectory.describe(
+                "deepinfra", ServiceDirectory.CostClass.HIGH, ServiceDirectory.GENERAL, ServiceDirectory.SUB_QUERY, ServiceDirectory.LLM));
 
         addBehaviour(new CyclicBehaviour(this) {
+            private final PriorityInbox inbox = new PriorityInbox(myAgent, MessageTemplate.MatchPerformative(ACLMessage.REQUEST));
+
             public void action() {
                 // Receive requests
-                ACLMessage msg = receive(MessageTemplate.MatchPerformative(ACLMessage.REQUEST));
+                ACLMessage msg = inbox.next();
                 if (msg != null) {
-                    String query = msg.getContent();
+                    String query = SearchOntology.queryText(msg);
                     System.out.println("DeepInfraAgent processing query: " + query);
 
                     try {
@@ -25,7 +30,7 @@ public class DeepInfraAgent extends Agent {
                         // Format and send response
                         ACLMessage reply = msg.createReply();
                         reply.setPerformative(ACLMessage.INFORM);
-                        reply.setContent(formatResponse(response));
+                        SearchOntology.setResult(myAgent, reply, msg, "DeepInfraAgent", formatResponse(response));
                         send(reply);
 
                     } catch (Exception e) {
@@ -46,4 +51,8 @@ public class DeepInfraAgent extends Agent {
     private String formatResponse(String rawResponse) {
         return "[DeepInfra Response]\n" + rawResponse;
     }
-}
\ No newline at end of file
+
+    protected void takeDown() {
+        ServiceRegistry.deregister(this);
+    }
+}
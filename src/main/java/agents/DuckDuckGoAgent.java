@@ -4,23 +4,28 @@ import jade.core.Agent;
 import jade.core.behaviours.CyclicBehaviour;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
+import agents.ontology.SearchOntology;
 import utils.HttpHelper;
 
 public class DuckDuckGoAgent extends Agent {
     protected void setup() {
         System.out.println(getAID().getName() + " is ready for general web searches.");
+        ServiceRegistry.register(this, "DuckDuckGoAgent", ServiceDirectory.describe(
+                "duckduckgo", ServiceDirectory.CostClass.LOW, ServiceDirectory.GENERAL));
 
         addBehaviour(new CyclicBehaviour(this) {
+            private final PriorityInbox inbox = new PriorityInbox(myAgent, MessageTemplate.MatchPerformative(ACLMessage.REQUEST));
+
             public void action() {
-                ACLMessage msg = receive(MessageTemplate.MatchPerformative(ACLMessage.REQUEST));
+                ACLMessage msg = inbox.next();
                 if (msg != null) {
-                    String query = msg.getContent();
+                    String query = SearchOntology.queryText(msg);
                     System.out.println("Searching DuckDuckGo for: " + query);
                     String response = HttpHelper.searchExternalSource("duckduckgo", query);
 
                     ACLMessage reply = msg.createReply();
                     reply.setPerformative(ACLMessage.INFORM);
-                    reply.setContent(formatDDGResponse(response));
+                    SearchOntology.setResult(myAgent, reply, msg, "DuckDuckGoAgent", formatDDGResponse(response));
                     send(reply);
                 } else {
                     block();
@@ -35,4 +40,8 @@ public class DuckDuckGoAgent extends Agent {
             }
         });
     }
-}
\ No newline at end of file
+
+    protected void takeDown() {
+        ServiceRegistry.deregister(this);
+    }
+}
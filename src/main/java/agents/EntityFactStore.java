@@ -0,0 +1,212 @@
+package agents;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import utils.HttpHelper;
+import utils.RequestBatcher;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Local cache of Wikidata entities, keyed by QID and by normalised title, that
+ * holds parsed claims ({@link EntityFacts}) instead of response text. Agents in
+ * the same JVM share one instance through {@link #shared()}; it is persisted to
+ * -Dfacts.file (default entity_facts.json).
+ *
+ * Entries older than -Dfacts.ttlHours (default 168) are still served, and
+ * refreshed in the background when they are read. Lookups that do go to
+ * Wikidata are batched, like the other Wikidata calls.
+ */
+public class EntityFactStore {
+    private static final String FILE = System.getProperty("facts.file", "entity_facts.json");
+    private static final long TTL_MS = Long.getLong("facts.ttlHours", 168) * 3600_000L;
+
+    // Question forms answered from facts: pattern with the subject as group 1 -> fact asked for
+    private static final Map<Pattern, String> QUESTIONS = new LinkedHashMap<>();
+    static {
+        QUESTIONS.put(question("how old (?:is|was) (.+?)"), "age");
+        QUESTIONS.put(question("(?:what is |what's )?(?:the )?age of (.+?)"), "age");
+        QUESTIONS.put(question("when (?:was|is) (.+?) born"), EntityFacts.BORN);
+        QUESTIONS.put(question("(?:what is |what's )?(?:the )?(?:birth ?date|date of birth) of (.+?)"), EntityFacts.BORN);
+        QUESTIONS.put(question("where (?:was|is) (.+?) born"), EntityFacts.BIRTHPLACE);
+        QUESTIONS.put(question("when did (.+?) die"), EntityFacts.DIED);
+        QUESTIONS.put(question("what (?:is|was) (.+?)'s? (?:occupation|job|profession)"), EntityFacts.OCCUPATION);
+        QUESTIONS.put(question("what (?:does|did) (.+?) do(?: for a living)?"), EntityFacts.OCCUPATION);
+        QUESTIONS.put(question("what is the population of (.+?)"), EntityFacts.POPULATION);
+        QUESTIONS.put(question("what is the capital (?:city )?of (.+?)"), EntityFacts.CAPITAL);
+    }
+
+    private static EntityFactStore shared;
+
+    private final Path file;
+    private final Map<String, EntityFacts> byQid = new ConcurrentHashMap<>();
+    private final Map<String, String> qidByTitle = new ConcurrentHashMap<>();
+    // Titles Wikidata had nothing for, and when it said so
+    private final Map<String, Long> missing = new ConcurrentHashMap<>();
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+    private final RequestBatcher batcher = new RequestBatcher("wikidata-facts", 5, 50, this::fetch);
+
+    EntityFactStore(Path file) {
+        this.file = file;
+        load();
+    }
+
+    public static synchronized EntityFactStore shared() {
+        if (shared == null) {
+            shared = new EntityFactStore(Paths.get(FILE));
+        }
+        return shared;
+    }
+
+    /**
+     * The facts for a title without going to the network, or null if they are not
+     * here. Stale facts are returned as well, and fetched again in the background.
+     */
+    public EntityFacts cached(String title) {
+        String key = normalize(title);
+        String qid = qidByTitle.get(key);
+        EntityFacts facts = qid != null ? byQid.get(qid) : null;
+        if (facts != null && System.currentTimeMillis() - facts.getFetchedAt() > TTL_MS) {
+            refresh(title);
+        }
+        return facts;
+    }
+
+    public EntityFacts byQid(String qid) {
+        return byQid.get(qid);
+    }
+
+    // Fresh local facts right away, otherwise from Wikidata
+    public CompletableFuture<EntityFacts> lookupAsync(String title) {
+        EntityFacts facts = cached(title);
+        if (facts != null && System.currentTimeMillis() - facts.getFetchedAt() <= TTL_MS) {
+            return CompletableFuture.completedFuture(facts);
+        }
+        return batcher.submit(title.trim()).thenApply(qid -> byQid.get(qid));
+    }
+
+    /**
+     * Answers questions like "how old is X" or "where was X born" from local facts.
+     * Null for other questions and for subjects not known yet; those are fetched in
+     * the background, so asking again is answered here.
+     */
+    public String answer(String question) {
+        String text = question.trim();
+        for (Map.Entry<Pattern, String> form : QUESTIONS.entrySet()) {
+            Matcher m = form.getKey().matcher(text);
+            if (!m.matches()) {
+                continue;
+            }
+            String subject = m.group(1).replaceAll("^(?i)the\\s+", "");
+            EntityFacts facts = cached(subject);
+            if (facts == null) {
+                refresh(subject);
+                return null;
+            }
+            return facts.answer(form.getValue());
+        }
+        return null;
+    }
+
+    // Fetches the title again unless that is under way or Wikidata recently had nothing
+    public void refresh(String title) {
+        Long missedAt = missing.get(normalize(title));
+        if (missedAt != null && System.currentTimeMillis() - missedAt < TTL_MS) {
+            return;
+        }
+        if (refreshing.add(normalize(title))) {
+            batcher.submit(title.trim()).whenComplete((qid, error) -> refreshing.remove(normalize(title)));
+        }
+    }
+
+    // Batch function: entities and the labels of the items they refer to, title -> QID
+    private Map<String, Object> fetch(List<String> titles) {
+        Map<String, Object> results = new HashMap<>(HttpHelper.fetchWikidataEntities(titles));
+        Set<String> referenced = new LinkedHashSet<>();
+        for (Object entity : results.values()) {
+            if (entity instanceof JSONObject) {
+                referenced.addAll(EntityFacts.referencedItems((JSONObject) entity));
+            }
+        }
+        Map<String, String> labels;
+        try {
+            labels = HttpHelper.fetchWikidataLabels(referenced);
+        } catch (Exception e) {
+            labels = Collections.emptyMap(); // facts about other items are left out this time
+        }
+
+        for (String title : titles) {
+            if (!results.containsKey(title)) {
+                missing.put(normalize(title), System.currentTimeMillis());
+            }
+        }
+        for (Map.Entry<String, Object> result : results.entrySet()) {
+            if (!(result.getValue() instanceof JSONObject)) {
+                continue; // failed this time, tried again on the next read
+            }
+            JSONObject entity = (JSONObject) result.getValue();
+            EntityFacts facts = EntityFacts.fromEntity(entity, labels);
+            byQid.put(facts.getQid(), facts);
+            qidByTitle.put(normalize(result.getKey()), facts.getQid());
+            JSONObject sitelinks = entity.optJSONObject("sitelinks");
+            if (sitelinks != null && sitelinks.has("enwiki")) {
+                qidByTitle.put(normalize(sitelinks.getJSONObject("enwiki").getString("title")), facts.getQid());
+            }
+            missing.remove(normalize(result.getKey()));
+            result.setValue(facts.getQid());
+        }
+        save();
+        return results;
+    }
+
+    private synchronized void save() {
+        JSONArray entities = new JSONArray();
+        byQid.values().forEach(facts -> entities.put(facts.toJson()));
+        JSONObject titles = new JSONObject();
+        qidByTitle.forEach(titles::put);
+        JSONObject root = new JSONObject().put("entities", entities).put("titles", titles);
+        try {
+            Path temp = Paths.get(file + ".tmp");
+            Files.write(temp, root.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("Could not save entity facts to " + file + ": " + e.getMessage());
+        }
+    }
+
+    private void load() {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try {
+            JSONObject root = new JSONObject(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+            JSONArray entities = root.getJSONArray("entities");
+            for (int i = 0; i < entities.length(); i++) {
+                EntityFacts facts = EntityFacts.fromJson(entities.getJSONObject(i));
+                byQid.put(facts.getQid(), facts);
+            }
+            JSONObject titles = root.getJSONObject("titles");
+            for (String title : titles.keySet()) {
+                qidByTitle.put(title, titles.getString(title));
+            }
+            System.out.println("Loaded facts about " + byQid.size() + " entities from " + file);
+        } catch (Exception e) {
+            System.err.println("Could not read entity facts from " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static Pattern question(String form) {
+        return Pattern.compile(form + "\\s*\\??", Pattern.CASE_INSENSITIVE);
+    }
+
+    private static String normalize(String title) {
+        return title.trim().replace('_', ' ').replaceAll("\\s+", " ").toLowerCase();
+    }
+}
@@ -0,0 +1,286 @@
+package agents;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.time.LocalDate;
+import java.time.Period;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The claims of one Wikidata entity that questions are asked about, already
+ * parsed: dates as ISO strings (only as precise as Wikidata has them), items as
+ * their English labels, quantities as plain numbers.
+ */
+public class EntityFacts {
+    public static final String BORN = "born";
+    public static final String DIED = "died";
+    public static final String BIRTHPLACE = "place of birth";
+    public static final String OCCUPATION = "occupation";
+    public static final String POPULATION = "population";
+    public static final String CAPITAL = "capital";
+
+    // Wikidata property -> fact name, in the order facts are listed
+    static final Map<String, String> PROPERTIES = new LinkedHashMap<>();
+    static {
+        PROPERTIES.put("P31", "instance of");
+        PROPERTIES.put("P569", BORN);
+        PROPERTIES.put("P19", BIRTHPLACE);
+        PROPERTIES.put("P570", DIED);
+        PROPERTIES.put("P27", "citizenship");
+        PROPERTIES.put("P106", OCCUPATION);
+        PROPERTIES.put("P17", "country");
+        PROPERTIES.put("P36", CAPITAL);
+        PROPERTIES.put("P1082", POPULATION);
+        PROPERTIES.put("P571", "inception");
+        PROPERTIES.put("P112", "founded by");
+        PROPERTIES.put("P159", "headquarters");
+    }
+    // Facts with one current value; older statements are history, not alternatives
+    private static final Set<String> SINGLE_VALUED = new HashSet<>(Arrays.asList(BORN, DIED, BIRTHPLACE, POPULATION, CAPITAL));
+    private static final int MAX_VALUES = 5;
+    private static final Pattern TIME = Pattern.compile("([+-]\\d+)-(\\d\\d)-(\\d\\d)T.*");
+
+    private final String qid;
+    private final String label;
+    private final String description;
+    private final Map<String, List<String>> facts;
+    private final long fetchedAt;
+
+    EntityFacts(String qid, String label, String description, Map<String, List<String>> facts, long fetchedAt) {
+        this.qid = qid;
+        this.label = label;
+        this.description = description;
+        this.facts = facts;
+        this.fetchedAt = fetchedAt;
+    }
+
+    // Item ids the entity's claims point to, whose labels fromEntity needs
+    static Set<String> referencedItems(JSONObject entity) {
+        Set<String> ids = new LinkedHashSet<>();
+        for (JSONObject value : claimValues(entity)) {
+            if (value.optString("type").equals("wikibase-entityid")) {
+                ids.add(value.getJSONObject("value").getString("id"));
+            }
+        }
+        return ids;
+    }
+
+    static EntityFacts fromEntity(JSONObject entity, Map<String, String> labels) {
+        Map<String, List<String>> facts = new LinkedHashMap<>();
+        JSONObject claims = entity.optJSONObject("claims");
+        for (Map.Entry<String, String> property : PROPERTIES.entrySet()) {
+            List<String> values = new ArrayList<>();
+            for (JSONObject statement : kept(claims, property.getKey())) {
+                JSONObject value = statement.getJSONObject("mainsnak").optJSONObject("datavalue");
+                String text = value != null ? render(value, labels) : null;
+                if (text != null && !values.contains(text) && values.size() < MAX_VALUES) {
+                    values.add(text);
+                }
+            }
+            if (!values.isEmpty()) {
+                facts.put(property.getValue(), values);
+            }
+        }
+        return new EntityFacts(entity.getString("id"), english(entity, "labels"), english(entity, "descriptions"),
+                facts, System.currentTimeMillis());
+    }
+
+    static EntityFacts fromJson(JSONObject json) {
+        Map<String, List<String>> facts = new LinkedHashMap<>();
+        JSONObject stored = json.getJSONObject("facts");
+        // Stored objects are unordered; facts keep the order of PROPERTIES
+        for (String name : new LinkedHashSet<>(PROPERTIES.values())) {
+            JSONArray values = stored.optJSONArray(name);
+            if (values != null) {
+                List<String> list = new ArrayList<>();
+                values.forEach(value -> list.add(value.toString()));
+                facts.put(name, list);
+            }
+        }
+        return new EntityFacts(json.getString("qid"), json.optString("label"), json.optString("description"),
+                facts, json.getLong("fetchedAt"));
+    }
+
+    JSONObject toJson() {
+        JSONObject stored = new JSONObject();
+        facts.forEach((name, values) -> stored.put(name, new JSONArray(values)));
+        return new JSONObject()
+                .put("qid", qid)
+                .put("label", label)
+                .put("description", description)
+                .put("facts", stored)
+                .put("fetchedAt", fetchedAt);
+    }
+
+    public String getQid() {
+        return qid;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public long getFetchedAt() {
+        return fetchedAt;
+    }
+
+    // The values of a fact, empty if Wikidata has none
+    public List<String> get(String fact) {
+        return facts.getOrDefault(fact, Collections.emptyList());
+    }
+
+    // Age in whole years, at death for people who died; null without a full birth date
+    public Integer age() {
+        LocalDate born = date(BORN);
+        if (born == null) {
+            return null;
+        }
+        LocalDate until = get(DIED).isEmpty() ? LocalDate.now() : date(DIED);
+        return until != null ? Period.between(born, until).getYears() : null;
+    }
+
+    // Label, description and every fact, one per line, as the Wikidata agent answers
+    public String format() {
+        StringBuilder out = new StringBuilder(label).append(": ")
+                .append(description.isEmpty() ? "No description available" : description);
+        facts.forEach((name, values) -> out.append("\n").append(Character.toUpperCase(name.charAt(0)))
+                .append(name.substring(1)).append(": ").append(String.join(", ", values)));
+        Integer age = age();
+        if (age != null) {
+            out.append("\nAge: ").append(age).append(get(DIED).isEmpty() ? "" : " (at death)");
+        }
+        return out.append("\n(Wikidata ").append(qid).append(")").toString();
+    }
+
+    // A one-sentence answer about the fact, or null if Wikidata does not have it
+    public String answer(String fact) {
+        switch (fact) {
+            case "age": {
+                Integer age = age();
+                if (age == null) return null;
+                return get(DIED).isEmpty()
+                        ? String.format("%s is %d years old (born %s).", label, age, get(BORN).get(0))
+                        : String.format("%s died at the age of %d (%s to %s).", label, age, get(BORN).get(0), get(DIED).get(0));
+            }
+            case BORN:
+            case DIED:
+                return get(fact).isEmpty() ? null : String.format("%s %s on %s.", label, fact.equals(BORN) ? "was born" : "died", get(fact).get(0));
+            case BIRTHPLACE:
+                return get(fact).isEmpty() ? null : String.format("%s was born in %s.", label, get(fact).get(0));
+            default:
+                // Facts stored before only the current statement was kept may still list several
+                List<String> values = SINGLE_VALUED.contains(fact) && !get(fact).isEmpty() ? get(fact).subList(0, 1) : get(fact);
+                return values.isEmpty() ? null : String.format("%s of %s: %s.",
+                        Character.toUpperCase(fact.charAt(0)) + fact.substring(1), label, String.join(", ", values));
+        }
+    }
+
+    private LocalDate date(String fact) {
+        List<String> values = get(fact);
+        if (values.isEmpty() || values.get(0).length() < 10) {
+            return null; // only the year or month is known
+        }
+        try {
+            return LocalDate.parse(values.get(0));
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    // The statements of a property the facts are taken from: the current ones,
+    // and only the latest of those for single-valued facts
+    private static List<JSONObject> kept(JSONObject claims, String property) {
+        List<JSONObject> statements = current(claims != null ? claims.optJSONArray(property) : null);
+        if (SINGLE_VALUED.contains(PROPERTIES.get(property)) && statements.size() > 1) {
+            return Collections.singletonList(latest(statements));
+        }
+        return statements;
+    }
+
+    // The preferred statements if there are any, as Wikidata marks the current
+    // value that way, otherwise every statement that is not deprecated
+    private static List<JSONObject> current(JSONArray statements) {
+        List<JSONObject> preferred = new ArrayList<>();
+        List<JSONObject> normal = new ArrayList<>();
+        for (int i = 0; statements != null && i < statements.length(); i++) {
+            JSONObject statement = statements.getJSONObject(i);
+            String rank = statement.optString("rank");
+            if (rank.equals("preferred")) {
+                preferred.add(statement);
+            } else if (!rank.equals("deprecated")) {
+                normal.add(statement);
+            }
+        }
+        return preferred.isEmpty() ? normal : preferred;
+    }
+
+    // The statement with the latest "point in time" (P585) qualifier, else the first
+    private static JSONObject latest(List<JSONObject> statements) {
+        JSONObject latest = statements.get(0);
+        String latestTime = pointInTime(latest);
+        for (JSONObject statement : statements) {
+            String time = pointInTime(statement);
+            if (time != null && (latestTime == null || time.compareTo(latestTime) > 0)) {
+                latest = statement;
+                latestTime = time;
+            }
+        }
+        return latest;
+    }
+
+    private static String pointInTime(JSONObject statement) {
+        JSONObject qualifiers = statement.optJSONObject("qualifiers");
+        JSONArray times = qualifiers != null ? qualifiers.optJSONArray("P585") : null;
+        JSONObject value = times != null && times.length() > 0 ? times.getJSONObject(0).optJSONObject("datavalue") : null;
+        Matcher m = value != null ? TIME.matcher(value.getJSONObject("value").optString("time")) : null;
+        // Zero-padded so times compare as strings
+        return m != null && m.matches() ? String.format("%012d-%s-%s", Long.parseLong(m.group(1)), m.group(2), m.group(3)) : null;
+    }
+
+    private static List<JSONObject> claimValues(JSONObject entity) {
+        List<JSONObject> values = new ArrayList<>();
+        JSONObject claims = entity.optJSONObject("claims");
+        for (String property : PROPERTIES.keySet()) {
+            for (JSONObject statement : kept(claims, property)) {
+                JSONObject value = statement.getJSONObject("mainsnak").optJSONObject("datavalue");
+                if (value != null) {
+                    values.add(value);
+                }
+            }
+        }
+        return values;
+    }
+
+    private static String render(JSONObject datavalue, Map<String, String> labels) {
+        switch (datavalue.optString("type")) {
+            case "wikibase-entityid":
+                return labels.get(datavalue.getJSONObject("value").getString("id"));
+            case "time": {
+                JSONObject time = datavalue.getJSONObject("value");
+                Matcher m = TIME.matcher(time.getString("time"));
+                if (!m.matches()) return null;
+                String year = m.group(1).startsWith("+") ? m.group(1).substring(1) : m.group(1);
+                int precision = time.optInt("precision", 11);
+                // 9 = year, 10 = month, 11 = day
+                return precision >= 11 ? year + "-" + m.group(2) + "-" + m.group(3)
+                        : precision == 10 ? year + "-" + m.group(2) : year;
+            }
+            case "quantity": {
+                String amount = datavalue.getJSONObject("value").getString("amount");
+                return amount.startsWith("+") ? amount.substring(1) : amount;
+            }
+            case "string":
+                return datavalue.getString("value");
+            default:
+                return null;
+        }
+    }
+
+    private static String english(JSONObject entity, String field) {
+        JSONObject values = entity.optJSONObject(field);
+        return values != null && values.has("en") ? values.getJSONObject("en").getString("value") : "";
+    }
+}
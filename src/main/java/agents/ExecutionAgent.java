@@ -5,30 +5,42 @@ import jade.core.AID;
 import jade.core.behaviours.CyclicBehaviour;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
+import utils.ExpressionEvaluator;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.regex.*;
 
 public class ExecutionAgent extends Agent {
-    // Prioritized list of AI agents
-    private static final String[] AI_AGENTS = {
-            "TogetherAgent",
-            "OpenRouterAgent",
-            "DeepInfraAgent",
-            "LangsearchAgent",
-            "DeepInfraAgent"
-    };
+    private static final int MAX_AGENT_CALLS = Integer.getInteger("execution.maxAgentCalls", 16);
+
+    // Requests to AI agents in flight for all subqueries together, live queries first
+    private PriorityExecutor agentCalls;
+    // AI agents currently registered with the DF
+    private ServiceDirectory directory;
+    // Cached answers, spread over the InternalAgent shards
+    private KnowledgeClient knowledge;
+    // Spreads requests for an AI agent over its registered replicas
+    private ReplicaBalancer replicas;
 
     protected void setup() {
         System.out.println("ExecutionAgent " + getAID().getName() + " is ready.");
+        agentCalls = new PriorityExecutor("execution-agent-calls", MAX_AGENT_CALLS);
+        directory = new ServiceDirectory(this);
+        directory.start();
+        replicas = new ReplicaBalancer(directory);
+        knowledge = new KnowledgeClient(this);
+        knowledge.start();
 
         addBehaviour(new CyclicBehaviour(this) {
+            // Live queries first; the priority is also forwarded to the AI agents
+            private final PriorityInbox inbox = new PriorityInbox(myAgent, MessageTemplate.MatchPerformative(ACLMessage.REQUEST));
             private final Map<String, String> context = new ConcurrentHashMap<>();
 
             public void action() {
-                ACLMessage msg = receive(MessageTemplate.MatchPerformative(ACLMessage.REQUEST));
+                ACLMessage msg = inbox.next();
                 if (msg != null) {
                     String query = msg.getContent();
+                    QueryPriority priority = QueryPriority.of(msg);
                     context.clear();
                     updateContext(query);
                     System.out.println("Processing complex query: " + query);
@@ -44,7 +56,7 @@ public class ExecutionAgent extends Agent {
                     for (String subQuery : subQueries) {
                         futures.add(executor.submit(() -> {
                             String resolvedQuery = resolvePronouns(subQuery);
-                            return processSubQuery(resolvedQuery);
+                            return processSubQuery(resolvedQuery, priority);
                         }));
                     }
 
@@ -94,48 +106,72 @@ public class ExecutionAgent extends Agent {
             }
 
             // Enhanced subquery processing
-            private String processSubQuery(String subQuery) {
+            private String processSubQuery(String subQuery, QueryPriority priority) {
                 if (subQuery.isEmpty()) return "";
 
+                String calculated = ExpressionEvaluator.answer(subQuery);
+                if (calculated != null) {
+                    return formatResult(subQuery, calculated, "ExpressionEvaluator");
+                }
+
+                // Facts about people and things asked about before are local
+                String factAnswer = EntityFactStore.shared().answer(subQuery);
+                if (factAnswer != null) {
+                    return formatResult(subQuery, factAnswer, "EntityFactStore");
+                }
+
                 // Check cache first
                 String cacheKey = subQuery + (context.containsKey("current_subject") ?
                         "|" + context.get("current_subject") : "");
-                String cachedResponse = KnowledgeStorage.retrieve(cacheKey);
+                String cachedResponse = knowledge.retrieve(cacheKey);
                 if (cachedResponse != null) {
                     return formatResult(subQuery, cachedResponse, "Cached Knowledge");
                 }
 
-                // Query agents in parallel
+                // Query agents in parallel, cheapest first
+                List<String> aiAgents = directory.servicesWith(ServiceDirectory.SUB_QUERY);
                 Map<String, String> resultsByAgent = new ConcurrentHashMap<>();
-                CountDownLatch latch = new CountDownLatch(AI_AGENTS.length);
+                CountDownLatch latch = new CountDownLatch(aiAgents.size());
+                List<Future<?>> calls = new ArrayList<>();
 
-                for (String agentName : AI_AGENTS) {
-                    new Thread(() -> {
+                for (String agentName : aiAgents) {
+                    calls.add(agentCalls.submit(priority, () -> {
                         try {
                             String processedQuery = preprocessForAgent(subQuery, agentName);
-                            ACLMessage request = new ACLMessage(ACLMessage.REQUEST);
-                            request.addReceiver(new AID(agentName, AID.ISLOCALNAME));
-                            request.setContent(processedQuery);
-                            send(request);
-
-                            ACLMessage reply = blockingReceive(
-                                    MessageTemplate.and(
-                                            MessageTemplate.MatchPerformative(ACLMessage.INFORM),
-                                            MessageTemplate.MatchSender(new AID(agentName, AID.ISLOCALNAME))
-                                    ),
-                                    15000 // 15 second timeout
-                            );
+                            String conversationId = agentName + "-" + UUID.randomUUID();
+                            AID replica = replicas.acquire(agentName);
+                            if (replica == null) {
+                                return; // deregistered since the list was taken
+                            }
+                            ACLMessage reply;
+                            try {
+                                ACLMessage request = new ACLMessage(ACLMessage.REQUEST);
+                                request.addReceiver(replica);
+                                request.setConversationId(conversationId);
+                                priority.applyTo(request);
+                                request.setContent(processedQuery);
+                                send(request);
+
+                                reply = blockingReceive(
+                                        MessageTemplate.and(
+                                                MessageTemplate.MatchPerformative(ACLMessage.INFORM),
+                                                MessageTemplate.MatchConversationId(conversationId)
+                                        ),
+                                        15000 // 15 second timeout
+                                );
+                            } finally {
+                                replicas.release(replica);
+                            }
 
                             if (reply != null && isValidResponse(reply.getContent(), agentName)) {
                                 resultsByAgent.put(agentName, reply.getContent());
-                                extractContextFromResponse(reply.getContent());
                             }
                         } catch (Exception e) {
                             System.err.println("Error querying " + agentName + ": " + e.getMessage());
                         } finally {
                             latch.countDown();
                         }
-                    }).start();
+                    }));
                 }
 
                 try {
@@ -143,13 +179,19 @@ public class ExecutionAgent extends Agent {
                 } catch (InterruptedException e) {
                     System.err.println("Query processing interrupted");
                 }
+                // Calls still queued for a thread are no longer worth making
+                for (Future<?> call : calls) {
+                    call.cancel(false);
+                }
+
+                updateContextFromFacts();
 
                 // Compile and store results
                 StringBuilder subResult = new StringBuilder();
                 StringBuilder validResponses = new StringBuilder();
 
                 // Prioritize AI responses
-                for (String agentName : AI_AGENTS) {
+                for (String agentName : aiAgents) {
                     String result = resultsByAgent.get(agentName);
                     if (result != null) {
                         String formatted = formatResult(subQuery, result, agentName);
@@ -159,7 +201,7 @@ public class ExecutionAgent extends Agent {
                 }
 
                 if (validResponses.length() > 0) {
-                    KnowledgeStorage.store(cacheKey, validResponses.toString());
+                    knowledge.store(cacheKey, validResponses.toString());
                     return subResult.toString();
                 }
 
@@ -185,7 +227,7 @@ public class ExecutionAgent extends Agent {
                                 .replaceAll("\\?$", "")
                                 .trim();
                         break;
-                    case "LangsearchAgent":
+                    case "LangSearchAgent":
                         // Keep original query format
                         break;
                 }
@@ -216,18 +258,23 @@ public class ExecutionAgent extends Agent {
                     case "DeepInfraAgent":
                         return !lowerResponse.matches(".*\\b(sorry|unable|cannot|don't know)\\b.*") &&
                                 response.length() > 50;
-                    case "LangsearchAgent":
+                    case "LangSearchAgent":
                         return response.split("\n").length >= 3; // At least title + URL + snippet
                     default:
                         return response.length() > 30;
                 }
             }
 
-            private void extractContextFromResponse(String response) {
-                if (context.containsKey("current_subject") &&
-                        response.matches(".*\\b(born|age)\\b.*\\d{4}.*")) {
-                    String ageInfo = response.replaceAll(".*\\b(born|age)\\b.*?(\\d{4}).*", "$2");
-                    context.put(context.get("current_subject") + "_age", ageInfo);
+            private void updateContextFromFacts() {
+                String subject = context.get("current_subject");
+                if (subject == null) {
+                    return;
+                }
+                EntityFacts facts = EntityFactStore.shared().cached(subject);
+                if (facts == null) {
+                    EntityFactStore.shared().refresh(subject);
+                } else if (facts.age() != null) {
+                    context.put(subject + "_age", String.valueOf(facts.age()));
                 }
             }
 
@@ -237,4 +284,9 @@ public class ExecutionAgent extends Agent {
             }
         });
     }
+
+    protected void takeDown() {
+        if (agentCalls != null) agentCalls.shutdownNow();
+        System.out.println("ExecutionAgent " + getAID().getName() + " terminating.");
+    }
 }
\ No newline at end of file
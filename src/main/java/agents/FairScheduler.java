@@ -0,0 +1,135 @@
+package agents;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Fixed pool of fan-out slots shared by all sessions. Higher {@link QueryPriority}
+ * work always goes first; within a priority, sessions are served by deficit round
+ * robin so a client with many queued requests cannot starve the others.
+ */
+public class FairScheduler {
+    // Cost units a session may spend per round
+    private static final int QUANTUM = 2;
+
+    private final List<Map<String, SessionQueue>> queuesByPriority = new ArrayList<>();
+    private final List<Deque<SessionQueue>> activeByPriority = new ArrayList<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private boolean shutdown = false;
+
+    public FairScheduler(String name, int slots) {
+        for (int i = 0; i < QueryPriority.values().length; i++) {
+            queuesByPriority.add(new HashMap<>());
+            activeByPriority.add(new ArrayDeque<>());
+        }
+
+        ThreadFactory threads = PriorityExecutor.namedThreads(name);
+        for (int i = 0; i < slots; i++) {
+            Thread worker = threads.newThread(this::runWorker);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    public <T> Future<T> submit(String sessionId, QueryPriority priority, int cost, Callable<T> task) {
+        FutureTask<T> future = new FutureTask<>(task);
+        synchronized (this) {
+            if (shutdown) {
+                throw new RejectedExecutionException("Scheduler is shut down");
+            }
+            Map<String, SessionQueue> queues = queuesByPriority.get(priority.ordinal());
+            SessionQueue queue = queues.computeIfAbsent(sessionId, SessionQueue::new);
+            if (queue.tasks.isEmpty()) {
+                activeByPriority.get(priority.ordinal()).addLast(queue);
+            }
+            queue.tasks.addLast(new Entry(future, Math.max(1, cost)));
+            notify();
+        }
+        return future;
+    }
+
+    public Future<?> submit(String sessionId, QueryPriority priority, Runnable task) {
+        return submit(sessionId, priority, 1, Executors.callable(task));
+    }
+
+    public synchronized void shutdownNow() {
+        shutdown = true;
+        workers.forEach(Thread::interrupt);
+        notifyAll();
+    }
+
+    private void runWorker() {
+        while (true) {
+            Runnable task;
+            try {
+                task = take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (task == null) {
+                return;
+            }
+            task.run();
+        }
+    }
+
+    private synchronized Runnable take() throws InterruptedException {
+        while (!shutdown) {
+            for (int p = 0; p < activeByPriority.size(); p++) {
+                Deque<SessionQueue> active = activeByPriority.get(p);
+                if (!active.isEmpty()) {
+                    return nextFrom(active, queuesByPriority.get(p));
+                }
+            }
+            wait();
+        }
+        return null;
+    }
+
+    // Deficit round robin: the session at the head keeps its turn while its deficit covers
+    // the cost of its next task, then goes to the back of the line
+    private Runnable nextFrom(Deque<SessionQueue> active, Map<String, SessionQueue> queues) {
+        while (true) {
+            SessionQueue queue = active.peekFirst();
+            if (!queue.hasTurn) {
+                queue.deficit += QUANTUM;
+                queue.hasTurn = true;
+            }
+
+            Entry head = queue.tasks.peekFirst();
+            if (queue.deficit >= head.cost) {
+                queue.tasks.pollFirst();
+                queue.deficit -= head.cost;
+                if (queue.tasks.isEmpty()) {
+                    active.pollFirst();
+                    queues.remove(queue.sessionId);
+                }
+                return head.task;
+            }
+
+            queue.hasTurn = false;
+            active.addLast(active.pollFirst());
+        }
+    }
+
+    private static class SessionQueue {
+        final String sessionId;
+        final Deque<Entry> tasks = new ArrayDeque<>();
+        int deficit = 0;
+        boolean hasTurn = false;
+
+        SessionQueue(String sessionId) {
+            this.sessionId = sessionId;
+        }
+    }
+
+    private static class Entry {
+        final Runnable task;
+        final int cost;
+
+        Entry(Runnable task, int cost) {
+            this.task = task;
+            this.cost = cost;
+        }
+    }
+}
@@ -1,11 +1,6 @@
 package agents;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
-
 import javax.swing.*;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -13,21 +8,17 @@ import java.util.List;
 import java.util.function.Consumer;
 
 public class HistoryLoader {
-    private static final String STORAGE_FILE = "knowledge_base.json";
+    private static final String STORAGE_FILE = KnowledgeStorage.DEFAULT_FILE;
 
     public static void loadHistory(JPanel historyPanel, Consumer<String> clickAction) {
         try {
-            if (Files.exists(Paths.get(STORAGE_FILE))) {
-                String content = new String(Files.readAllBytes(Paths.get(STORAGE_FILE)));
-                JSONArray knowledgeArray = new JSONArray(content);
-
+            List<KnowledgeStorage.Entry> history = KnowledgeStorage.open(STORAGE_FILE)
+                    .scanByTime(0, Long.MAX_VALUE, Integer.MAX_VALUE);
+            if (!history.isEmpty()) {
                 List<HistoryItem> historyItems = new ArrayList<>();
 
-                for (int i = 0; i < knowledgeArray.length(); i++) {
-                    JSONObject entry = knowledgeArray.getJSONObject(i);
-                    String query = entry.getString("query");
-                    long timestamp = entry.getLong("timestamp");
-                    historyItems.add(new HistoryItem(query, timestamp, clickAction));
+                for (KnowledgeStorage.Entry entry : history) {
+                    historyItems.add(new HistoryItem(entry.getQuery(), entry.getTimestamp(), clickAction));
                 }
 
                 // Sort by timestamp (newest first)
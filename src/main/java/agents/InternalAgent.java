@@ -1,11 +1,17 @@
 package agents;
 
+import jade.core.AID;
 import jade.core.Agent;
 import jade.core.behaviours.CyclicBehaviour;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
+import agents.ontology.PayloadCompression;
+import agents.ontology.SearchOntology;
+import agents.ontology.SourceResult;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 
@@ -16,39 +22,96 @@ import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
 
 public class InternalAgent extends Agent {
+    // Shards running in this JVM, so co-located clients can skip ACL messaging
+    private static final Map<String, KnowledgeStore> LOCAL_SHARDS = new ConcurrentHashMap<>();
+
+    // This shard's entries; the first argument overrides the file name
+    private KnowledgeStore storage;
+
     protected void setup() {
-        System.out.println("InternalAgent " + getAID().getName() + " is ready.");
+        Object[] args = getArguments();
+        String storageFile = args != null && args.length > 0 ? String.valueOf(args[0])
+                : getLocalName().equals("InternalAgent") ? KnowledgeStorage.DEFAULT_FILE
+                : "knowledge_base-" + getLocalName() + ".json";
+        storage = KnowledgeStorage.open(storageFile);
+        System.out.println("InternalAgent " + getAID().getName() + " is ready, storing to " + storageFile);
+
+        // Clients hash keys over all registered shards and prefer ones close to them
+        Map<String, String> location = new HashMap<>();
+        location.put(KnowledgeClient.CONTAINER, here().getName());
+        location.put(KnowledgeClient.HOST, here().getAddress());
+        location.put(PayloadCompression.ACCEPT_ENCODING, PayloadCompression.DEFLATE);
+        LOCAL_SHARDS.put(getAID().getName(), storage);
+        ServiceRegistry.register(this, KnowledgeClient.SERVICE_TYPE, location);
 
         addBehaviour(new CyclicBehaviour(this) {
+            private final MessageTemplate template = MessageTemplate.or(
+                    MessageTemplate.MatchPerformative(ACLMessage.QUERY_IF),
+                    MessageTemplate.MatchPerformative(ACLMessage.INFORM));
+
+            // Handles everything queued before blocking again, in arrival order
             public void action() {
-                // Handle knowledge checks
-                ACLMessage queryMsg = receive(MessageTemplate.MatchPerformative(ACLMessage.QUERY_IF));
-                if (queryMsg != null) {
-                    String query = queryMsg.getContent();
-                    String response = KnowledgeStorage.retrieve(query);
-
-                    ACLMessage reply = queryMsg.createReply();
-                    if (response != null) {
-                        reply.setPerformative(ACLMessage.CONFIRM);
-                        reply.setContent(response); // Return clean response without source prefix
+                ACLMessage msg;
+                while ((msg = receive(template)) != null) {
+                    if (msg.getPerformative() == ACLMessage.QUERY_IF) {
+                        handleQuery(msg);
                     } else {
-                        reply.setPerformative(ACLMessage.DISCONFIRM);
+                        handleStore(msg);
                     }
-                    send(reply);
                 }
+                block();
+            }
 
-                // Handle knowledge storage
-                ACLMessage informMsg = receive(MessageTemplate.MatchPerformative(ACLMessage.INFORM));
-                if (informMsg != null) {
-                    String content = informMsg.getContent();
-                    String[] parts = content.split("::", 2);
-                    if (parts.length == 2 && !parts[1].contains("Error fetching")) {
-                        KnowledgeStorage.store(parts[0], parts[1]);
-                    }
+            // Handle knowledge checks
+            private void handleQuery(ACLMessage queryMsg) {
+                String query = SearchOntology.queryText(queryMsg);
+                String response = storage.get(query);
+
+                ACLMessage reply = queryMsg.createReply();
+                if (response != null) {
+                    reply.setPerformative(ACLMessage.CONFIRM);
+                    // Return clean response without source prefix
+                    SearchOntology.setResult(myAgent, reply, queryMsg, getLocalName(), response);
+                } else {
+                    reply.setPerformative(ACLMessage.DISCONFIRM);
                 }
+                send(reply);
+            }
 
-                block();
+            // Handle knowledge storage
+            private void handleStore(ACLMessage informMsg) {
+                Object decoded = SearchOntology.getContent(informMsg);
+                if (decoded instanceof SourceResult) {
+                    SourceResult result = (SourceResult) decoded;
+                    storage.put(result.getQuery(), result.getContent());
+                    return;
+                }
+
+                // Plain "query::response" text from older senders
+                String content = informMsg.getContent();
+                String[] parts = content.split("::", 2);
+                if (parts.length == 2 && !parts[1].contains("Error fetching")) {
+                    storage.put(parts[0], parts[1]);
+                }
             }
         });
     }
-}
\ No newline at end of file
+
+    protected void takeDown() {
+        LOCAL_SHARDS.remove(getAID().getName());
+        ServiceRegistry.deregister(this);
+        storage.force();
+        storage.checkpoint();
+        System.out.println("InternalAgent " + getLocalName() + " stopped with " + storage.stats());
+    }
+
+    // The shard behind this AID if it lives in this JVM, otherwise null
+    public static KnowledgeService localShard(AID shard) {
+        return LOCAL_SHARDS.get(shard.getName());
+    }
+
+    // Every shard living in this JVM, by agent name
+    public static Map<String, KnowledgeStore> localShards() {
+        return Collections.unmodifiableMap(LOCAL_SHARDS);
+    }
+}
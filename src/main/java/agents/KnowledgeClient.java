@@ -0,0 +1,163 @@
+package agents;
+
+import jade.core.AID;
+import jade.core.Agent;
+import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.Property;
+import jade.domain.FIPAAgentManagement.ServiceDescription;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+import agents.ontology.PayloadCompression;
+import agents.ontology.Query;
+import agents.ontology.SearchOntology;
+import agents.ontology.SourceResult;
+import utils.ConsistentHashRing;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Client side of the sharded knowledge tier. InternalAgents register with the DF
+ * as "knowledge"; each query key is owned by the next {@code replicas} of them
+ * on a consistent hash ring. Writes go to every owner, reads go to the nearest
+ * owner (same JVM, same container, then same host) and move on to the next one
+ * if it does not answer in time. Shards in the same JVM are called directly
+ * instead of through ACL messages.
+ *
+ * Until any InternalAgent has registered, the shared knowledge_base.json is used
+ * directly so single-process setups keep working.
+ */
+public class KnowledgeClient {
+    public static final String SERVICE_TYPE = "knowledge";
+    public static final String CONTAINER = "container";
+    public static final String HOST = "host";
+
+    // -Dknowledge.replicas=N keeps each entry on N InternalAgents
+    private static final int REPLICAS = Math.max(1, Integer.getInteger("knowledge.replicas", 2));
+    private static final long READ_TIMEOUT_MS = 2000;
+
+    private final Agent agent;
+    private final ConsistentHashRing<AID> ring = new ConsistentHashRing<>();
+    private final Map<AID, String[]> locations = new ConcurrentHashMap<>();
+
+    public KnowledgeClient(Agent agent) {
+        this.agent = agent;
+    }
+
+    // Call from setup()
+    public void start() {
+        ServiceRegistry.subscribe(agent, SERVICE_TYPE, this::update);
+    }
+
+    public String retrieve(String query) {
+        List<AID> owners = ownersOf(query);
+        if (owners.isEmpty()) {
+            return KnowledgeStorage.retrieve(query);
+        }
+
+        for (AID owner : owners) {
+            KnowledgeService local = InternalAgent.localShard(owner);
+            if (local != null) {
+                return local.get(query);
+            }
+
+            String conversationId = "knowledge-" + UUID.randomUUID();
+            ACLMessage request = new ACLMessage(ACLMessage.QUERY_IF);
+            request.addReceiver(owner);
+            request.setConversationId(conversationId);
+            SearchOntology.setContent(request, new Query(query));
+            PayloadCompression.advertise(agent, request);
+            agent.send(request);
+
+            ACLMessage reply = agent.blockingReceive(MessageTemplate.and(
+                    MessageTemplate.or(
+                            MessageTemplate.MatchPerformative(ACLMessage.CONFIRM),
+                            MessageTemplate.MatchPerformative(ACLMessage.DISCONFIRM)),
+                    MessageTemplate.MatchConversationId(conversationId)), READ_TIMEOUT_MS);
+            if (reply == null) {
+                System.out.println("Knowledge shard " + owner.getLocalName() + " did not answer, trying next replica");
+                continue;
+            }
+            return reply.getPerformative() == ACLMessage.CONFIRM ? SearchOntology.resultText(reply) : null;
+        }
+        return null;
+    }
+
+    public void store(String query, String response) {
+        List<AID> owners = ownersOf(query);
+        if (owners.isEmpty()) {
+            KnowledgeStorage.store(query, response);
+            return;
+        }
+
+        // One message per shard, so each can get the encoding it accepts
+        for (AID owner : owners) {
+            KnowledgeService local = InternalAgent.localShard(owner);
+            if (local != null) {
+                local.put(query, response);
+                continue;
+            }
+
+            ACLMessage inform = new ACLMessage(ACLMessage.INFORM);
+            inform.addReceiver(owner);
+            SearchOntology.setContent(inform, new SourceResult(query, agent.getLocalName(), response));
+            if (acceptsCompression(owner)) {
+                PayloadCompression.compress(inform);
+            }
+            agent.send(inform);
+        }
+    }
+
+    // The key's owners, nearest first
+    private List<AID> ownersOf(String query) {
+        List<AID> owners = ring.get(query.toLowerCase(), REPLICAS);
+        String container = agent.here().getName();
+        String host = agent.here().getAddress();
+        owners.sort(Comparator.comparingInt(owner -> distance(owner, container, host)));
+        return owners;
+    }
+
+    // Shards in other containers that said they can inflate
+    private boolean acceptsCompression(AID owner) {
+        String[] location = locations.get(owner);
+        return location != null && PayloadCompression.DEFLATE.equals(location[2])
+                && !agent.here().getName().equals(location[0]);
+    }
+
+    private int distance(AID owner, String container, String host) {
+        if (InternalAgent.localShard(owner) != null) return -1;
+        String[] location = locations.get(owner);
+        if (location == null) return 2;
+        if (container.equals(location[0])) return 0;
+        if (host != null && host.equals(location[1])) return 1;
+        return 2;
+    }
+
+    private void update(AID provider, boolean registered, DFAgentDescription description) {
+        if (!registered) {
+            ring.remove(provider);
+            locations.remove(provider);
+            System.out.println("Knowledge shard " + provider.getLocalName() + " left");
+            return;
+        }
+
+        Iterator<?> services = description.getAllServices();
+        while (services.hasNext()) {
+            ServiceDescription sd = (ServiceDescription) services.next();
+            String container = null;
+            String host = null;
+            String acceptEncoding = null;
+            Iterator<?> properties = sd.getAllProperties();
+            while (properties.hasNext()) {
+                Property p = (Property) properties.next();
+                if (CONTAINER.equals(p.getName())) container = String.valueOf(p.getValue());
+                if (HOST.equals(p.getName())) host = String.valueOf(p.getValue());
+                if (PayloadCompression.ACCEPT_ENCODING.equals(p.getName())) acceptEncoding = String.valueOf(p.getValue());
+            }
+            locations.put(provider, new String[]{container, host, acceptEncoding});
+        }
+        // Local names are the same in every process, so all clients build the same ring
+        ring.add(provider, provider.getLocalName());
+        System.out.println("Knowledge shard " + provider.getLocalName() + " joined");
+    }
+}
@@ -0,0 +1,27 @@
+package agents;
+
+import java.util.Map;
+
+/**
+ * What a knowledge shard offers. Callers in the same JVM as the shard use it
+ * directly; remote callers reach it through QUERY_IF / INFORM messages.
+ */
+public interface KnowledgeService {
+    // The cached response, or null on a miss
+    String get(String query);
+
+    void put(String query, String response);
+
+    // Stores several entries, in iteration order, with as few writes as the store allows
+    default void putAll(Map<String, String> entries) {
+        entries.forEach(this::put);
+    }
+
+    // Makes what has been stored so far survive a crash of the machine
+    default void force() {
+    }
+
+    // Writes whatever lets the next start open the store quickly
+    default void checkpoint() {
+    }
+}
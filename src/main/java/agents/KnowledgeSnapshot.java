@@ -0,0 +1,119 @@
+package agents;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary copy of a knowledge file, written next to it after every save so the
+ * next start reads one file sequentially instead of parsing JSON. It records the
+ * size and modification time of the JSON file it was taken from and is ignored
+ * once they no longer match.
+ *
+ * Layout: magic, version, JSON size, JSON mtime, entry count, entries (query,
+ * timestamp, fragment ids), fragment count, fragments (id, deflated flag, bytes).
+ * Entries come first so the history can be read without the fragments.
+ */
+public class KnowledgeSnapshot {
+    private static final int MAGIC = 0x4b534e50; // "KSNP"
+    private static final int VERSION = 1;
+
+    final List<KnowledgeStorage.Entry> entries = new ArrayList<>();
+    final Map<String, KnowledgeStorage.Fragment> fragments;
+
+    private KnowledgeSnapshot(Map<String, KnowledgeStorage.Fragment> fragments) {
+        this.fragments = fragments;
+    }
+
+    // knowledge_base.json -> knowledge_base.snap
+    public static Path fileFor(String storageFile) {
+        int dot = storageFile.lastIndexOf('.');
+        return Paths.get((dot > 0 ? storageFile.substring(0, dot) : storageFile) + ".snap");
+    }
+
+    public static void write(String storageFile, List<KnowledgeStorage.Entry> entries,
+                             Map<String, KnowledgeStorage.Fragment> fragments) throws IOException {
+        BasicFileAttributes json = Files.readAttributes(Paths.get(storageFile), BasicFileAttributes.class);
+        Path snapshot = fileFor(storageFile);
+        Path temp = Paths.get(snapshot + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(json.size());
+            out.writeLong(json.lastModifiedTime().toMillis());
+
+            out.writeInt(entries.size());
+            for (KnowledgeStorage.Entry entry : entries) {
+                writeBytes(out, entry.getQuery().getBytes(StandardCharsets.UTF_8));
+                out.writeLong(entry.getTimestamp());
+                out.writeInt(entry.getFragmentIds().size());
+                for (String id : entry.getFragmentIds()) {
+                    writeBytes(out, id.getBytes(StandardCharsets.US_ASCII));
+                }
+            }
+
+            out.writeInt(fragments.size());
+            for (Map.Entry<String, KnowledgeStorage.Fragment> fragment : fragments.entrySet()) {
+                writeBytes(out, fragment.getKey().getBytes(StandardCharsets.US_ASCII));
+                out.writeBoolean(fragment.getValue().deflated);
+                writeBytes(out, fragment.getValue().data);
+            }
+        }
+        Files.move(temp, snapshot, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // The snapshot of the file, or null if there is none or it is out of date
+    static KnowledgeSnapshot read(String storageFile, boolean withFragments) throws IOException {
+        Path snapshot = fileFor(storageFile);
+        Path path = Paths.get(storageFile);
+        if (!Files.exists(snapshot) || !Files.exists(path)) {
+            return null;
+        }
+        BasicFileAttributes json = Files.readAttributes(path, BasicFileAttributes.class);
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(snapshot));
+        if (in.remaining() < 24 || in.getInt() != MAGIC || in.getInt() != VERSION
+                || in.getLong() != json.size() || in.getLong() != json.lastModifiedTime().toMillis()) {
+            return null;
+        }
+
+        KnowledgeSnapshot result = new KnowledgeSnapshot(new java.util.HashMap<>());
+        int entryCount = in.getInt();
+        for (int i = 0; i < entryCount; i++) {
+            String query = new String(readBytes(in), StandardCharsets.UTF_8);
+            long timestamp = in.getLong();
+            int idCount = in.getInt();
+            List<String> ids = new ArrayList<>(idCount);
+            for (int j = 0; j < idCount; j++) {
+                ids.add(new String(readBytes(in), StandardCharsets.US_ASCII));
+            }
+            result.entries.add(new KnowledgeStorage.Entry(query, timestamp, ids, i - entryCount));
+        }
+        if (!withFragments) {
+            return result;
+        }
+
+        int fragmentCount = in.getInt();
+        for (int i = 0; i < fragmentCount; i++) {
+            String id = new String(readBytes(in), StandardCharsets.US_ASCII);
+            boolean deflated = in.get() != 0;
+            result.fragments.put(id, new KnowledgeStorage.Fragment(deflated, readBytes(in)));
+        }
+        return result;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return bytes;
+    }
+}
@@ -3,101 +3,555 @@ package agents;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import java.io.*;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-public class KnowledgeStorage {
-    private static final String STORAGE_FILE = "knowledge_base.json";
-    private static Map<String, String> knowledgeMap = new HashMap<>();
+/**
+ * Cached query responses persisted to a JSON file. Each InternalAgent owns one
+ * instance over its own file; the static store/retrieve methods use the shared
+ * knowledge_base.json for callers that are not part of the knowledge tier.
+ *
+ * Responses are kept as content-addressed fragments (see {@link ResponseFragments}),
+ * so an extract that appears in many answers is stored once:
+ * <pre>
+ * {"version": 2,
+ *  "fragments": {"&lt;id&gt;": {"text": "..."} or {"deflate": "&lt;base64&gt;"}, ...},
+ *  "entries": [{"query": "...", "timestamp": 0, "fragments": ["&lt;id&gt;", ...]}, ...]}
+ * </pre>
+ * Files in the old format (an array of query/response/timestamp objects) are
+ * read as well and rewritten in this format on the next store.
+ *
+ * Reads take no lock: entries are immutable and replaced whole in concurrent
+ * maps, each carrying a version that orders them. Writers only lock the stripe
+ * of their key; dropping fragments nothing refers to any more shuts them out
+ * briefly, and only after entries were replaced or deleted.
+ *
+ * Writes are saved together: a saver thread rewrites the file at most once per
+ * -Dknowledge.saveMs (default 1000), and force() and checkpoint() save at once.
+ *
+ * The file is loaded on a background thread, from the {@link KnowledgeSnapshot}
+ * when that is current, so creating a store never waits for it. Lookups made
+ * before loading finishes miss unless the entry was written since.
+ */
+public class KnowledgeStorage implements KnowledgeStore {
+    public static final String DEFAULT_FILE = "knowledge_base.json";
+    private static final int FORMAT_VERSION = 2;
+    // -Dknowledge.store picks the backend: json (this class), mapped (MappedResponseStore,
+    // responses off-heap) or lsm (LsmKnowledgeStore, an embedded key-value store)
+    private static final String BACKEND = System.getProperty("knowledge.store", "json");
+    private static final long SAVE_INTERVAL_MS = Long.getLong("knowledge.saveMs", 1000);
 
-    static {
-        loadKnowledge();
+    // One instance per file, so agents in the same JVM never keep diverging copies
+    private static final Map<String, KnowledgeStorage> BY_FILE = new HashMap<>();
+    private static final Map<String, KnowledgeStore> OPEN = new HashMap<>();
+    private static final int STRIPES = 32;
+
+    public static class Entry {
+        private final String query;
+        private final long timestamp;
+        private final List<String> fragmentIds;
+        // Order of the writes, newer entries have higher versions
+        private final long version;
+
+        Entry(String query, long timestamp, List<String> fragmentIds, long version) {
+            this.query = query;
+            this.timestamp = timestamp;
+            this.fragmentIds = fragmentIds;
+            this.version = version;
+        }
+
+        public String getQuery() {
+            return query;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        List<String> getFragmentIds() {
+            return fragmentIds;
+        }
+    }
+
+    // A fragment as stored: UTF-8 text, or that text deflated
+    static class Fragment {
+        final boolean deflated;
+        final byte[] data;
+
+        Fragment(boolean deflated, byte[] data) {
+            this.deflated = deflated;
+            this.data = data;
+        }
+
+        String text() throws Exception {
+            return deflated ? ResponseFragments.decompress(data) : new String(data, StandardCharsets.UTF_8);
+        }
+    }
+
+    private final String storageFile;
+    // Lower-cased query -> latest entry
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    // Fragment id -> its stored form, inflated only when a response is read
+    private final Map<String, Fragment> fragments = new ConcurrentHashMap<>();
+    private final AtomicLong versions = new AtomicLong();
+    private final Object[] stripes = new Object[STRIPES];
+    // Writers share it, a save takes it exclusively while it snapshots
+    private final ReadWriteLock structure = new ReentrantReadWriteLock();
+    // Saves run one at a time, so an older snapshot never overwrites a newer one
+    private final Object saveLock = new Object();
+    // Set by writes not saved yet; the saver thread waits on saveSignal for it
+    private volatile boolean dirty;
+    private final Object saveSignal = new Object();
+    // Entries replaced or deleted since fragments were last pruned
+    private final AtomicLong stale = new AtomicLong();
+    private final CountDownLatch loaded = new CountDownLatch(1);
+    private final AtomicLong missesWhileLoading = new AtomicLong();
+
+    private KnowledgeStorage(String storageFile) {
+        this.storageFile = storageFile;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+        Thread loader = new Thread(this::loadKnowledge, "knowledge-loader-" + storageFile);
+        loader.setDaemon(true);
+        loader.start();
+        Thread saver = new Thread(this::saveLoop, "knowledge-saver-" + storageFile);
+        saver.setDaemon(true);
+        saver.start();
+    }
+
+    public static synchronized KnowledgeStorage forFile(String storageFile) {
+        return BY_FILE.computeIfAbsent(storageFile, KnowledgeStorage::new);
+    }
+
+    // The store for a knowledge file in the configured backend, behind a write-behind queue
+    public static synchronized KnowledgeStore open(String storageFile) {
+        return OPEN.computeIfAbsent(storageFile, file -> new WriteBehindStore(backingStore(file), file));
+    }
+
+    private static KnowledgeStore backingStore(String storageFile) {
+        switch (BACKEND) {
+            case "mapped": {
+                MappedResponseStore store = MappedResponseStore.forFile(MappedResponseStore.dataFileFor(storageFile));
+                if (store.size() == 0 && Files.exists(Paths.get(storageFile))) {
+                    // First start in mapped mode: carry over what the JSON file has
+                    KnowledgeStorage json = forFile(storageFile);
+                    for (Entry entry : json.history()) {
+                        store.put(entry.getQuery(), json.get(entry.getQuery()), entry.getTimestamp());
+                    }
+                    System.out.println("Imported " + store.size() + " entries from " + storageFile);
+                }
+                return store;
+            }
+            case "lsm": {
+                LsmKnowledgeStore store = LsmKnowledgeStore.forDirectory(LsmKnowledgeStore.directoryFor(storageFile));
+                if (store.isEmpty() && Files.exists(Paths.get(storageFile))) {
+                    KnowledgeStorage json = forFile(storageFile);
+                    Map<String, String> responses = new LinkedHashMap<>();
+                    Map<String, Long> timestamps = new HashMap<>();
+                    for (Entry entry : json.history()) {
+                        responses.put(entry.getQuery(), json.get(entry.getQuery()));
+                        timestamps.put(entry.getQuery(), entry.getTimestamp());
+                    }
+                    store.putAll(responses, timestamps);
+                    System.out.println("Imported " + responses.size() + " entries from " + storageFile);
+                }
+                return store;
+            }
+            case "json":
+                return forFile(storageFile);
+            default:
+                throw new IllegalArgumentException("Unknown knowledge.store " + BACKEND + ", expected json, mapped or lsm");
+        }
+    }
+
+    public static void store(String query, String response) {
+        open(DEFAULT_FILE).put(query, response);
     }
 
-    public static synchronized void store(String query, String response) {
+    public static String retrieve(String query) {
+        return open(DEFAULT_FILE).get(query);
+    }
+
+    // Error responses are not worth caching
+    public static boolean isCacheable(String response) {
+        return response != null && !response.contains("Error fetching") &&
+                !response.contains("No result") && !response.contains("HTTP error") &&
+                !response.contains("API Error");
+    }
+
+    public String getStorageFile() {
+        return storageFile;
+    }
+
+    public boolean isLoaded() {
+        return loaded.getCount() == 0;
+    }
+
+    public void put(String query, String response) {
         // Don't store error responses
-        if (response == null || response.contains("Error fetching") ||
-                response.contains("No result") || response.contains("HTTP error") ||
-                response.contains("API Error")) {
+        if (!isCacheable(response)) {
             return;
         }
 
+        addEntry(query, response);
+        markDirty();
+    }
+
+    public void putAll(Map<String, String> batch) {
+        boolean changed = false;
+        for (Map.Entry<String, String> entry : batch.entrySet()) {
+            if (isCacheable(entry.getValue())) {
+                addEntry(entry.getKey(), entry.getValue());
+                changed = true;
+            }
+        }
+        if (changed) {
+            markDirty();
+        }
+    }
+
+    // Saves what is not saved yet, then forces the file to disk
+    public void force() {
+        saveIfDirty();
+        synchronized (saveLock) {
+            try (FileChannel channel = FileChannel.open(Paths.get(storageFile), StandardOpenOption.READ)) {
+                channel.force(true);
+            } catch (NoSuchFileException e) {
+                // Nothing stored yet
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void addEntry(String query, String response) {
+        String key = query.toLowerCase(); // Normalize to lowercase
+        structure.readLock().lock();
         try {
-            JSONObject entry = new JSONObject();
-            entry.put("query", query.toLowerCase()); // Normalize to lowercase
-            entry.put("response", response);
-            entry.put("timestamp", System.currentTimeMillis());
-
-            JSONArray knowledgeArray;
-            if (Files.exists(Paths.get(STORAGE_FILE))) {
-                String content = new String(Files.readAllBytes(Paths.get(STORAGE_FILE)));
-                knowledgeArray = new JSONArray(content);
-            } else {
-                knowledgeArray = new JSONArray();
+            synchronized (stripes[(key.hashCode() & 0x7fffffff) % STRIPES]) {
+                // Fragments go in before the entry that refers to them
+                List<String> ids = addFragments(response);
+                Entry previous = entries.put(key, new Entry(key, System.currentTimeMillis(), ids, versions.incrementAndGet()));
+                if (previous != null && !previous.fragmentIds.equals(ids)) {
+                    stale.incrementAndGet();
+                }
             }
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
 
-            // Remove any existing entry for this query
-            for (int i = 0; i < knowledgeArray.length(); i++) {
-                JSONObject existing = knowledgeArray.getJSONObject(i);
-                if (existing.getString("query").equalsIgnoreCase(query)) {
-                    knowledgeArray.remove(i);
-                    break;
+    // Until the file has been loaded, entries not written since count as misses
+    public String get(String query) {
+        String key = query.toLowerCase();
+        Entry entry = entries.get(key);
+        if (entry == null && !isLoaded()) {
+            missesWhileLoading.incrementAndGet();
+        }
+        while (entry != null) {
+            try {
+                return assemble(entry);
+            } catch (Exception e) {
+                // A save may have dropped the fragments of an entry replaced meanwhile
+                Entry current = entries.get(key);
+                if (current == null || current.version == entry.version) {
+                    System.err.println("Corrupt knowledge entry for \"" + query + "\": " + e.getMessage());
+                    return null;
                 }
+                entry = current;
             }
+        }
+        return null;
+    }
 
-            knowledgeArray.put(entry);
-            Files.write(Paths.get(STORAGE_FILE), knowledgeArray.toString().getBytes());
-            knowledgeMap.put(query.toLowerCase(), response);
+    public List<Entry> history() {
+        awaitLoaded();
+        List<Entry> history = new ArrayList<>(entries.values());
+        history.sort(Comparator.comparingLong(entry -> entry.version));
+        return history;
+    }
 
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+    public List<Entry> scanByTime(long from, long to, int limit) {
+        awaitLoaded();
+        return newestFirst(entries.values(), from, to, limit);
     }
 
-    public static synchronized String retrieve(String query) {
-        String cachedResponse = knowledgeMap.get(query.toLowerCase());
-        if (cachedResponse != null) {
-            return cachedResponse;
+    // The entries of the range, newest first, cut to the limit
+    static List<Entry> newestFirst(Collection<Entry> all, long from, long to, int limit) {
+        List<Entry> range = new ArrayList<>();
+        for (Entry entry : all) {
+            if (entry.timestamp >= from && entry.timestamp < to) {
+                range.add(entry);
+            }
         }
+        range.sort(Comparator.comparingLong((Entry entry) -> entry.timestamp)
+                .thenComparingLong(entry -> entry.version).reversed());
+        return range.size() > limit ? new ArrayList<>(range.subList(0, limit)) : range;
+    }
 
+    public boolean delete(String query) {
+        awaitLoaded();
+        String key = query.toLowerCase();
+        Entry removed;
+        structure.readLock().lock();
         try {
-            if (Files.exists(Paths.get(STORAGE_FILE))) {
-                String content = new String(Files.readAllBytes(Paths.get(STORAGE_FILE)));
-                JSONArray knowledgeArray = new JSONArray(content);
-
-                for (int i = 0; i < knowledgeArray.length(); i++) {
-                    JSONObject entry = knowledgeArray.getJSONObject(i);
-                    if (entry.getString("query").equalsIgnoreCase(query)) {
-                        String response = entry.getString("response");
-                        knowledgeMap.put(query.toLowerCase(), response);
-                        return response;
+            synchronized (stripes[(key.hashCode() & 0x7fffffff) % STRIPES]) {
+                removed = entries.remove(key);
+            }
+        } finally {
+            structure.readLock().unlock();
+        }
+        if (removed == null) {
+            return false;
+        }
+        // The next save drops its fragments unless another entry shares them
+        stale.incrementAndGet();
+        markDirty();
+        return true;
+    }
+
+    public void checkpoint() {
+        saveIfDirty();
+    }
+
+    public String stats() {
+        File file = new File(storageFile);
+        return String.format("%s: %d entries, %d fragments, %d KB%s", storageFile, entries.size(), fragments.size(),
+                file.length() / 1024, isLoaded() ? "" : " (loading)");
+    }
+
+    private String assemble(Entry entry) throws Exception {
+        StringBuilder response = new StringBuilder();
+        for (String id : entry.fragmentIds) {
+            Fragment fragment = fragments.get(id);
+            if (fragment == null) {
+                throw new IOException("missing fragment");
+            }
+            response.append(fragment.text());
+        }
+        return response.toString();
+    }
+
+    private List<String> addFragments(String response) {
+        List<String> ids = new ArrayList<>();
+        for (String fragment : ResponseFragments.split(response)) {
+            String id = ResponseFragments.idOf(fragment);
+            fragments.computeIfAbsent(id, k -> {
+                byte[] compressed = ResponseFragments.compress(fragment);
+                return compressed != null ? new Fragment(true, compressed)
+                        : new Fragment(false, fragment.getBytes(StandardCharsets.UTF_8));
+            });
+            ids.add(id);
+        }
+        return ids;
+    }
+
+    private void markDirty() {
+        synchronized (saveSignal) {
+            dirty = true;
+            saveSignal.notifyAll();
+        }
+    }
+
+    // Waits for a write, lets the interval collect more, then saves them all at once
+    private void saveLoop() {
+        while (true) {
+            try {
+                synchronized (saveSignal) {
+                    while (!dirty) {
+                        saveSignal.wait();
                     }
                 }
+                Thread.sleep(SAVE_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
             }
+            saveIfDirty();
+        }
+    }
+
+    private void saveIfDirty() {
+        if (!dirty) {
+            return;
+        }
+        try {
+            save();
         } catch (Exception e) {
             e.printStackTrace();
         }
-        return null;
     }
 
-    private static void loadKnowledge() {
+    // Writes only the fragments some entry still references, then the snapshot of that
+    private void save() throws IOException {
+        awaitLoaded();
+        synchronized (saveLock) {
+            // Writes from here on are picked up by this save or the next one
+            dirty = false;
+            if (stale.getAndSet(0) > 0) {
+                pruneFragments();
+            }
+            // Writers add fragments before the entry, and only a save removes any,
+            // so every fragment the saved entries name is there
+            List<Entry> saved = history();
+            Map<String, Fragment> referenced = new LinkedHashMap<>();
+            for (Entry entry : saved) {
+                for (String id : entry.fragmentIds) {
+                    Fragment fragment = fragments.get(id);
+                    if (fragment != null) {
+                        referenced.put(id, fragment);
+                    }
+                }
+            }
+            write(saved, referenced);
+            writeSnapshot(saved, referenced);
+        }
+    }
+
+    // Drops fragments no entry refers to; writers are held off so none is half-added
+    private void pruneFragments() {
+        structure.writeLock().lock();
+        try {
+            Set<String> live = new HashSet<>();
+            for (Entry entry : entries.values()) {
+                live.addAll(entry.fragmentIds);
+            }
+            fragments.keySet().retainAll(live);
+        } finally {
+            structure.writeLock().unlock();
+        }
+    }
+
+    private void write(List<Entry> saved, Map<String, Fragment> referenced) throws IOException {
+        JSONObject fragmentObject = new JSONObject();
+        referenced.forEach((id, fragment) -> fragmentObject.put(id, fragment.deflated
+                ? new JSONObject().put("deflate", Base64.getEncoder().encodeToString(fragment.data))
+                : new JSONObject().put("text", new String(fragment.data, StandardCharsets.UTF_8))));
+        JSONArray entryArray = new JSONArray();
+        for (Entry entry : saved) {
+            entryArray.put(new JSONObject()
+                    .put("query", entry.query)
+                    .put("timestamp", entry.timestamp)
+                    .put("fragments", new JSONArray(entry.fragmentIds)));
+        }
+
+        JSONObject root = new JSONObject();
+        root.put("version", FORMAT_VERSION);
+        root.put("fragments", fragmentObject);
+        root.put("entries", entryArray);
+
+        // Replace the file in one step so a crash never leaves half of it behind
+        Path path = Paths.get(storageFile);
+        Path temp = Paths.get(storageFile + ".tmp");
+        Files.write(temp, root.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void writeSnapshot(List<Entry> saved, Map<String, Fragment> referenced) {
         try {
-            if (Files.exists(Paths.get(STORAGE_FILE))) {
-                String content = new String(Files.readAllBytes(Paths.get(STORAGE_FILE)));
-                JSONArray knowledgeArray = new JSONArray(content);
-
-                for (int i = 0; i < knowledgeArray.length(); i++) {
-                    JSONObject entry = knowledgeArray.getJSONObject(i);
-                    knowledgeMap.put(
-                            entry.getString("query").toLowerCase(),
-                            entry.getString("response")
-                    );
+            KnowledgeSnapshot.write(storageFile, saved, referenced);
+        } catch (IOException e) {
+            // Only costs a slower start, the JSON file is complete
+            System.err.println("Could not write snapshot of " + storageFile + ": " + e.getMessage());
+        }
+    }
+
+    private void awaitLoaded() {
+        try {
+            loaded.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Runs on the loader thread; entries written meanwhile are newer and win
+    private void loadKnowledge() {
+        long start = System.currentTimeMillis();
+        try {
+            KnowledgeSnapshot snapshot = KnowledgeSnapshot.read(storageFile, true);
+            if (snapshot != null) {
+                snapshot.fragments.forEach(fragments::putIfAbsent);
+                for (Entry entry : snapshot.entries) {
+                    entries.putIfAbsent(entry.query, entry);
                 }
+            } else {
+                loadJson();
             }
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            loaded.countDown();
+        }
+        if (!entries.isEmpty()) {
+            System.out.println("Loaded " + entries.size() + " entries from " + storageFile + " in "
+                    + (System.currentTimeMillis() - start) + " ms, " + missesWhileLoading.get() + " lookups missed meanwhile");
+        }
+    }
+
+    private void loadJson() throws IOException {
+        Path path = Paths.get(storageFile);
+        if (!Files.exists(path)) {
+            return;
+        }
+        String content = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+        List<Entry> loadedEntries = new ArrayList<>();
+        if (content.trim().startsWith("[")) {
+            loadLegacy(new JSONArray(content), loadedEntries);
+        } else {
+            JSONObject root = new JSONObject(content);
+            JSONObject stored = root.getJSONObject("fragments");
+            for (String id : stored.keySet()) {
+                JSONObject fragment = stored.getJSONObject(id);
+                fragments.putIfAbsent(id, fragment.has("deflate")
+                        ? new Fragment(true, Base64.getDecoder().decode(fragment.getString("deflate")))
+                        : new Fragment(false, fragment.getString("text").getBytes(StandardCharsets.UTF_8)));
+            }
+            JSONArray entryArray = root.getJSONArray("entries");
+            for (int i = 0; i < entryArray.length(); i++) {
+                JSONObject entry = entryArray.getJSONObject(i);
+                JSONArray ids = entry.getJSONArray("fragments");
+                List<String> fragmentIds = new ArrayList<>(ids.length());
+                for (int j = 0; j < ids.length(); j++) {
+                    fragmentIds.add(ids.getString(j));
+                }
+                String query = entry.getString("query").toLowerCase();
+                loadedEntries.add(new Entry(query, entry.getLong("timestamp"), fragmentIds, i - entryArray.length()));
+            }
+        }
+        for (Entry entry : loadedEntries) {
+            entries.putIfAbsent(entry.query, entry);
+        }
+
+        // The next start can read the snapshot instead
+        Map<String, Fragment> referenced = new LinkedHashMap<>();
+        for (Entry entry : loadedEntries) {
+            for (String id : entry.fragmentIds) {
+                referenced.put(id, fragments.get(id));
+            }
+        }
+        synchronized (saveLock) {
+            writeSnapshot(loadedEntries, referenced);
+        }
+    }
+
+    private void loadLegacy(JSONArray knowledgeArray, List<Entry> loadedEntries) {
+        Map<String, Entry> byQuery = new LinkedHashMap<>();
+        for (int i = 0; i < knowledgeArray.length(); i++) {
+            JSONObject entry = knowledgeArray.getJSONObject(i);
+            String query = entry.getString("query").toLowerCase();
+            byQuery.remove(query);
+            byQuery.put(query, new Entry(query, entry.optLong("timestamp", 0),
+                    addFragments(entry.getString("response")), i - knowledgeArray.length()));
         }
+        loadedEntries.addAll(byQuery.values());
+        System.out.println("Read " + byQuery.size() + " entries from " + storageFile
+                + " in the old format, it is rewritten as fragments on the next store");
     }
-}
\ No newline at end of file
+}
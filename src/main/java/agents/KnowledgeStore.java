@@ -0,0 +1,19 @@
+package agents;
+
+import java.util.List;
+
+/**
+ * A knowledge store as the agents and the GUI use it: the shard operations plus
+ * browsing by time, removal and a summary for the logs. The backend is chosen
+ * with -Dknowledge.store (see {@link KnowledgeStorage#open(String)}).
+ */
+public interface KnowledgeStore extends KnowledgeService {
+    // Entries stored at from <= timestamp < to, newest first, at most limit of them
+    List<KnowledgeStorage.Entry> scanByTime(long from, long to, int limit);
+
+    // Removes the query's entry; false if there was none
+    boolean delete(String query);
+
+    // One line on how much is stored and where, for logs
+    String stats();
+}
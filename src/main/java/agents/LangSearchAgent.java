@@ -4,22 +4,27 @@ import jade.core.Agent;
 import jade.core.behaviours.CyclicBehaviour;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
+import agents.ontology.SearchOntology;
 import utils.HttpHelper;
 
 public class LangSearchAgent extends Agent {
     protected void setup() {
         System.out.println(getAID().getName() + " is ready for LangSearch queries.");
+        ServiceRegistry.register(this, "LangSearchAgent", ServiceDirectory.describe(
+                "langsearch", ServiceDirectory.CostClass.MEDIUM, ServiceDirectory.GENERAL, ServiceDirectory.SUB_QUERY));
 
         addBehaviour(new CyclicBehaviour(this) {
+            private final PriorityInbox inbox = new PriorityInbox(myAgent, MessageTemplate.MatchPerformative(ACLMessage.REQUEST));
+
             public void action() {
-                ACLMessage msg = receive(MessageTemplate.MatchPerformative(ACLMessage.REQUEST));
+                ACLMessage msg = inbox.next();
                 if (msg != null) {
-                    String query = msg.getContent();
+                    String query = SearchOntology.queryText(msg);
                     String response = HttpHelper.searchExternalSource("langsearch", query);
 
                     ACLMessage reply = msg.createReply();
                     reply.setPerformative(ACLMessage.INFORM);
-                    reply.setContent("\n\n" + response);
+                    SearchOntology.setResult(myAgent, reply, msg, "LangSearchAgent", "\n\n" + response);
                     send(reply);
                 } else {
                     block();
@@ -27,4 +32,8 @@ public class LangSearchAgent extends Agent {
             }
         });
     }
+
+    protected void takeDown() {
+        ServiceRegistry.deregister(this);
+    }
 }
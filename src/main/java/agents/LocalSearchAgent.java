@@ -0,0 +1,215 @@
+package agents;
+
+import jade.core.Agent;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.core.behaviours.TickerBehaviour;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+import agents.ontology.SearchOntology;
+import utils.Bm25Index;
+
+import java.util.*;
+
+/**
+ * Full-text search over the answers already stored by the knowledge shards in
+ * this JVM, so cached text is reachable by content and not only by exact query.
+ *
+ * Every distinct response fragment (see {@link ResponseFragments}) is one BM25
+ * document, owned by the stored entries that contain it. A ticker picks up the
+ * entries written since it last looked, so the index follows the stores without
+ * ever being rebuilt. Entries that were deleted are noticed when a search would
+ * have returned them.
+ *
+ * Replies carry a "confidence" parameter: how much of the query the best passage
+ * covers, weighted by idf, and no more than its BM25 score relative to a passage
+ * that holds every query term once. A query of a single term cannot tell a
+ * passage about it from one that merely mentions it, so its confidence is at
+ * most half. The broker decides from it whether the answer is good enough to
+ * skip remote sources. Run one in each container holding shards.
+ */
+public class LocalSearchAgent extends Agent {
+    public static final String CONFIDENCE = "confidence";
+
+    private static final long INDEX_INTERVAL_MS = Long.getLong("local.indexMs", 2000);
+    private static final int MAX_PASSAGES = Integer.getInteger("local.passages", 3);
+    // Passages scoring below this share of the best one are left out
+    private static final double MIN_RELATIVE_SCORE = 0.5;
+    // Fewer query terms than this and a match is only ever half sure
+    private static final int MIN_QUERY_TERMS = 2;
+
+    private final Bm25Index index = new Bm25Index();
+    private final Map<String, Integer> docsByFragment = new HashMap<>();
+    private final Map<Integer, String> fragmentOfDoc = new HashMap<>();
+    // Owners are entries, keyed shard name + '\0' + query
+    private final Map<Integer, Set<String>> ownersOfDoc = new HashMap<>();
+    private final Map<String, Indexed> indexedEntries = new HashMap<>();
+    // Per shard, the timestamp from which entries still have to be looked at
+    private final Map<String, Long> scannedFrom = new HashMap<>();
+
+    private static class Indexed {
+        final long timestamp;
+        final Set<Integer> docs;
+
+        Indexed(long timestamp, Set<Integer> docs) {
+            this.timestamp = timestamp;
+            this.docs = docs;
+        }
+    }
+
+    protected void setup() {
+        System.out.println(getAID().getName() + " is ready for local searches.");
+        ServiceRegistry.register(this, "LocalSearchAgent", ServiceDirectory.describe(
+                "local", ServiceDirectory.CostClass.LOW, ServiceDirectory.LOCAL));
+
+        addBehaviour(new TickerBehaviour(this, INDEX_INTERVAL_MS) {
+            protected void onTick() {
+                indexNewEntries();
+            }
+        });
+
+        addBehaviour(new CyclicBehaviour(this) {
+            private final PriorityInbox inbox = new PriorityInbox(myAgent, MessageTemplate.MatchPerformative(ACLMessage.REQUEST));
+
+            public void action() {
+                ACLMessage request = inbox.next();
+                if (request == null) {
+                    block();
+                    return;
+                }
+                while (request != null) {
+                    answer(request);
+                    request = inbox.next();
+                }
+            }
+        });
+    }
+
+    protected void takeDown() {
+        ServiceRegistry.deregister(this);
+    }
+
+    private void answer(ACLMessage request) {
+        long start = System.nanoTime();
+        String query = SearchOntology.queryText(request);
+        List<Bm25Index.Hit> hits = index.search(query, MAX_PASSAGES * 4);
+
+        StringBuilder passages = new StringBuilder();
+        double confidence = 0;
+        int found = 0;
+        for (Bm25Index.Hit hit : hits) {
+            if (found == MAX_PASSAGES || (found > 0 && hit.score < hits.get(0).score * MIN_RELATIVE_SCORE)) {
+                break;
+            }
+            String[] passage = passageOf(hit.doc);
+            if (passage == null) {
+                continue; // every entry holding it is gone
+            }
+            if (found == 0) {
+                confidence = Math.min(hit.coverage, hit.relevance);
+                if (new HashSet<>(Bm25Index.terms(query)).size() < MIN_QUERY_TERMS) {
+                    confidence /= 2;
+                }
+            }
+            passages.append("\n").append(passage[1].trim())
+                    .append("\n(stored with \"").append(passage[0]).append("\")\n");
+            found++;
+        }
+
+        ACLMessage reply = request.createReply();
+        reply.setPerformative(ACLMessage.INFORM);
+        SearchOntology.setResult(this, reply, request, "LocalSearchAgent", found > 0 ? passages.toString() : "No result.");
+        reply.addUserDefinedParameter(CONFIDENCE, String.format(Locale.ROOT, "%.3f", confidence));
+        send(reply);
+        System.out.println(String.format("Local search for \"%s\": %d passages, confidence %.2f, %.2f ms",
+                query, found, confidence, (System.nanoTime() - start) / 1e6));
+    }
+
+    // The query it was stored with and the fragment text, or null once no entry holds it
+    private String[] passageOf(int doc) {
+        String fragmentId = fragmentOfDoc.get(doc);
+        for (String owner : new ArrayList<>(ownersOfDoc.getOrDefault(doc, Collections.emptySet()))) {
+            int split = owner.indexOf('\0');
+            KnowledgeStore store = InternalAgent.localShards().get(owner.substring(0, split));
+            String query = owner.substring(split + 1);
+            String response = store != null ? store.get(query) : null;
+            if (response != null) {
+                for (String fragment : ResponseFragments.split(response)) {
+                    if (ResponseFragments.idOf(fragment).equals(fragmentId)) {
+                        return new String[] {query, fragment};
+                    }
+                }
+            }
+            // Deleted, or replaced by a newer answer the ticker has not seen yet
+            unindex(owner);
+        }
+        return null;
+    }
+
+    private void indexNewEntries() {
+        int added = 0;
+        long start = System.currentTimeMillis();
+        for (Map.Entry<String, KnowledgeStore> shard : InternalAgent.localShards().entrySet()) {
+            long from = scannedFrom.getOrDefault(shard.getKey(), 0L);
+            List<KnowledgeStorage.Entry> entries = shard.getValue().scanByTime(from, Long.MAX_VALUE, Integer.MAX_VALUE);
+            long newest = from;
+            // Oldest first, so a query stored twice ends up with its latest answer
+            for (int i = entries.size() - 1; i >= 0; i--) {
+                KnowledgeStorage.Entry entry = entries.get(i);
+                String owner = shard.getKey() + '\0' + entry.getQuery();
+                newest = Math.max(newest, entry.getTimestamp());
+                Indexed current = indexedEntries.get(owner);
+                if (current != null && current.timestamp == entry.getTimestamp()) {
+                    continue; // at the boundary of the last scan
+                }
+                unindex(owner);
+                String response = shard.getValue().get(entry.getQuery());
+                if (response != null) {
+                    index(owner, entry.getTimestamp(), response);
+                    added++;
+                }
+            }
+            // Entries at the newest timestamp are looked at again, others may still arrive with it
+            scannedFrom.put(shard.getKey(), newest);
+        }
+        if (added > 0) {
+            System.out.println("Local search indexed " + added + " entries in " + (System.currentTimeMillis() - start)
+                    + " ms, " + index.size() + " passages in total");
+        }
+    }
+
+    private void index(String owner, long timestamp, String response) {
+        Set<Integer> docs = new HashSet<>();
+        for (String fragment : ResponseFragments.split(response)) {
+            if (fragment.trim().isEmpty()) {
+                continue;
+            }
+            String id = ResponseFragments.idOf(fragment);
+            Integer doc = docsByFragment.get(id);
+            if (doc == null) {
+                doc = index.add(fragment);
+                docsByFragment.put(id, doc);
+                fragmentOfDoc.put(doc, id);
+            }
+            ownersOfDoc.computeIfAbsent(doc, d -> new HashSet<>()).add(owner);
+            docs.add(doc);
+        }
+        indexedEntries.put(owner, new Indexed(timestamp, docs));
+    }
+
+    // Fragments no other entry holds leave the index
+    private void unindex(String owner) {
+        Indexed indexed = indexedEntries.remove(owner);
+        if (indexed == null) {
+            return;
+        }
+        for (int doc : indexed.docs) {
+            Set<String> owners = ownersOfDoc.get(doc);
+            owners.remove(owner);
+            if (owners.isEmpty()) {
+                ownersOfDoc.remove(doc);
+                docsByFragment.remove(fragmentOfDoc.remove(doc));
+                index.remove(doc);
+            }
+        }
+    }
+}
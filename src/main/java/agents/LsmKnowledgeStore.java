@@ -0,0 +1,178 @@
+package agents;
+
+import utils.LsmStore;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Knowledge store on an embedded {@link LsmStore} in a directory next to the
+ * JSON file. Two kinds of keys share the store:
+ * <ul>
+ *   <li>"q:" + query: timestamp (long), deflated flag (byte), response bytes</li>
+ *   <li>"t:" + 16 hex digits of the timestamp + ":" + query: empty, the secondary
+ *       index that keeps entries in time order for {@link #scanByTime}</li>
+ * </ul>
+ * A put replaces both keys and removes the old index key in the same batch, so
+ * the index never disagrees with the entries, even after a crash.
+ */
+public class LsmKnowledgeStore implements KnowledgeStore {
+    private static final String QUERY = "q:";
+    private static final String TIME = "t:";
+
+    private static final Map<String, LsmKnowledgeStore> BY_DIRECTORY = new HashMap<>();
+
+    private final String directory;
+    private final LsmStore store;
+
+    private LsmKnowledgeStore(String directory) throws IOException {
+        this.directory = directory;
+        this.store = LsmStore.open(Paths.get(directory));
+    }
+
+    public static synchronized LsmKnowledgeStore forDirectory(String directory) {
+        return BY_DIRECTORY.computeIfAbsent(directory, dir -> {
+            try {
+                return new LsmKnowledgeStore(dir);
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot open knowledge store " + dir, e);
+            }
+        });
+    }
+
+    // knowledge_base.json -> knowledge_base.lsm
+    public static String directoryFor(String storageFile) {
+        int dot = storageFile.lastIndexOf('.');
+        return (dot > 0 ? storageFile.substring(0, dot) : storageFile) + ".lsm";
+    }
+
+    public boolean isEmpty() {
+        try {
+            return store.scan(QUERY, "q;", 1, false).isEmpty();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public String get(String query) {
+        try {
+            byte[] value = store.get(QUERY + query.toLowerCase());
+            if (value == null) {
+                return null;
+            }
+            ByteBuffer in = ByteBuffer.wrap(value);
+            in.getLong();
+            boolean deflated = in.get() != 0;
+            byte[] body = Arrays.copyOfRange(value, in.position(), value.length);
+            return deflated ? ResponseFragments.decompress(body) : new String(body, StandardCharsets.UTF_8);
+        } catch (Exception e) {
+            System.err.println("Could not read knowledge entry for \"" + query + "\": " + e.getMessage());
+            return null;
+        }
+    }
+
+    public void put(String query, String response) {
+        putAll(Collections.singletonMap(query, response));
+    }
+
+    // The whole batch is one write-ahead log record
+    public void putAll(Map<String, String> entries) {
+        putAll(entries, Collections.emptyMap());
+    }
+
+    // Entries with a timestamp in timestamps keep it, the others are stamped now
+    synchronized void putAll(Map<String, String> entries, Map<String, Long> timestamps) {
+        long now = System.currentTimeMillis();
+        Map<String, byte[]> batch = new LinkedHashMap<>();
+        // Timestamps as of this batch, so a query put twice in it leaves one index key
+        Map<String, Long> current = new HashMap<>();
+        try {
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                if (!KnowledgeStorage.isCacheable(entry.getValue())) {
+                    continue;
+                }
+                String key = entry.getKey().toLowerCase();
+                Long previous = current.containsKey(key) ? current.get(key) : timestampOf(key);
+                if (previous != null) {
+                    batch.put(timeKey(previous, key), null);
+                }
+                long timestamp = timestamps.getOrDefault(entry.getKey(), now);
+                batch.put(QUERY + key, encode(entry.getValue(), timestamp));
+                batch.put(timeKey(timestamp, key), new byte[0]);
+                current.put(key, timestamp);
+            }
+            store.write(batch);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public synchronized boolean delete(String query) {
+        String key = query.toLowerCase();
+        try {
+            Long timestamp = timestampOf(key);
+            if (timestamp == null) {
+                return false;
+            }
+            Map<String, byte[]> batch = new LinkedHashMap<>();
+            batch.put(QUERY + key, null);
+            batch.put(timeKey(timestamp, key), null);
+            store.write(batch);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // Walks the time index backwards from the end of the range
+    public List<KnowledgeStorage.Entry> scanByTime(long from, long to, int limit) {
+        List<KnowledgeStorage.Entry> result = new ArrayList<>();
+        try {
+            for (Map.Entry<String, byte[]> entry : store.scan(timeKey(from, ""), timeKey(to, ""), limit, true)) {
+                String key = entry.getKey();
+                long timestamp = Long.parseUnsignedLong(key.substring(TIME.length(), TIME.length() + 16), 16);
+                String query = key.substring(TIME.length() + 17);
+                result.add(new KnowledgeStorage.Entry(query, timestamp, Collections.emptyList(), timestamp));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return result;
+    }
+
+    public void force() {
+        try {
+            store.sync();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public String stats() {
+        return directory + ": " + store.stats();
+    }
+
+    private Long timestampOf(String key) throws IOException {
+        byte[] value = store.get(QUERY + key);
+        return value != null ? ByteBuffer.wrap(value).getLong() : null;
+    }
+
+    private static String timeKey(long timestamp, String key) {
+        return TIME + String.format("%016x", timestamp) + ":" + key;
+    }
+
+    private static byte[] encode(String response, long timestamp) {
+        byte[] compressed = ResponseFragments.compress(response);
+        byte[] body = compressed != null ? compressed : response.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(8 + 1 + body.length)
+                .putLong(timestamp)
+                .put((byte) (compressed != null ? 1 : 0))
+                .put(body)
+                .array();
+    }
+}
@@ -0,0 +1,695 @@
+package agents;
+
+import utils.LongLongHashMap;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.StampedLock;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Knowledge store whose responses live in a memory-mapped, append-only data file.
+ * The heap only holds a primitive index from the 64-bit hash of each query to the
+ * offset of its latest record; responses are decoded from the mapping when read.
+ *
+ * Record: length (int, bytes after the 8-byte header), CRC32 of those bytes (int),
+ * flags (byte, 1 = body deflated, 2 = query deleted), timestamp (long), query
+ * (int length + UTF-8), response (int length + bytes). A torn record at the end
+ * of the file is cut off when the file is opened, and superseded records and
+ * deletions are dropped by compacting the file on open once they take up more
+ * room than the live records.
+ *
+ * Records never change once written, so a reader only needs a consistent look
+ * at the index: it reads it optimistically and retries under the read lock if
+ * a writer got in between. Mappings are replaced copy-on-write as the file grows.
+ *
+ * {@link #checkpoint()} saves the index next to the data file (.idx), so opening
+ * only loads it and scans the records appended after it, instead of the file.
+ *
+ * Scans by time use a second index of (timestamp, offset, query hash) sorted by
+ * time. It is built from the main index on the first scan and then kept up to
+ * date as records are indexed, so a scan of recent entries reads only those.
+ */
+public class MappedResponseStore implements KnowledgeStore {
+    private static final int HEADER = 8;
+    private static final int DEFLATED = 1;
+    private static final int DELETED = 2;
+    // Each mapping covers at most this much of the file
+    private static final long SEGMENT = 1L << 30;
+    private static final long COMPACT_FROM = 1L << 20;
+    // -Dknowledge.mapped.compress=false stores bodies as plain UTF-8
+    private static final boolean COMPRESS = !"false".equals(System.getProperty("knowledge.mapped.compress"));
+    private static final int COMPRESS_FROM = 512;
+    private static final int INDEX_MAGIC = 0x4b494458; // "KIDX"
+
+    private static final Map<String, MappedResponseStore> BY_FILE = new HashMap<>();
+
+    private final Path path;
+    private FileChannel channel;
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    private final Object remapLock = new Object();
+    // Guards index, end and deadBytes; appends hold it for writing
+    private final StampedLock lock = new StampedLock();
+    private final LongLongHashMap index = new LongLongHashMap();
+    private long end;
+    private long deadBytes;
+    // Offset of the last record in the file, -1 while it is empty
+    private long lastRecord = -1;
+    // Records by time for scanByTime, null until the first scan; guarded by lock
+    private TimeIndex byTime;
+
+    private MappedResponseStore(Path path) throws IOException {
+        this.path = path;
+        open();
+        if (deadBytes > COMPACT_FROM && deadBytes > end - deadBytes) {
+            compact();
+        }
+    }
+
+    public static synchronized MappedResponseStore forFile(String dataFile) {
+        return BY_FILE.computeIfAbsent(dataFile, file -> {
+            try {
+                return new MappedResponseStore(Paths.get(file));
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot open knowledge data file " + file, e);
+            }
+        });
+    }
+
+    // knowledge_base.json -> knowledge_base.dat
+    public static String dataFileFor(String storageFile) {
+        int dot = storageFile.lastIndexOf('.');
+        return (dot > 0 ? storageFile.substring(0, dot) : storageFile) + ".dat";
+    }
+
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return index.size();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public void put(String query, String response) {
+        put(query, response, System.currentTimeMillis());
+    }
+
+    void put(String query, String response, long timestamp) {
+        if (!KnowledgeStorage.isCacheable(response)) {
+            return;
+        }
+        String key = query.toLowerCase();
+        ByteBuffer record = encode(key, response, timestamp, 0);
+        append(Collections.singletonList(key), record);
+    }
+
+    // All records of the batch go out in a single write
+    public void putAll(Map<String, String> batch) {
+        long timestamp = System.currentTimeMillis();
+        List<String> keys = new ArrayList<>();
+        List<ByteBuffer> records = new ArrayList<>();
+        int total = 0;
+        for (Map.Entry<String, String> entry : batch.entrySet()) {
+            if (KnowledgeStorage.isCacheable(entry.getValue())) {
+                String key = entry.getKey().toLowerCase();
+                ByteBuffer record = encode(key, entry.getValue(), timestamp, 0);
+                keys.add(key);
+                records.add(record);
+                total += record.remaining();
+            }
+        }
+        if (keys.isEmpty()) {
+            return;
+        }
+        ByteBuffer combined = ByteBuffer.allocate(total);
+        records.forEach(combined::put);
+        combined.flip();
+        append(keys, combined);
+    }
+
+    public void force() {
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static ByteBuffer encode(String key, String response, long timestamp, int flags) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] body = response.getBytes(StandardCharsets.UTF_8);
+        if (COMPRESS && body.length >= COMPRESS_FROM) {
+            byte[] deflated = deflate(body);
+            if (deflated.length < body.length) {
+                body = deflated;
+                flags |= DEFLATED;
+            }
+        }
+
+        int length = 1 + 8 + 4 + keyBytes.length + 4 + body.length;
+        ByteBuffer record = ByteBuffer.allocate(HEADER + length);
+        record.position(HEADER);
+        record.put((byte) flags).putLong(timestamp)
+                .putInt(keyBytes.length).put(keyBytes)
+                .putInt(body.length).put(body);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), HEADER, length);
+        record.putInt(0, length).putInt(4, (int) crc.getValue());
+        record.flip();
+        return record;
+    }
+
+    // Writes consecutive records for the keys at the end of the file, then indexes them
+    private void append(List<String> keys, ByteBuffer records) {
+        long stamp = lock.writeLock();
+        try {
+            long start = end;
+            while (records.hasRemaining()) {
+                channel.write(records, start + records.position());
+            }
+
+            long offset = start;
+            for (String key : keys) {
+                ByteBuffer header = read(offset, HEADER + 1);
+                int length = header.getInt(0);
+                index(hash(key), offset, length, (header.get(HEADER) & DELETED) != 0);
+                offset += HEADER + length;
+            }
+            end = offset;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public String get(String query) {
+        String key = query.toLowerCase();
+        long offset = lookup(hash(key));
+        if (offset < 0) {
+            return null;
+        }
+        try {
+            Record record = readRecord(offset);
+            // Two queries can share a hash; the record says which one it holds
+            return record.key.equals(key) ? record.body() : null;
+        } catch (IOException | DataFormatException e) {
+            System.err.println("Corrupt knowledge record for \"" + query + "\": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Offset of the key's latest record, or -1
+    private long lookup(long hash) {
+        long stamp = lock.tryOptimisticRead();
+        long offset;
+        try {
+            offset = index.get(hash, -1);
+        } catch (RuntimeException e) {
+            // Caught the index halfway through a resize
+            offset = -1;
+            stamp = 0;
+        }
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                offset = index.get(hash, -1);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return offset;
+    }
+
+    // Newest first; sees the records other processes appended as well
+    public List<KnowledgeStorage.Entry> scanByTime(long from, long to, int limit) {
+        List<KnowledgeStorage.Entry> entries = new ArrayList<>();
+        long stamp = lock.readLock();
+        try {
+            if (byTime == null || !byTime.sorted || byTime.size > 2 * index.size() + 1024 || channel.size() > end) {
+                long write = lock.tryConvertToWriteLock(stamp);
+                if (write == 0) {
+                    lock.unlockRead(stamp);
+                    write = lock.writeLock();
+                }
+                stamp = write;
+                prepareTimeIndex();
+            }
+            for (int i = byTime.firstFrom(to) - 1; i >= 0 && byTime.times[i] >= from && entries.size() < limit; i--) {
+                // Superseded and deleted records stay in the time index until it is pruned
+                if (index.get(byTime.hashes[i], -1) == byTime.offsets[i]) {
+                    Record record = readRecord(byTime.offsets[i]);
+                    entries.add(new KnowledgeStorage.Entry(record.key, record.timestamp, Collections.emptyList(), byTime.offsets[i]));
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock(stamp);
+        }
+        return entries;
+    }
+
+    // Under the write lock: picks up records appended by other processes, then builds, sorts or prunes the time index
+    private void prepareTimeIndex() throws IOException {
+        if (channel.size() > end) {
+            scan(end, false);
+        }
+        if (byTime == null) {
+            TimeIndex built = new TimeIndex(index.size());
+            IOException[] failed = new IOException[1];
+            index.forEach((hash, offset) -> {
+                try {
+                    built.add(timestampAt(offset), offset, hash);
+                } catch (IOException e) {
+                    failed[0] = e;
+                }
+            });
+            if (failed[0] != null) {
+                throw failed[0];
+            }
+            byTime = built;
+        }
+        if (byTime.size > 2 * index.size() + 1024) {
+            byTime.retainLive(index);
+        }
+        if (!byTime.sorted) {
+            byTime.sort();
+        }
+    }
+
+    private long timestampAt(long offset) throws IOException {
+        return read(offset + HEADER + 1, 8).getLong();
+    }
+
+    // Appends a deletion record; the query's earlier records go at the next compaction
+    public boolean delete(String query) {
+        if (get(query) == null) {
+            return false;
+        }
+        String key = query.toLowerCase();
+        append(Collections.singletonList(key), encode(key, "", System.currentTimeMillis(), DELETED));
+        return true;
+    }
+
+    public String stats() {
+        long stamp = lock.readLock();
+        try {
+            return String.format("%s: %d entries, %d KB (%d KB superseded)", path, index.size(), end / 1024, deadBytes / 1024);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Saves the index, with enough of the file's state to tell later whether it still fits
+    public void checkpoint() {
+        long stamp = lock.readLock();
+        Path indexFile = indexFile();
+        Path temp = Paths.get(indexFile + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeLong(end);
+            out.writeLong(deadBytes);
+            out.writeLong(lastRecord);
+            out.writeInt(lastRecord >= 0 ? read(lastRecord, HEADER).getInt(4) : 0);
+            out.writeInt(index.size());
+            IOException[] failed = new IOException[1];
+            index.forEach((hash, offset) -> {
+                try {
+                    out.writeLong(hash);
+                    out.writeLong(offset);
+                } catch (IOException e) {
+                    failed[0] = e;
+                }
+            });
+            if (failed[0] != null) {
+                throw failed[0];
+            }
+        } catch (IOException e) {
+            System.err.println("Could not save index of " + path + ": " + e.getMessage());
+            return;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        try {
+            Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("Could not save index of " + path + ": " + e.getMessage());
+        }
+    }
+
+    private Path indexFile() {
+        return Paths.get(path + ".idx");
+    }
+
+    // Loads a saved index if the data file still ends with the record it was saved at
+    private boolean loadIndex() {
+        Path indexFile = indexFile();
+        if (!Files.exists(indexFile)) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile), 1 << 16))) {
+            if (in.readInt() != INDEX_MAGIC) {
+                return false;
+            }
+            long savedEnd = in.readLong();
+            long savedDead = in.readLong();
+            long savedLast = in.readLong();
+            int savedCrc = in.readInt();
+            if (savedEnd > channel.size()) {
+                return false;
+            }
+            if (savedLast >= 0) {
+                ByteBuffer header = read(savedLast, HEADER);
+                if (savedLast + HEADER + header.getInt() != savedEnd || header.getInt() != savedCrc) {
+                    return false;
+                }
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                index.put(in.readLong(), in.readLong());
+            }
+            end = savedEnd;
+            deadBytes = savedDead;
+            lastRecord = savedLast;
+            return true;
+        } catch (IOException e) {
+            index.clear();
+            return false;
+        }
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segments = new MappedByteBuffer[0];
+        index.clear();
+        byTime = null;
+        end = 0;
+        deadBytes = 0;
+        lastRecord = -1;
+        if (!loadIndex()) {
+            index.clear();
+            end = 0;
+            deadBytes = 0;
+            lastRecord = -1;
+        }
+        scan(end, true);
+        if (index.size() > 0) {
+            System.out.println("Opened " + path + " with " + index.size() + " entries ("
+                    + end / 1024 + " KB, " + deadBytes / 1024 + " KB superseded)");
+        }
+    }
+
+    // Indexes the records from the given offset; on open a torn tail is cut off,
+    // later it may be a record another process is still writing
+    private void scan(long from, boolean repair) throws IOException {
+        long size = channel.size();
+        long offset = from;
+        while (offset + HEADER <= size) {
+            ByteBuffer header = read(offset, HEADER);
+            int length = header.getInt();
+            int crc = header.getInt();
+            if (length <= 0 || offset + HEADER + length > size) {
+                break;
+            }
+            ByteBuffer data = read(offset + HEADER, length);
+            CRC32 check = new CRC32();
+            check.update(data.duplicate());
+            if ((int) check.getValue() != crc) {
+                break;
+            }
+
+            boolean deleted = (data.get(0) & DELETED) != 0;
+            data.position(1 + 8);
+            byte[] keyBytes = new byte[data.getInt()];
+            data.get(keyBytes);
+            index(hash(new String(keyBytes, StandardCharsets.UTF_8)), offset, length, deleted);
+            offset += HEADER + length;
+        }
+        end = offset;
+        if (repair && end < size) {
+            System.out.println("Truncating " + (size - end) + " bytes of incomplete records from " + path);
+            channel.truncate(end);
+        }
+    }
+
+    // Points the query's hash at the record, or drops it for a deletion, which is dead from the start
+    private void index(long hash, long offset, int length, boolean deleted) throws IOException {
+        long previous = index.get(hash, -1);
+        if (previous >= 0) {
+            deadBytes += HEADER + read(previous, 4).getInt();
+        }
+        if (deleted) {
+            index.remove(hash);
+            deadBytes += HEADER + length;
+        } else {
+            index.put(hash, offset);
+            if (byTime != null) {
+                byTime.add(timestampAt(offset), offset, hash);
+            }
+        }
+        lastRecord = offset;
+    }
+
+    // Rewrites the file with only the latest record of each query
+    private void compact() throws IOException {
+        Path temp = Paths.get(path + ".compact");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long offset = 0;
+            while (offset < end) {
+                int length = read(offset, 4).getInt();
+                Record record = readRecord(offset);
+                if (index.get(hash(record.key), -1) == offset) {
+                    ByteBuffer bytes = read(offset, HEADER + length);
+                    while (bytes.hasRemaining()) {
+                        out.write(bytes);
+                    }
+                }
+                offset += HEADER + length;
+            }
+            out.force(true);
+        }
+        long before = end;
+        channel.close();
+        segments = new MappedByteBuffer[0];
+        Files.deleteIfExists(indexFile());
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        open();
+        checkpoint();
+        System.out.println("Compacted " + path + " from " + before / 1024 + " KB to " + end / 1024 + " KB");
+    }
+
+    // Parallel arrays ordered by (timestamp, offset) once sorted; records are
+    // appended in file order, which is time order unless timestamps were given
+    private static class TimeIndex {
+        long[] times;
+        long[] offsets;
+        long[] hashes;
+        int size;
+        boolean sorted = true;
+
+        TimeIndex(int expected) {
+            int capacity = Math.max(1024, expected + expected / 4);
+            times = new long[capacity];
+            offsets = new long[capacity];
+            hashes = new long[capacity];
+        }
+
+        void add(long time, long offset, long hash) {
+            if (size == times.length) {
+                times = Arrays.copyOf(times, size * 2);
+                offsets = Arrays.copyOf(offsets, size * 2);
+                hashes = Arrays.copyOf(hashes, size * 2);
+            }
+            if (size > 0 && (time < times[size - 1] || time == times[size - 1] && offset < offsets[size - 1])) {
+                sorted = false;
+            }
+            times[size] = time;
+            offsets[size] = offset;
+            hashes[size] = hash;
+            size++;
+        }
+
+        // Position of the first record at or after the time; needs sorted
+        int firstFrom(long time) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (times[mid] < time) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        void sort() {
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.comparingLong((Integer i) -> times[i]).thenComparingLong(i -> offsets[i]));
+            long[] sortedTimes = new long[times.length];
+            long[] sortedOffsets = new long[times.length];
+            long[] sortedHashes = new long[times.length];
+            for (int i = 0; i < size; i++) {
+                sortedTimes[i] = times[order[i]];
+                sortedOffsets[i] = offsets[order[i]];
+                sortedHashes[i] = hashes[order[i]];
+            }
+            times = sortedTimes;
+            offsets = sortedOffsets;
+            hashes = sortedHashes;
+            sorted = true;
+        }
+
+        // Drops records that are no longer the latest of their query; keeps the order
+        void retainLive(LongLongHashMap index) {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (index.get(hashes[i], -1) == offsets[i]) {
+                    times[kept] = times[i];
+                    offsets[kept] = offsets[i];
+                    hashes[kept] = hashes[i];
+                    kept++;
+                }
+            }
+            size = kept;
+        }
+    }
+
+    private static class Record {
+        String key;
+        long timestamp;
+        int flags;
+        ByteBuffer body;
+        long next;
+
+        String body() throws DataFormatException {
+            byte[] bytes = new byte[body.remaining()];
+            body.get(bytes);
+            if ((flags & DEFLATED) != 0) {
+                bytes = inflate(bytes);
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    private Record readRecord(long offset) throws IOException {
+        int length = read(offset, 4).getInt();
+        ByteBuffer data = read(offset + HEADER, length);
+        Record record = new Record();
+        record.flags = data.get();
+        record.timestamp = data.getLong();
+        byte[] keyBytes = new byte[data.getInt()];
+        data.get(keyBytes);
+        record.key = new String(keyBytes, StandardCharsets.UTF_8);
+        int bodyLength = data.getInt();
+        record.body = data.slice();
+        record.body.limit(bodyLength);
+        record.next = offset + HEADER + length;
+        return record;
+    }
+
+    // The bytes at [offset, offset + length), straight from the mapping where possible
+    private ByteBuffer read(long offset, int length) throws IOException {
+        int segment = (int) (offset / SEGMENT);
+        long segmentStart = segment * SEGMENT;
+        if (offset + length <= segmentStart + SEGMENT) {
+            MappedByteBuffer mapping = mapping(segment, offset + length);
+            ByteBuffer view = mapping.duplicate();
+            view.position((int) (offset - segmentStart));
+            view.limit((int) (offset - segmentStart) + length);
+            return view.slice();
+        }
+
+        // Crosses a segment boundary, which only a few records do
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of " + path);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    // The segment's mapping, remapped if the file has grown past what it covers
+    private MappedByteBuffer mapping(int segment, long needed) throws IOException {
+        long segmentStart = segment * SEGMENT;
+        MappedByteBuffer[] current = segments;
+        if (segment < current.length && current[segment] != null
+                && segmentStart + current[segment].capacity() >= needed) {
+            return current[segment];
+        }
+
+        synchronized (remapLock) {
+            current = segments;
+            if (segment < current.length && current[segment] != null
+                    && segmentStart + current[segment].capacity() >= needed) {
+                return current[segment];
+            }
+            long size = Math.min(channel.size(), segmentStart + SEGMENT) - segmentStart;
+            MappedByteBuffer[] replaced = Arrays.copyOf(current, Math.max(current.length, segment + 1));
+            replaced[segment] = channel.map(FileChannel.MapMode.READ_ONLY, segmentStart, size);
+            segments = replaced;
+            return replaced[segment];
+        }
+    }
+
+    // FNV-1a with a final mix, over the UTF-8 of the lower-cased query
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        return h ^ (h >>> 33);
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2);
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] compressed) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        inflater.setInput(compressed);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 3);
+        byte[] buffer = new byte[8192];
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated response");
+                }
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            inflater.end();
+        }
+        return out.toByteArray();
+    }
+}
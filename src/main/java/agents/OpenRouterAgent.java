@@ -5,24 +5,29 @@ import jade.core.Agent;
 import jade.core.behaviours.CyclicBehaviour;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
+import agents.ontology.SearchOntology;
 import utils.HttpHelper;
 
 public class OpenRouterAgent extends Agent {
     protected void setup() {
         System.out.println(getAID().getName() + " is ready for AI-powered responses.");
+        ServiceRegistry.register(this, "OpenRouterAgent", ServiceDirectory.describe(
+                "openrouter", ServiceDirectory.CostClass.HIGH, ServiceDirectory.GENERAL, ServiceDirectory.SUB_QUERY, ServiceDirectory.LLM));
 
         addBehaviour(new CyclicBehaviour(this) {
+            private final PriorityInbox inbox = new PriorityInbox(myAgent, MessageTemplate.MatchPerformative(ACLMessage.REQUEST));
+
             public void action() {
-                ACLMessage msg = receive(MessageTemplate.MatchPerformative(ACLMessage.REQUEST));
+                ACLMessage msg = inbox.next();
                 if (msg != null) {
-                    String query = msg.getContent();
+                    String query = SearchOntology.queryText(msg);
                     System.out.println("OpenRouterAgent processing query: " + query);
 
                     String response = HttpHelper.searchExternalSource("openrouter", query);
 
                     ACLMessage reply = msg.createReply();
                     reply.setPerformative(ACLMessage.INFORM);
-                    reply.setContent("\n" + response);
+                    SearchOntology.setResult(myAgent, reply, msg, "OpenRouterAgent", "\n" + response);
                     send(reply);
                 } else {
                     block();
@@ -30,4 +35,8 @@ public class OpenRouterAgent extends Agent {
             }
         });
     }
+
+    protected void takeDown() {
+        ServiceRegistry.deregister(this);
+    }
 }
@@ -0,0 +1,98 @@
+package agents;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed-size thread pool whose queue is ordered by {@link QueryPriority} (FIFO
+ * within a priority). Queued low-priority tasks can be evicted to make room
+ * for more urgent work.
+ */
+public class PriorityExecutor extends ThreadPoolExecutor {
+    private final AtomicLong sequence = new AtomicLong();
+
+    public PriorityExecutor(String name, int threads) {
+        super(threads, threads, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(), namedThreads(name));
+    }
+
+    public <T> Future<T> submit(QueryPriority priority, Callable<T> task) {
+        Task<T> future = new Task<>(task, priority, sequence.getAndIncrement(), null);
+        execute(future);
+        return future;
+    }
+
+    public Future<?> submit(QueryPriority priority, Runnable task) {
+        return submit(priority, task, null);
+    }
+
+    // onEvicted runs if the task is pushed out of the queue by more urgent work before it starts
+    public Future<?> submit(QueryPriority priority, Runnable task, Runnable onEvicted) {
+        Task<Object> future = new Task<>(Executors.callable(task), priority, sequence.getAndIncrement(), onEvicted);
+        execute(future);
+        return future;
+    }
+
+    // Drops the newest queued task of the lowest priority below the given one; false if there is none
+    public boolean evictLowerThan(QueryPriority priority) {
+        Task<?> victim = null;
+        for (Runnable queued : getQueue()) {
+            if (!(queued instanceof Task)) continue;
+            Task<?> task = (Task<?>) queued;
+            if (task.priority.ordinal() <= priority.ordinal()) continue;
+            if (victim == null || task.priority.ordinal() > victim.priority.ordinal()
+                    || (task.priority == victim.priority && task.sequence > victim.sequence)) {
+                victim = task;
+            }
+        }
+
+        if (victim == null || !getQueue().remove(victim)) {
+            return false;
+        }
+        System.out.println("Evicted queued " + victim.priority + " task to make room for " + priority + " work");
+        victim.cancel(false);
+        if (victim.onEvicted != null) {
+            victim.onEvicted.run();
+        }
+        return true;
+    }
+
+    // Plain submit() calls still need a comparable task in the priority queue
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+        return new Task<>(callable, QueryPriority.INTERACTIVE, sequence.getAndIncrement(), null);
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+        return newTaskFor(Executors.callable(runnable, value));
+    }
+
+    static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + "-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    private static class Task<T> extends FutureTask<T> implements Comparable<Task<?>> {
+        final QueryPriority priority;
+        final long sequence;
+        final Runnable onEvicted;
+
+        Task(Callable<T> callable, QueryPriority priority, long sequence, Runnable onEvicted) {
+            super(callable);
+            this.priority = priority;
+            this.sequence = sequence;
+            this.onEvicted = onEvicted;
+        }
+
+        @Override
+        public int compareTo(Task<?> other) {
+            int byPriority = Integer.compare(priority.ordinal(), other.priority.ordinal());
+            return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+        }
+    }
+}
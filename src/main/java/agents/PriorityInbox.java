@@ -0,0 +1,48 @@
+package agents;
+
+import jade.core.Agent;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Drains an agent's mailbox into a local queue ordered by {@link QueryPriority},
+ * so interactive requests are served before queued history replays and background work.
+ * Only meant to be used from the agent's own behaviour thread.
+ */
+public class PriorityInbox {
+    private final Agent agent;
+    private final MessageTemplate template;
+    private final PriorityQueue<Entry> queue = new PriorityQueue<>(
+            Comparator.comparingInt((Entry e) -> e.priority.ordinal()).thenComparingLong(e -> e.sequence));
+    private long sequence = 0;
+
+    public PriorityInbox(Agent agent, MessageTemplate template) {
+        this.agent = agent;
+        this.template = template;
+    }
+
+    // Returns the most urgent pending message, or null when there is nothing to do
+    public ACLMessage next() {
+        ACLMessage msg;
+        while ((msg = agent.receive(template)) != null) {
+            queue.add(new Entry(msg, QueryPriority.of(msg), sequence++));
+        }
+        Entry next = queue.poll();
+        return next != null ? next.msg : null;
+    }
+
+    private static class Entry {
+        final ACLMessage msg;
+        final QueryPriority priority;
+        final long sequence;
+
+        Entry(ACLMessage msg, QueryPriority priority, long sequence) {
+            this.msg = msg;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+    }
+}
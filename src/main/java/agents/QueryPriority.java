@@ -0,0 +1,33 @@
+package agents;
+
+import jade.lang.acl.ACLMessage;
+
+/**
+ * Scheduling class of a piece of work, carried in the "priority" user-defined
+ * parameter of ACL messages so every agent on the path orders work the same way.
+ * Lower ordinal runs first.
+ */
+public enum QueryPriority {
+    INTERACTIVE,
+    HISTORY_REPLAY,
+    BACKGROUND;
+
+    public static final String PARAM = "priority";
+
+    // Messages without the parameter come from live users
+    public static QueryPriority of(ACLMessage msg) {
+        String value = msg.getUserDefinedParameter(PARAM);
+        if (value != null) {
+            try {
+                return valueOf(value.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.out.println("Unknown priority '" + value + "', treating as interactive");
+            }
+        }
+        return INTERACTIVE;
+    }
+
+    public void applyTo(ACLMessage msg) {
+        msg.addUserDefinedParameter(PARAM, name());
+    }
+}
@@ -0,0 +1,59 @@
+package agents;
+
+import jade.core.AID;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks which replica of a resource agent gets the next request, using
+ * power-of-two-choices on the number of requests still outstanding per replica.
+ * Replicas come from the {@link ServiceDirectory}, i.e. the agents registered in
+ * the DF under the logical agent name as service type.
+ */
+public class ReplicaBalancer {
+    private final ServiceDirectory directory;
+    private final Map<AID, AtomicInteger> outstanding = new ConcurrentHashMap<>();
+
+    public ReplicaBalancer(ServiceDirectory directory) {
+        this.directory = directory;
+    }
+
+    // Returns null when no replica is registered. Otherwise callers must pass the
+    // returned AID to release() once the reply (or timeout) is in.
+    public AID acquire(String service) {
+        // One snapshot for the whole choice, replicas come and go meanwhile
+        List<AID> replicas = directory.replicasOf(service);
+        AID chosen;
+        if (replicas.isEmpty()) {
+            return null;
+        } else if (replicas.size() == 1) {
+            chosen = replicas.get(0);
+        } else {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(replicas.size());
+            int second = random.nextInt(replicas.size() - 1);
+            if (second >= first) second++;
+            AID a = replicas.get(first);
+            AID b = replicas.get(second);
+            chosen = load(a) <= load(b) ? a : b;
+        }
+        outstanding.computeIfAbsent(chosen, k -> new AtomicInteger()).incrementAndGet();
+        return chosen;
+    }
+
+    public void release(AID replica) {
+        AtomicInteger count = outstanding.get(replica);
+        if (count != null) {
+            count.decrementAndGet();
+        }
+    }
+
+    private int load(AID replica) {
+        AtomicInteger count = outstanding.get(replica);
+        return count != null ? count.get() : 0;
+    }
+}
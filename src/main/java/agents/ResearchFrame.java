@@ -1,18 +1,17 @@
 package agents;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
-
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import javax.swing.border.TitledBorder;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.util.List;
 
 public class ResearchFrame extends JFrame {
+    // The panel lists the most recent queries, not the whole store
+    private static final int HISTORY_ITEMS = Integer.getInteger("history.items", 500);
+
     private UserAgent agent;
     private JTextArea resultArea;
     private JTextField queryField;
@@ -136,29 +135,33 @@ public class ResearchFrame extends JFrame {
         resultArea.setCaretPosition(0);
     }
 
+    // Reads the history off the event thread so the window shows up right away
     private void loadHistoryFromJson() {
-        try {
-            if (Files.exists(Paths.get("knowledge_base.json"))) {
-                String content = new String(Files.readAllBytes(Paths.get("knowledge_base.json")));
-                JSONArray knowledgeArray = new JSONArray(content);
-
-                historyPanel.removeAll();
-                for (int i = knowledgeArray.length() - 1; i >= 0; i--) {
-                    JSONObject entry = knowledgeArray.getJSONObject(i);
-                    String query = entry.getString("query");
-                    long timestamp = entry.getLong("timestamp");
-                    addHistoryItem(query, timestamp);
+        new Thread(() -> {
+            try {
+                List<KnowledgeStorage.Entry> history = KnowledgeStorage.open(KnowledgeStorage.DEFAULT_FILE)
+                        .scanByTime(0, Long.MAX_VALUE, HISTORY_ITEMS);
+                if (!history.isEmpty()) {
+                    SwingUtilities.invokeLater(() -> {
+                        historyPanel.removeAll();
+                        for (KnowledgeStorage.Entry entry : history) {
+                            addHistoryItem(entry.getQuery(), entry.getTimestamp());
+                        }
+                        historyPanel.revalidate();
+                        historyPanel.repaint();
+                    });
                 }
+            } catch (Exception e) {
+                e.printStackTrace();
             }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        }, "history-loader").start();
     }
 
     private void addHistoryItem(String query, long timestamp) {
         HistoryItem item = new HistoryItem(query, timestamp, q -> {
             queryField.setText(q);
-            agent.sendQuery(q);
+            // Re-running history should not hold up live searches
+            agent.sendQuery(q, QueryPriority.HISTORY_REPLAY);
         });
         historyPanel.add(item);
     }
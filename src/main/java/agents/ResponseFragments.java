@@ -0,0 +1,103 @@
+package agents;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Splits stored responses into content-addressed fragments. A response is cut
+ * around its long lines (source extracts), so the same extract under different
+ * headers or in different combined answers becomes the same fragment; runs of
+ * short lines (headers, separators) form fragments of their own. Concatenating
+ * the fragments gives back the response exactly.
+ */
+public class ResponseFragments {
+    // Lines at least this long are content rather than layout
+    private static final int CONTENT_LINE = 120;
+    // Fragments below this are stored as text, compression would not pay off
+    private static final int COMPRESS_FROM = 256;
+
+    public static List<String> split(String response) {
+        List<String> fragments = new ArrayList<>();
+        StringBuilder layout = new StringBuilder();
+        int start = 0;
+        while (start < response.length()) {
+            int newline = response.indexOf('\n', start);
+            int end = newline < 0 ? response.length() : newline + 1;
+            if (end - start >= CONTENT_LINE) {
+                if (layout.length() > 0) {
+                    fragments.add(layout.toString());
+                    layout.setLength(0);
+                }
+                fragments.add(response.substring(start, end));
+            } else {
+                layout.append(response, start, end);
+            }
+            start = end;
+        }
+        if (layout.length() > 0) {
+            fragments.add(layout.toString());
+        }
+        return fragments;
+    }
+
+    // First 64 bits of the SHA-256 of the text, in hex; ids are repeated in every
+    // entry, and collisions are negligible at the size of a knowledge file
+    public static String idOf(String fragment) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(fragment.getBytes(StandardCharsets.UTF_8));
+            StringBuilder id = new StringBuilder(16);
+            for (int i = 0; i < 8; i++) {
+                id.append(String.format("%02x", digest[i]));
+            }
+            return id.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    // Deflated UTF-8 of the fragment, or null when that would not be smaller
+    public static byte[] compress(String fragment) {
+        byte[] raw = fragment.getBytes(StandardCharsets.UTF_8);
+        if (raw.length < COMPRESS_FROM) {
+            return null;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2);
+        byte[] buffer = new byte[4096];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        // Stored as base64 in the JSON file, so that is the size to beat
+        byte[] compressed = out.toByteArray();
+        return (compressed.length + 2) / 3 * 4 < raw.length ? compressed : null;
+    }
+
+    public static String decompress(byte[] compressed) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        inflater.setInput(compressed);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 3);
+        byte[] buffer = new byte[4096];
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated fragment");
+                }
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            inflater.end();
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,90 @@
+package agents;
+
+import agents.ontology.SourceResult;
+import utils.MinHash;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Merges source results that say the same thing before they are assembled into
+ * an answer and stored. Results are compared by MinHash over word shingles; of a
+ * group of near-duplicates the richest (most distinct shingles) is kept and the
+ * other sources are listed on it as also reporting it. The remaining results are
+ * ranked by how many sources agree with them, then by richness.
+ */
+public class ResultFusion {
+    // -Dfusion.threshold=0.8: share of the shorter text found in the longer one to count as a duplicate
+    private static final double THRESHOLD = Double.parseDouble(System.getProperty("fusion.threshold", "0.8"));
+
+    private static class Candidate {
+        final SourceResult result;
+        final int size;
+        final long[] signature;
+
+        Candidate(SourceResult result) {
+            this.result = result;
+            Set<Long> shingles = MinHash.shingles(result.getContent(), MinHash.SHINGLE_WORDS);
+            this.size = shingles.size();
+            this.signature = MinHash.signature(shingles, MinHash.SIGNATURE_SIZE);
+        }
+
+        int support() {
+            return 1 + result.getAlsoFrom().size();
+        }
+    }
+
+    public static List<SourceResult> fuse(List<SourceResult> results) {
+        if (results.size() < 2) {
+            return results;
+        }
+
+        List<Candidate> candidates = new ArrayList<>();
+        for (SourceResult result : results) {
+            candidates.add(new Candidate(result));
+        }
+        // Richest first, so each group is represented by its most complete text
+        candidates.sort(Comparator.comparingInt((Candidate c) -> c.size).reversed());
+
+        List<Candidate> kept = new ArrayList<>();
+        for (Candidate candidate : candidates) {
+            Candidate duplicateOf = null;
+            for (Candidate existing : kept) {
+                if (isNearDuplicate(existing, candidate)) {
+                    duplicateOf = existing;
+                    break;
+                }
+            }
+            if (duplicateOf == null) {
+                kept.add(candidate);
+            } else {
+                duplicateOf.result.getAlsoFrom().add(candidate.result.getSource());
+                duplicateOf.result.getAlsoFrom().addAll(candidate.result.getAlsoFrom());
+            }
+        }
+
+        kept.sort(Comparator.comparingInt(Candidate::support).reversed()
+                .thenComparing(Comparator.comparingInt((Candidate c) -> c.size).reversed()));
+        List<SourceResult> fused = new ArrayList<>();
+        for (Candidate candidate : kept) {
+            fused.add(candidate.result);
+        }
+        if (fused.size() < results.size()) {
+            System.out.println("Fused " + results.size() + " results into " + fused.size());
+        }
+        return fused;
+    }
+
+    private static boolean isNearDuplicate(Candidate a, Candidate b) {
+        if (a.size == 0 || b.size == 0) {
+            return false;
+        }
+        // Jaccard alone misses a short snippet quoted inside a longer extract, so turn
+        // the estimate into the share of the smaller set that the two have in common
+        double jaccard = MinHash.similarity(a.signature, b.signature);
+        double common = jaccard * (a.size + b.size) / (1 + jaccard);
+        return common / Math.min(a.size, b.size) >= THRESHOLD;
+    }
+}
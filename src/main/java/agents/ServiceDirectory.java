@@ -0,0 +1,157 @@
+package agents;
+
+import jade.core.AID;
+import jade.core.Agent;
+import jade.domain.DFService;
+import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.Property;
+import jade.domain.FIPAAgentManagement.SearchConstraints;
+import jade.domain.FIPAAgentManagement.ServiceDescription;
+import jade.domain.FIPAException;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Local copy of the resource agents registered with the DF, kept current by a
+ * DF subscription so that picking agents for a query never talks to the DF.
+ * Services are keyed by their logical name (the DF service type); each one
+ * keeps its capabilities, cost class and the replicas that serve it.
+ */
+public class ServiceDirectory {
+    // Service description properties set by resource agents
+    public static final String SOURCE = "source";
+    public static final String CAPABILITIES = "capabilities";
+    public static final String COST_CLASS = "cost-class";
+
+    // Capabilities the broker selects agents by
+    public static final String GENERAL = "general";   // asked for every simple query
+    public static final String SUB_QUERY = "sub-query"; // asked for each part of a complex query
+    public static final String LLM = "llm";           // can take packed prompts, shed first under load
+    public static final String BOOKS = "books";
+    public static final String MATH = "math";
+    public static final String LOCAL = "local";       // searches what is already stored, asked first
+
+    public enum CostClass { LOW, MEDIUM, HIGH }
+
+    private final Agent agent;
+    private final Map<String, Service> services = new ConcurrentHashMap<>();
+
+    public ServiceDirectory(Agent agent) {
+        this.agent = agent;
+    }
+
+    // The properties a resource agent registers with, for ServiceRegistry.register
+    public static Map<String, String> describe(String source, CostClass cost, String... capabilities) {
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put(SOURCE, source);
+        properties.put(CAPABILITIES, String.join(",", capabilities));
+        properties.put(COST_CLASS, cost.name().toLowerCase());
+        return properties;
+    }
+
+    // Loads what is registered right now, then follows changes. Call from setup().
+    public void start() {
+        try {
+            SearchConstraints constraints = new SearchConstraints();
+            constraints.setMaxResults(-1L);
+            for (DFAgentDescription dfd : DFService.search(agent, new DFAgentDescription(), constraints)) {
+                update(dfd.getName(), true, dfd);
+            }
+        } catch (FIPAException e) {
+            System.err.println("Initial DF search failed, waiting for notifications: " + e.getMessage());
+        }
+        ServiceRegistry.subscribe(agent, null, this::update);
+    }
+
+    public boolean isAvailable(String service) {
+        Service s = services.get(service);
+        return s != null && !s.replicas.isEmpty();
+    }
+
+    public boolean hasCapability(String service, String capability) {
+        Service s = services.get(service);
+        return s != null && s.capabilities.contains(capability);
+    }
+
+    // A snapshot: DF notifications change the live list at any time
+    public List<AID> replicasOf(String service) {
+        Service s = services.get(service);
+        return s != null ? Collections.unmodifiableList(new ArrayList<>(s.replicas)) : Collections.emptyList();
+    }
+
+    // Available services with the capability, cheapest first
+    public List<String> servicesWith(String capability) {
+        List<Service> matching = new ArrayList<>();
+        for (Service s : services.values()) {
+            if (s.capabilities.contains(capability) && !s.replicas.isEmpty()) {
+                matching.add(s);
+            }
+        }
+        matching.sort(Comparator.comparing((Service s) -> s.cost).thenComparing(s -> s.name));
+
+        List<String> names = new ArrayList<>();
+        for (Service s : matching) {
+            names.add(s.name);
+        }
+        return names;
+    }
+
+    private void update(AID provider, boolean registered, DFAgentDescription description) {
+        // A re-registration may have changed the services, so always start from scratch
+        for (Service s : services.values()) {
+            s.replicas.remove(provider);
+        }
+        if (!registered) {
+            return;
+        }
+
+        Iterator<?> it = description.getAllServices();
+        while (it.hasNext()) {
+            ServiceDescription sd = (ServiceDescription) it.next();
+            Map<String, String> properties = propertiesOf(sd);
+            if (sd.getType() == null || !properties.containsKey(CAPABILITIES)) {
+                continue; // not a resource agent, e.g. a broker
+            }
+            Service s = services.computeIfAbsent(sd.getType(), Service::new);
+            // The latest registration describes the service, a replica may re-register with new properties
+            s.describe(properties);
+            s.replicas.addIfAbsent(provider);
+        }
+    }
+
+    private static Map<String, String> propertiesOf(ServiceDescription sd) {
+        Map<String, String> properties = new HashMap<>();
+        Iterator<?> it = sd.getAllProperties();
+        while (it.hasNext()) {
+            Property p = (Property) it.next();
+            if (p.getValue() != null) {
+                properties.put(p.getName(), p.getValue().toString());
+            }
+        }
+        return properties;
+    }
+
+    private static class Service {
+        final String name;
+        volatile Set<String> capabilities = Collections.emptySet();
+        volatile CostClass cost = CostClass.MEDIUM;
+        final CopyOnWriteArrayList<AID> replicas = new CopyOnWriteArrayList<>();
+
+        Service(String name) {
+            this.name = name;
+        }
+
+        void describe(Map<String, String> properties) {
+            CostClass parsed;
+            try {
+                parsed = CostClass.valueOf(properties.getOrDefault(COST_CLASS, "medium").toUpperCase());
+            } catch (IllegalArgumentException e) {
+                parsed = CostClass.MEDIUM;
+            }
+            capabilities = new HashSet<>(Arrays.asList(properties.get(CAPABILITIES).split(",")));
+            cost = parsed;
+        }
+    }
+}
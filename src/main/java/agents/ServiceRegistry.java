@@ -0,0 +1,87 @@
+package agents;
+
+import jade.core.AID;
+import jade.core.Agent;
+import jade.domain.DFService;
+import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.Property;
+import jade.domain.FIPAAgentManagement.SearchConstraints;
+import jade.domain.FIPAAgentManagement.ServiceDescription;
+import jade.domain.FIPAException;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+import jade.proto.SubscriptionInitiator;
+
+import java.util.Map;
+
+/**
+ * Small helpers around the JADE Directory Facilitator: registering an agent's
+ * service and following registrations of a service type as agents come and go.
+ */
+public class ServiceRegistry {
+
+    public interface Listener {
+        // registered is false when the agent deregistered or died
+        void serviceChanged(AID agent, boolean registered, DFAgentDescription description);
+    }
+
+    public static void register(Agent agent, String type, Map<String, String> properties) {
+        DFAgentDescription dfd = new DFAgentDescription();
+        dfd.setName(agent.getAID());
+
+        ServiceDescription sd = new ServiceDescription();
+        sd.setType(type);
+        sd.setName(agent.getLocalName());
+        if (properties != null) {
+            properties.forEach((name, value) -> sd.addProperties(new Property(name, value)));
+        }
+        dfd.addServices(sd);
+
+        try {
+            DFService.register(agent, dfd);
+            System.out.println(agent.getLocalName() + " registered with the DF as '" + type + "'");
+        } catch (FIPAException e) {
+            System.err.println("DF registration failed for " + agent.getLocalName() + ": " + e.getMessage());
+        }
+    }
+
+    public static void deregister(Agent agent) {
+        try {
+            DFService.deregister(agent);
+        } catch (FIPAException e) {
+            // Already gone, e.g. the platform is shutting down
+        }
+    }
+
+    // Notifies the listener about every current and future provider of the service type
+    public static void subscribe(Agent agent, String type, Listener listener) {
+        DFAgentDescription template = new DFAgentDescription();
+        ServiceDescription sd = new ServiceDescription();
+        if (type != null) {
+            sd.setType(type);
+        }
+        template.addServices(sd);
+
+        SearchConstraints constraints = new SearchConstraints();
+        constraints.setMaxResults(-1L);
+
+        ACLMessage subscription = DFService.createSubscriptionMessage(agent, agent.getDefaultDF(), template, constraints);
+        agent.addBehaviour(new SubscriptionInitiator(agent, subscription) {
+            protected void handleInform(ACLMessage inform) {
+                try {
+                    for (DFAgentDescription dfd : DFService.decodeNotification(inform.getContent())) {
+                        boolean registered = dfd.getAllServices().hasNext();
+                        listener.serviceChanged(dfd.getName(), registered, dfd);
+                    }
+                } catch (FIPAException e) {
+                    System.err.println("Could not decode DF notification: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    // Behaviours that receive INFORMs must skip the DF's subscription notifications
+    public static MessageTemplate notFromDF(Agent agent) {
+        return MessageTemplate.not(MessageTemplate.MatchSender(agent.getDefaultDF()));
+    }
+}
@@ -0,0 +1,60 @@
+package agents;
+
+import jade.lang.acl.ACLMessage;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per-client state kept by the broker: the conversational context used for
+ * pronoun resolution, the agents that answered this client, and how many of
+ * its queries are waiting or running.
+ */
+public class SessionState {
+    // Clients that multiplex several users over one AID can set this parameter
+    public static final String SESSION_PARAM = "session";
+
+    private final String id;
+    private final Map<String, String> contextMap = new ConcurrentHashMap<>();
+    private final Set<String> activeAgents = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger pendingQueries = new AtomicInteger();
+    private volatile long lastSeen = System.currentTimeMillis();
+
+    public SessionState(String id) {
+        this.id = id;
+    }
+
+    public static String sessionIdOf(ACLMessage msg) {
+        String session = msg.getUserDefinedParameter(SESSION_PARAM);
+        if (session != null && !session.isEmpty()) {
+            return msg.getSender().getName() + "/" + session;
+        }
+        return msg.getSender().getName();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Map<String, String> getContextMap() {
+        return contextMap;
+    }
+
+    public Set<String> getActiveAgents() {
+        return activeAgents;
+    }
+
+    public AtomicInteger getPendingQueries() {
+        return pendingQueries;
+    }
+
+    public void touch() {
+        lastSeen = System.currentTimeMillis();
+    }
+
+    public long getLastSeen() {
+        return lastSeen;
+    }
+}
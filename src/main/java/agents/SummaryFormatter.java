@@ -0,0 +1,85 @@
+package agents;
+
+import agents.ontology.ExecutionSummary;
+import agents.ontology.SourceResult;
+import agents.ontology.SubQuery;
+
+/**
+ * Renders an {@link ExecutionSummary} as the text shown to users and kept in the
+ * knowledge cache, for clients that receive the structured summary and for
+ * requests that asked in plain text.
+ */
+public class SummaryFormatter {
+
+    public static String format(ExecutionSummary summary) {
+        StringBuilder out = new StringBuilder();
+        if (summary.getBrownoutLevel() > 0) {
+            out.append(BrownoutController.degradedBanner(summary.getBrownoutLevel()));
+        }
+
+        if (summary.isCached()) {
+            out.append("Cached Result:\n");
+            for (SourceResult result : summary.getResults()) {
+                out.append(result.getContent());
+            }
+        } else if (summary.isDecomposed()) {
+            formatDecomposed(summary, out);
+        } else if (summary.getResults().isEmpty()) {
+            out.append(summary.getMessage());
+        } else {
+            out.append("=== Context-Aware Combined Results ===\n\n");
+            for (SourceResult result : summary.getResults()) {
+                out.append(formatResult(result)).append("\n\n");
+            }
+        }
+        return out.toString();
+    }
+
+    public static String formatResult(SourceResult result) {
+        StringBuilder header = new StringBuilder(sourceName(result.getSource())).append(" Result");
+        if (!result.getAlsoFrom().isEmpty()) {
+            // Near-duplicates merged by ResultFusion
+            header.append(" (also from ");
+            for (int i = 0; i < result.getAlsoFrom().size(); i++) {
+                header.append(i > 0 ? ", " : "").append(sourceName(result.getAlsoFrom().get(i)));
+            }
+            header.append(")");
+        }
+        return header + "\n" + result.getContent();
+    }
+
+    private static String sourceName(String agentName) {
+        return agentName.replace("Agent", "");
+    }
+
+    private static void formatDecomposed(ExecutionSummary summary, StringBuilder out) {
+        out.append("=== Decomposed Query Results ===\n\n");
+
+        for (SubQuery subQuery : summary.getSubQueries()) {
+            out.append("\n──── Subquery: \"").append(subQuery.getText()).append("\" ────\n");
+
+            boolean hasValidResults = false;
+            for (SourceResult result : summary.getResultsFor(subQuery)) {
+                out.append(formatResult(result)).append("\n\n");
+                hasValidResults = true;
+            }
+            if (!hasValidResults) {
+                out.append("No valid results for this subquery\n");
+            }
+        }
+
+        out.append("\n=== Execution Summary ===\n");
+        out.append("Processed ").append(summary.getSubQueries().size()).append(" subqueries\n");
+        out.append("Successful responses: ").append(summary.getResponseCount()).append("\n");
+
+        if (!summary.getTimeouts().isEmpty()) {
+            out.append("Timeouts:\n");
+            summary.getTimeouts().forEach(timeout -> out.append("- ").append(timeout).append("\n"));
+        }
+
+        if (!summary.getErrors().isEmpty()) {
+            out.append("Errors:\n");
+            summary.getErrors().forEach(error -> out.append("- ").append(error).append("\n"));
+        }
+    }
+}
@@ -4,17 +4,22 @@ import jade.core.Agent;
 import jade.core.behaviours.CyclicBehaviour;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
+import agents.ontology.SearchOntology;
 import utils.HttpHelper;
 
 public class TogetherAgent extends Agent {
     protected void setup() {
         System.out.println("[READY] " + getAID().getName() + " ready for Together.ai");
+        ServiceRegistry.register(this, "TogetherAgent", ServiceDirectory.describe(
+                "together", ServiceDirectory.CostClass.HIGH, ServiceDirectory.GENERAL, ServiceDirectory.SUB_QUERY, ServiceDirectory.LLM));
 
         addBehaviour(new CyclicBehaviour(this) {
+            private final PriorityInbox inbox = new PriorityInbox(myAgent, MessageTemplate.MatchPerformative(ACLMessage.REQUEST));
+
             public void action() {
-                ACLMessage msg = receive(MessageTemplate.MatchPerformative(ACLMessage.REQUEST));
+                ACLMessage msg = inbox.next();
                 if (msg != null) {
-                    String query = msg.getContent();
+                    String query = SearchOntology.queryText(msg);
                     System.out.println("[PROCESSING] Together.ai query: " + query);
 
                     // Use the direct TogetherAI query method instead of searchExternalSource
@@ -22,7 +27,7 @@ public class TogetherAgent extends Agent {
 
                     ACLMessage reply = msg.createReply();
                     reply.setPerformative(ACLMessage.INFORM);
-                    reply.setContent(response);
+                    SearchOntology.setResult(myAgent, reply, msg, "TogetherAgent", response);
                     send(reply);
                     System.out.println("[SENT] Response: " + response);
                 } else {
@@ -31,4 +36,8 @@ public class TogetherAgent extends Agent {
             }
         });
     }
-}
\ No newline at end of file
+
+    protected void takeDown() {
+        ServiceRegistry.deregister(this);
+    }
+}
@@ -5,8 +5,13 @@ import jade.core.Agent;
 import jade.core.behaviours.CyclicBehaviour;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
+import agents.ontology.ExecutionSummary;
+import agents.ontology.PayloadCompression;
+import agents.ontology.Query;
+import agents.ontology.SearchOntology;
 import org.json.JSONArray;
 import org.json.JSONObject;
+import utils.ConsistentHashRing;
 
 import javax.swing.*;
 import java.awt.*;
@@ -14,9 +19,24 @@ import java.awt.*;
 public class UserAgent extends Agent {
     private ResearchFrame frame;
 
+    // Brokers registered with the DF; a query always goes to the broker owning its hash so
+    // identical queries from every client meet in the same broker cache
+    private final ConsistentHashRing<AID> brokers = new ConsistentHashRing<>();
+    private volatile AID lastBroker;
+
     protected void setup() {
         System.out.println("UserAgent " + getAID().getName() + " is ready.");
 
+        ServiceRegistry.subscribe(this, "broker", (broker, registered, description) -> {
+            if (registered) {
+                brokers.add(broker, broker.getName());
+                System.out.println("Broker joined: " + broker.getLocalName());
+            } else {
+                brokers.remove(broker);
+                System.out.println("Broker left: " + broker.getLocalName());
+            }
+        });
+
         // Create the GUI on the EDT
         SwingUtilities.invokeLater(() -> {
             frame = new ResearchFrame(this);
@@ -25,10 +45,16 @@ public class UserAgent extends Agent {
 
         addBehaviour(new CyclicBehaviour(this) {
             public void action() {
-                // Modify to accept both INFORM and PROPOSE messages
-                MessageTemplate template = MessageTemplate.or(
-                        MessageTemplate.MatchPerformative(ACLMessage.INFORM),
-                        MessageTemplate.MatchPerformative(ACLMessage.PROPOSE)
+                // Accept INFORM and PROPOSE results, and REFUSE when the broker is overloaded
+                MessageTemplate template = MessageTemplate.and(
+                        MessageTemplate.or(
+                                MessageTemplate.or(
+                                        MessageTemplate.MatchPerformative(ACLMessage.INFORM),
+                                        MessageTemplate.MatchPerformative(ACLMessage.PROPOSE)
+                                ),
+                                MessageTemplate.MatchPerformative(ACLMessage.REFUSE)
+                        ),
+                        ServiceRegistry.notFromDF(myAgent)
                 );
 
                 ACLMessage msg = receive(template);
@@ -48,11 +74,19 @@ public class UserAgent extends Agent {
     }
 
     private String processResponse(ACLMessage msg) {
+        Object content = SearchOntology.getContent(msg);
+        if (content instanceof ExecutionSummary) {
+            return SummaryFormatter.format((ExecutionSummary) content);
+        }
+
         String response = msg.getContent();
         // Format the response if it's from OpenRouter
         if (msg.getPerformative() == ACLMessage.PROPOSE) {
             return formatOpenRouterResponse(response);
         }
+        if (msg.getPerformative() == ACLMessage.REFUSE) {
+            return "[Request not accepted]\n" + response;
+        }
         return response;
     }
 
@@ -76,9 +110,38 @@ public class UserAgent extends Agent {
     }
 
     public void sendQuery(String query) {
+        sendQuery(query, QueryPriority.INTERACTIVE);
+    }
+
+    public void sendQuery(String query, QueryPriority priority) {
         ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
-        msg.addReceiver(new AID("BrokerAgent", AID.ISLOCALNAME));
-        msg.setContent(query);
+        msg.addReceiver(chooseBroker(query));
+        priority.applyTo(msg);
+        SearchOntology.setContent(msg, new Query(query));
+        PayloadCompression.advertise(this, msg);
         send(msg);
     }
-}
\ No newline at end of file
+
+    private AID chooseBroker(String query) {
+        AID broker;
+        // Follow-ups like "when was he born" need the broker that holds the conversation context
+        if (lastBroker != null && brokers.nodes().contains(lastBroker)
+                && query.toLowerCase().matches(".*\\b(he|she|they|it)\\b.*")) {
+            broker = lastBroker;
+        } else {
+            broker = brokers.get(routingKey(query));
+        }
+
+        if (broker == null) {
+            // No broker registered yet (or DF unavailable): use the default one
+            broker = new AID("BrokerAgent", AID.ISLOCALNAME);
+        }
+        lastBroker = broker;
+        return broker;
+    }
+
+    // Same normalization the knowledge cache applies to query keys
+    private static String routingKey(String query) {
+        return query.trim().toLowerCase().replaceAll("\\s+", " ");
+    }
+}
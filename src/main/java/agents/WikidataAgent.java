@@ -4,29 +4,53 @@ import jade.core.Agent;
 import jade.core.behaviours.CyclicBehaviour;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
-import utils.HttpHelper;
+import agents.ontology.SearchOntology;
 
 public class WikidataAgent extends Agent {
     protected void setup() {
         System.out.println(getAID().getName() + " is ready for Wikidata searches.");
+        ServiceRegistry.register(this, "WikidataAgent", ServiceDirectory.describe(
+                "wikidata", ServiceDirectory.CostClass.LOW, ServiceDirectory.GENERAL));
 
         addBehaviour(new CyclicBehaviour(this) {
-            public void action() {
-                ACLMessage msg = receive(MessageTemplate.MatchPerformative(ACLMessage.REQUEST));
-                if (msg != null) {
-                    String query = msg.getContent();
-                    System.out.println("Searching Wikidata for: " + query);
-                    String response = HttpHelper.searchExternalSource("wikidata", query);
+            private final PriorityInbox inbox = new PriorityInbox(myAgent, MessageTemplate.MatchPerformative(ACLMessage.REQUEST));
 
-                    ACLMessage reply = msg.createReply();
-                    reply.setPerformative(ACLMessage.INFORM);
-                    // Prefix exactly like your other agents do:
-                    reply.setContent("\n" + response);
-                    send(reply);
-                } else {
+            public void action() {
+                ACLMessage msg = inbox.next();
+                if (msg == null) {
                     block();
+                    return;
+                }
+
+                // Drain everything queued so concurrent sub-queries share one batched lookup
+                while (msg != null) {
+                    ACLMessage request = msg;
+                    String query = SearchOntology.queryText(request);
+                    System.out.println("Searching Wikidata for: " + query);
+                    // Parsed claims are kept for the broker and ExecutionAgent; repeated subjects stay local
+                    EntityFactStore.shared().lookupAsync(query).handle((facts, error) -> {
+                        String response;
+                        if (facts != null) {
+                            response = facts.format();
+                        } else {
+                            Throwable cause = error != null && error.getCause() != null ? error.getCause() : error;
+                            response = "wikidata Result:\nError fetching from wikidata: "
+                                    + (cause != null ? cause.getMessage() : "No Wikidata entity found");
+                        }
+                        ACLMessage reply = request.createReply();
+                        reply.setPerformative(ACLMessage.INFORM);
+                        // Prefix exactly like your other agents do:
+                        SearchOntology.setResult(myAgent, reply, request, "WikidataAgent", "\n" + response);
+                        send(reply);
+                        return null;
+                    });
+                    msg = inbox.next();
                 }
             }
         });
     }
+
+    protected void takeDown() {
+        ServiceRegistry.deregister(this);
+    }
 }
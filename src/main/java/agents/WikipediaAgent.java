@@ -3,27 +3,73 @@ import jade.core.Agent;
 import jade.core.behaviours.CyclicBehaviour;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
+import agents.ontology.SearchOntology;
 import utils.HttpHelper;
+import utils.WikipediaAbstractIndex;
+
+import java.nio.file.Paths;
 
 public class WikipediaAgent extends Agent {
+    // -Dwikipedia.dump=enwiki-latest-abstract.xml.gz answers from a local index of that dump,
+    // going to the network only for titles it does not have
+    private static final String DUMP = System.getProperty("wikipedia.dump");
+
+    // Null until the index is open, so the agent answers online while it is being built
+    private volatile WikipediaAbstractIndex offline;
+
     protected void setup() {
         System.out.println(getAID().getName() + " is ready for Wikipedia searches.");
+        if (DUMP != null) {
+            Thread loader = new Thread(() -> offline = WikipediaAbstractIndex.forDump(Paths.get(DUMP)), "wikipedia-index");
+            loader.setDaemon(true);
+            loader.start();
+        }
+        ServiceRegistry.register(this, "WikipediaAgent", ServiceDirectory.describe(
+                "wikipedia", ServiceDirectory.CostClass.LOW, ServiceDirectory.GENERAL));
 
         addBehaviour(new CyclicBehaviour(this) {
+            private final PriorityInbox inbox = new PriorityInbox(myAgent, MessageTemplate.MatchPerformative(ACLMessage.REQUEST));
+
             public void action() {
-                ACLMessage msg = receive(MessageTemplate.MatchPerformative(ACLMessage.REQUEST));
-                if (msg != null) {
-                    String query = msg.getContent();
+                ACLMessage msg = inbox.next();
+                if (msg == null) {
+                    block();
+                    return;
+                }
+
+                // Drain everything queued so concurrent sub-queries share one batched lookup
+                while (msg != null) {
+                    ACLMessage request = msg;
+                    String query = SearchOntology.queryText(request);
+                    String summary = lookupOffline(query);
+                    if (summary != null) {
+                        ACLMessage reply = request.createReply();
+                        reply.setPerformative(ACLMessage.INFORM);
+                        SearchOntology.setResult(myAgent, reply, request, "WikipediaAgent", "\n" + summary);
+                        send(reply);
+                        msg = inbox.next();
+                        continue;
+                    }
                     System.out.println("Searching Wikipedia for: " + query);
-                    String response = HttpHelper.searchExternalSource("wikipedia", query);
+                    HttpHelper.searchExternalSourceAsync("wikipedia", query).thenAccept(response -> {
+                        ACLMessage reply = request.createReply();
+                        reply.setPerformative(ACLMessage.INFORM);
+                        SearchOntology.setResult(myAgent, reply, request, "WikipediaAgent", "\n" + formatWikipediaResponse(response));
+                        send(reply);
+                    });
+                    msg = inbox.next();
+                }
+            }
 
-                    ACLMessage reply = msg.createReply();
-                    reply.setPerformative(ACLMessage.INFORM);
-                    reply.setContent("\n" + formatWikipediaResponse(response));
-                    send(reply);
-                } else {
-                    block();
+            // The dump's abstract, finished the way the online summaries are; null on a miss
+            private String lookupOffline(String query) {
+                WikipediaAbstractIndex index = offline;
+                String summary = index != null ? index.lookup(query) : null;
+                if (summary == null) {
+                    return null;
                 }
+                System.out.println("Answered from the offline Wikipedia index: " + query);
+                return summary.endsWith(".") ? summary : summary + "...";
             }
 
             private String formatWikipediaResponse(String raw) {
@@ -32,4 +78,8 @@ public class WikipediaAgent extends Agent {
             }
         });
     }
+
+    protected void takeDown() {
+        ServiceRegistry.deregister(this);
+    }
 }
@@ -4,23 +4,28 @@ import jade.core.Agent;
 import jade.core.behaviours.CyclicBehaviour;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
+import agents.ontology.SearchOntology;
 import utils.HttpHelper;
 
 public class WolframAlphaAgent extends Agent {
     protected void setup() {
         System.out.println("[READY] " + getAID().getName() + " ready for mathemitical searches");
+        ServiceRegistry.register(this, "WolframAlphaAgent", ServiceDirectory.describe(
+                "wolfram", ServiceDirectory.CostClass.MEDIUM, ServiceDirectory.MATH));
 
         addBehaviour(new CyclicBehaviour(this) {
+            private final PriorityInbox inbox = new PriorityInbox(myAgent, MessageTemplate.MatchPerformative(ACLMessage.REQUEST));
+
             public void action() {
-                ACLMessage msg = receive(MessageTemplate.MatchPerformative(ACLMessage.REQUEST));
+                ACLMessage msg = inbox.next();
                 if (msg != null) {
-                    String query = msg.getContent();
+                    String query = SearchOntology.queryText(msg);
                     System.out.println("[PROCESSING] WolframAlpha query: " + query);
                     String response = HttpHelper.searchExternalSource("wolfram", query);
 
                     ACLMessage reply = msg.createReply();
                     reply.setPerformative(ACLMessage.INFORM);
-                    reply.setContent(response);
+                    SearchOntology.setResult(myAgent, reply, msg, "WolframAlphaAgent", response);
                     send(reply);
                 } else {
                     block();
@@ -28,4 +33,8 @@ public class WolframAlphaAgent extends Agent {
             }
         });
     }
+
+    protected void takeDown() {
+        ServiceRegistry.deregister(this);
+    }
 }
@@ -0,0 +1,214 @@
+package agents;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Write-behind front for a knowledge store. {@code put} only records the entry in
+ * a pending map and returns; one writer thread per store hands everything that
+ * piled up during the flush interval to the store as a single batch. Reads look
+ * at the pending entries first, without locking, so a writer always sees its
+ * own writes.
+ *
+ * -Dknowledge.flushMs sets the interval (default 100). -Dknowledge.durability
+ * chooses what a put waits for:
+ * <ul>
+ *   <li>async (default): nothing, batches are written without fsync</li>
+ *   <li>fsync: nothing, but every batch is forced to disk</li>
+ *   <li>sync: the batch holding the entry to be written and forced; batches
+ *       are written back to back, and callers that arrive while one is being
+ *       written share the next fsync (group commit)</li>
+ * </ul>
+ * A batch the store fails to take stays pending and is tried again after an
+ * interval, so sync callers only return once their entry really is written.
+ */
+public class WriteBehindStore implements KnowledgeStore {
+    public enum Durability { ASYNC, FSYNC, SYNC }
+
+    private static final long FLUSH_INTERVAL_MS = Long.getLong("knowledge.flushMs", 100);
+    private static final Durability DURABILITY = durability(System.getProperty("knowledge.durability", "async"));
+
+    private final KnowledgeStore store;
+    private final String name;
+    private static class Pending {
+        final String response;
+        final long ticket;
+        final long timestamp;
+
+        Pending(String response, long ticket, long timestamp) {
+            this.response = response;
+            this.ticket = ticket;
+            this.timestamp = timestamp;
+        }
+    }
+
+    // Entries not yet written, by lower-cased query; changed only while holding this
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+    // Tickets count puts; a put is durable once committed has reached its ticket
+    private long enqueued;
+    private long committed;
+    private final Thread writer;
+
+    public WriteBehindStore(KnowledgeStore store, String name) {
+        this.store = store;
+        this.name = name;
+        writer = new Thread(this::writeLoop, "knowledge-writer-" + name);
+        writer.setDaemon(true);
+        writer.start();
+        // Whatever is still pending when the JVM exits normally gets written
+        Runtime.getRuntime().addShutdownHook(new Thread(this::checkpoint));
+    }
+
+    public void put(String query, String response) {
+        if (!KnowledgeStorage.isCacheable(response)) {
+            return;
+        }
+        long ticket;
+        synchronized (this) {
+            ticket = ++enqueued;
+            pending.put(query.toLowerCase(), new Pending(response, ticket, System.currentTimeMillis()));
+            notifyAll();
+        }
+        if (DURABILITY == Durability.SYNC) {
+            awaitCommit(ticket);
+        }
+    }
+
+    public String get(String query) {
+        Pending entry = pending.get(query.toLowerCase());
+        return entry != null ? entry.response : store.get(query);
+    }
+
+    public void putAll(Map<String, String> entries) {
+        entries.forEach(this::put);
+    }
+
+    // Includes the pending entries, at the time they were put, without waiting for the writer
+    public List<KnowledgeStorage.Entry> scanByTime(long from, long to, int limit) {
+        Map<String, Pending> unwritten = new LinkedHashMap<>(pending);
+        List<KnowledgeStorage.Entry> entries = new ArrayList<>();
+        for (KnowledgeStorage.Entry entry : store.scanByTime(from, to, limit + unwritten.size())) {
+            if (!unwritten.containsKey(entry.getQuery().toLowerCase())) {
+                entries.add(entry);
+            }
+        }
+        unwritten.forEach((query, entry) -> entries.add(
+                new KnowledgeStorage.Entry(query, entry.timestamp, Collections.emptyList(), entry.ticket)));
+        return KnowledgeStorage.newestFirst(entries, from, to, limit);
+    }
+
+    public boolean delete(String query) {
+        Pending removed;
+        synchronized (this) {
+            removed = pending.remove(query.toLowerCase());
+        }
+        // A batch already holding the entry has to land before the store can delete it
+        flush();
+        return store.delete(query) || removed != null;
+    }
+
+    public String stats() {
+        return store.stats() + ", " + pending.size() + " pending";
+    }
+
+    public void force() {
+        flush();
+        store.force();
+    }
+
+    public void checkpoint() {
+        flush();
+        store.checkpoint();
+    }
+
+    // Blocks until everything put so far has been handed to the store
+    public void flush() {
+        long ticket;
+        synchronized (this) {
+            ticket = enqueued;
+            notifyAll();
+        }
+        awaitCommit(ticket);
+    }
+
+    private synchronized void awaitCommit(long ticket) {
+        while (committed < ticket && writer.isAlive()) {
+            try {
+                wait(FLUSH_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static Durability durability(String value) {
+        try {
+            return Durability.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown knowledge.durability " + value + ", expected async, fsync or sync; using async");
+            return Durability.ASYNC;
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            List<Map.Entry<String, Pending>> snapshot;
+            Map<String, String> batch = new LinkedHashMap<>();
+            long upTo;
+            try {
+                synchronized (this) {
+                    // A delete can empty pending after a put; its ticket still has to be committed
+                    while (pending.isEmpty() && committed == enqueued) {
+                        wait();
+                    }
+                }
+                // Let the interval fill the batch before writing it. Callers in sync
+                // mode are waiting, their batch forms while the previous one is written.
+                if (DURABILITY != Durability.SYNC) {
+                    Thread.sleep(FLUSH_INTERVAL_MS);
+                }
+                synchronized (this) {
+                    snapshot = new ArrayList<>(pending.entrySet());
+                    upTo = enqueued;
+                }
+                // Written in the order they were put
+                snapshot.sort(Comparator.comparingLong(entry -> entry.getValue().ticket));
+                snapshot.forEach(entry -> batch.put(entry.getKey(), entry.getValue().response));
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                if (!batch.isEmpty()) {
+                    store.putAll(batch);
+                    if (DURABILITY != Durability.ASYNC) {
+                        store.force();
+                    }
+                }
+            } catch (RuntimeException e) {
+                // Nothing is committed; the entries stay pending for the next attempt
+                System.err.println("Knowledge writer " + name + " failed on a batch of " + batch.size()
+                        + ", retrying in " + FLUSH_INTERVAL_MS + " ms: " + e.getMessage());
+                try {
+                    Thread.sleep(FLUSH_INTERVAL_MS);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+                continue;
+            }
+
+            synchronized (this) {
+                // Entries replaced while the batch was being written stay pending
+                snapshot.forEach(entry -> pending.remove(entry.getKey(), entry.getValue()));
+                committed = upTo;
+                notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package agents.ontology;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The broker's answer to a query: the valid results per sub-query plus what went
+ * wrong along the way. Clients render it themselves instead of parsing text.
+ */
+public class ExecutionSummary {
+    private final String query;
+    private final boolean decomposed;
+    private final List<SubQuery> subQueries = new ArrayList<>();
+    private final List<SourceResult> results = new ArrayList<>();
+    private final List<String> timeouts = new ArrayList<>();
+    private final List<String> errors = new ArrayList<>();
+    // Responses received, valid or not
+    private int responseCount;
+    private boolean cached;
+    private int brownoutLevel;
+    // Shown instead of results when there are none
+    private String message;
+
+    public ExecutionSummary(String query, boolean decomposed) {
+        this.query = query;
+        this.decomposed = decomposed;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    public boolean isDecomposed() {
+        return decomposed;
+    }
+
+    public List<SubQuery> getSubQueries() {
+        return subQueries;
+    }
+
+    public List<SourceResult> getResults() {
+        return results;
+    }
+
+    public List<SourceResult> getResultsFor(SubQuery subQuery) {
+        List<SourceResult> matching = new ArrayList<>();
+        for (SourceResult result : results) {
+            if (result.getQuery().equals(subQuery.getText())) {
+                matching.add(result);
+            }
+        }
+        return matching;
+    }
+
+    public List<String> getTimeouts() {
+        return timeouts;
+    }
+
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    public int getResponseCount() {
+        return responseCount;
+    }
+
+    public void setResponseCount(int responseCount) {
+        this.responseCount = responseCount;
+    }
+
+    public boolean isCached() {
+        return cached;
+    }
+
+    public void setCached(boolean cached) {
+        this.cached = cached;
+    }
+
+    public int getBrownoutLevel() {
+        return brownoutLevel;
+    }
+
+    public void setBrownoutLevel(int brownoutLevel) {
+        this.brownoutLevel = brownoutLevel;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+}
@@ -0,0 +1,112 @@
+package agents.ontology;
+
+import jade.core.Agent;
+import jade.lang.acl.ACLMessage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate for large byte-sequence payloads that leave the container. A sender
+ * advertises on its request that it can inflate, and where it runs; the replier
+ * only compresses when the payload is above the threshold and the requester is
+ * in another container (same-container messages are passed by reference, so
+ * compressing them would only cost CPU).
+ */
+public class PayloadCompression {
+    public static final String ACCEPT_ENCODING = "accept-encoding";
+    public static final String CONTENT_ENCODING = "content-encoding";
+    public static final String SENDER_CONTAINER = "sender-container";
+    public static final String DEFLATE = "deflate";
+
+    // -Dpayload.compressThreshold=N: smaller payloads are not worth the CPU
+    private static final int THRESHOLD = Integer.getInteger("payload.compressThreshold", 4096);
+    private static final int LOG_EVERY = 50;
+
+    private static final AtomicLong compressedMessages = new AtomicLong();
+    private static final AtomicLong bytesBefore = new AtomicLong();
+    private static final AtomicLong bytesAfter = new AtomicLong();
+
+    public static void advertise(Agent sender, ACLMessage request) {
+        request.addUserDefinedParameter(ACCEPT_ENCODING, DEFLATE);
+        request.addUserDefinedParameter(SENDER_CONTAINER, sender.here().getName());
+    }
+
+    // Whether a reply from this agent to the request may be compressed
+    public static boolean acceptedBy(Agent replier, ACLMessage request) {
+        return DEFLATE.equals(request.getUserDefinedParameter(ACCEPT_ENCODING))
+                && !replier.here().getName().equals(request.getUserDefinedParameter(SENDER_CONTAINER));
+    }
+
+    // Replaces the content with its deflated form if that is worth it
+    public static void compress(ACLMessage msg) {
+        byte[] raw = msg.getByteSequenceContent();
+        if (raw == null || raw.length < THRESHOLD) {
+            return;
+        }
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4);
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+
+        byte[] compressed = out.toByteArray();
+        if (compressed.length >= raw.length) {
+            return;
+        }
+        msg.setByteSequenceContent(compressed);
+        msg.addUserDefinedParameter(CONTENT_ENCODING, DEFLATE);
+        record(raw.length, compressed.length);
+    }
+
+    // The message content, inflated if it was compressed
+    public static byte[] contentOf(ACLMessage msg) throws IOException {
+        byte[] content = msg.getByteSequenceContent();
+        if (!DEFLATE.equals(msg.getUserDefinedParameter(CONTENT_ENCODING))) {
+            return content;
+        }
+
+        Inflater inflater = new Inflater();
+        inflater.setInput(content);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length * 4);
+        byte[] buffer = new byte[8192];
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated deflate payload");
+                }
+                out.write(buffer, 0, n);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt deflate payload", e);
+        } finally {
+            inflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    public static String stats() {
+        long before = bytesBefore.get();
+        long after = bytesAfter.get();
+        return String.format("%d payloads compressed, %d -> %d bytes (%.0f%% saved)",
+                compressedMessages.get(), before, after, before == 0 ? 0.0 : 100.0 * (before - after) / before);
+    }
+
+    private static void record(int before, int after) {
+        bytesBefore.addAndGet(before);
+        bytesAfter.addAndGet(after);
+        if (compressedMessages.incrementAndGet() % LOG_EVERY == 0) {
+            System.out.println("Payload compression: " + stats());
+        }
+    }
+}
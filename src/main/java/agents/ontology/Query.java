@@ -0,0 +1,16 @@
+package agents.ontology;
+
+/**
+ * A user question as sent to a broker, or a cache lookup sent to a knowledge shard.
+ */
+public class Query {
+    private final String text;
+
+    public Query(String text) {
+        this.text = text;
+    }
+
+    public String getText() {
+        return text;
+    }
+}
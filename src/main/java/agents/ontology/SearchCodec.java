@@ -0,0 +1,203 @@
+package agents.ontology;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Binary encoding of the search ontology for ACL byte-sequence content.
+ *
+ * Layout: magic byte, schema version, type tag, then the fields of that type in
+ * a fixed order. Strings are a varint byte length followed by UTF-8, lists a
+ * varint count followed by the elements, null strings have length -1 (zig-zag).
+ * New fields are only ever appended to a type, and readers only read them when
+ * the writer's version has them, so older content still decodes with defaults.
+ * Newer content is rejected: records are not length-prefixed, so fields a reader
+ * does not know, e.g. in a SourceResult inside a summary, cannot be skipped.
+ */
+public class SearchCodec {
+    private static final int MAGIC = 0x53;
+    // 2: SourceResult.alsoFrom
+    public static final int VERSION = 2;
+
+    private static final int QUERY = 1;
+    private static final int SUB_QUERY = 2;
+    private static final int SOURCE_RESULT = 3;
+    private static final int EXECUTION_SUMMARY = 4;
+
+    public static byte[] encode(Object content) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(MAGIC);
+            out.writeByte(VERSION);
+            if (content instanceof Query) {
+                out.writeByte(QUERY);
+                writeString(out, ((Query) content).getText());
+            } else if (content instanceof SubQuery) {
+                out.writeByte(SUB_QUERY);
+                writeSubQuery(out, (SubQuery) content);
+            } else if (content instanceof SourceResult) {
+                out.writeByte(SOURCE_RESULT);
+                writeSourceResult(out, (SourceResult) content);
+            } else if (content instanceof ExecutionSummary) {
+                out.writeByte(EXECUTION_SUMMARY);
+                writeSummary(out, (ExecutionSummary) content);
+            } else {
+                throw new IllegalArgumentException("Not a search ontology element: " + content);
+            }
+        } catch (IOException e) {
+            // Writing to memory does not fail
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static Object decode(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readUnsignedByte() != MAGIC) {
+            throw new IOException("Not search ontology content");
+        }
+        int version = in.readUnsignedByte();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported schema version " + version);
+        }
+
+        int type = in.readUnsignedByte();
+        switch (type) {
+            case QUERY:
+                return new Query(readString(in));
+            case SUB_QUERY:
+                return readSubQuery(in);
+            case SOURCE_RESULT:
+                return readSourceResult(in, version);
+            case EXECUTION_SUMMARY:
+                return readSummary(in, version);
+            default:
+                throw new IOException("Unknown content type " + type);
+        }
+    }
+
+    private static void writeSubQuery(DataOutputStream out, SubQuery subQuery) throws IOException {
+        writeVarInt(out, subQuery.getIndex());
+        writeString(out, subQuery.getText());
+    }
+
+    private static SubQuery readSubQuery(DataInputStream in) throws IOException {
+        int index = readVarInt(in);
+        return new SubQuery(index, readString(in));
+    }
+
+    private static void writeSourceResult(DataOutputStream out, SourceResult result) throws IOException {
+        writeString(out, result.getQuery());
+        writeString(out, result.getSource());
+        writeString(out, result.getContent());
+        writeStrings(out, result.getAlsoFrom());
+    }
+
+    private static SourceResult readSourceResult(DataInputStream in, int version) throws IOException {
+        String query = readString(in);
+        String source = readString(in);
+        SourceResult result = new SourceResult(query, source, readString(in));
+        if (version >= 2) {
+            readStrings(in, result.getAlsoFrom());
+        }
+        return result;
+    }
+
+    private static void writeSummary(DataOutputStream out, ExecutionSummary summary) throws IOException {
+        writeString(out, summary.getQuery());
+        out.writeBoolean(summary.isDecomposed());
+        out.writeBoolean(summary.isCached());
+        writeVarInt(out, summary.getBrownoutLevel());
+        writeVarInt(out, summary.getResponseCount());
+        writeString(out, summary.getMessage());
+
+        writeVarInt(out, summary.getSubQueries().size());
+        for (SubQuery subQuery : summary.getSubQueries()) {
+            writeSubQuery(out, subQuery);
+        }
+        writeVarInt(out, summary.getResults().size());
+        for (SourceResult result : summary.getResults()) {
+            writeSourceResult(out, result);
+        }
+        writeStrings(out, summary.getTimeouts());
+        writeStrings(out, summary.getErrors());
+    }
+
+    private static ExecutionSummary readSummary(DataInputStream in, int version) throws IOException {
+        ExecutionSummary summary = new ExecutionSummary(readString(in), in.readBoolean());
+        summary.setCached(in.readBoolean());
+        summary.setBrownoutLevel(readVarInt(in));
+        summary.setResponseCount(readVarInt(in));
+        summary.setMessage(readString(in));
+
+        int subQueries = readVarInt(in);
+        for (int i = 0; i < subQueries; i++) {
+            summary.getSubQueries().add(readSubQuery(in));
+        }
+        int results = readVarInt(in);
+        for (int i = 0; i < results; i++) {
+            summary.getResults().add(readSourceResult(in, version));
+        }
+        readStrings(in, summary.getTimeouts());
+        readStrings(in, summary.getErrors());
+        return summary;
+    }
+
+    private static void writeStrings(DataOutputStream out, List<String> values) throws IOException {
+        writeVarInt(out, values.size());
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    private static void readStrings(DataInputStream in, List<String> values) throws IOException {
+        int count = readVarInt(in);
+        for (int i = 0; i < count; i++) {
+            values.add(readString(in));
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            writeVarInt(out, -1);
+            return;
+        }
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, utf8.length);
+        out.write(utf8);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = readVarInt(in);
+        if (length < 0) {
+            return null;
+        }
+        byte[] utf8 = new byte[length];
+        in.readFully(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    // Zig-zag varint: small numbers of either sign take one byte
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        int v = (value << 1) ^ (value >> 31);
+        while ((v & ~0x7F) != 0) {
+            out.writeByte((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (v >>> 1) ^ -(v & 1);
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
@@ -1,4 +1,74 @@
 package agents.ontology;
 
+import jade.core.Agent;
+import jade.lang.acl.ACLMessage;
+
+import java.io.IOException;
+
+/**
+ * The vocabulary agents use to exchange queries and results: {@link Query},
+ * {@link SubQuery}, {@link SourceResult} and {@link ExecutionSummary}, carried as
+ * byte-sequence content encoded by {@link SearchCodec}.
+ *
+ * Messages without this language are plain text, so agents answer a text request
+ * with text and an encoded request with encoded content. Large encoded replies
+ * are compressed when the requester accepts it, see {@link PayloadCompression}.
+ */
 public class SearchOntology {
+    public static final String NAME = "search-ontology";
+    public static final String LANGUAGE = "search-binary/" + SearchCodec.VERSION;
+
+    public static void setContent(ACLMessage msg, Object content) {
+        msg.setLanguage(LANGUAGE);
+        msg.setOntology(NAME);
+        msg.setByteSequenceContent(SearchCodec.encode(content));
+    }
+
+    public static boolean isEncoded(ACLMessage msg) {
+        return NAME.equals(msg.getOntology()) && msg.hasByteSequenceContent();
+    }
+
+    // The decoded content, or null for plain text and content that does not decode
+    public static Object getContent(ACLMessage msg) {
+        if (!isEncoded(msg)) {
+            return null;
+        }
+        try {
+            return SearchCodec.decode(PayloadCompression.contentOf(msg));
+        } catch (IOException e) {
+            System.err.println("Could not decode " + NAME + " content: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // The question in a request, whether it came as a Query, a SubQuery or text
+    public static String queryText(ACLMessage request) {
+        Object content = getContent(request);
+        if (content instanceof Query) return ((Query) content).getText();
+        if (content instanceof SubQuery) return ((SubQuery) content).getText();
+        return request.getContent();
+    }
+
+    // Encodes a reply to an encoded request, compressed if the requester accepts that
+    public static void setReplyContent(Agent replier, ACLMessage reply, ACLMessage request, Object content) {
+        setContent(reply, content);
+        if (PayloadCompression.acceptedBy(replier, request)) {
+            PayloadCompression.compress(reply);
+        }
+    }
+
+    // Answers in the form the request was asked in
+    public static void setResult(Agent replier, ACLMessage reply, ACLMessage request, String source, String result) {
+        if (isEncoded(request)) {
+            setReplyContent(replier, reply, request, new SourceResult(queryText(request), source, result));
+        } else {
+            reply.setContent(result);
+        }
+    }
+
+    public static String resultText(ACLMessage reply) {
+        Object content = getContent(reply);
+        if (content instanceof SourceResult) return ((SourceResult) content).getContent();
+        return reply.getContent();
+    }
 }
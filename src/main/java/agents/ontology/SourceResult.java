@@ -0,0 +1,38 @@
+package agents.ontology;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What one source answered for one (sub-)query.
+ */
+public class SourceResult {
+    private final String query;
+    private final String source;
+    private final String content;
+    // Other sources that returned (nearly) the same content, see ResultFusion
+    private final List<String> alsoFrom = new ArrayList<>();
+
+    public SourceResult(String query, String source, String content) {
+        this.query = query;
+        this.source = source;
+        this.content = content;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    // The logical agent name, e.g. "WikipediaAgent"
+    public String getSource() {
+        return source;
+    }
+
+    public String getContent() {
+        return content;
+    }
+
+    public List<String> getAlsoFrom() {
+        return alsoFrom;
+    }
+}
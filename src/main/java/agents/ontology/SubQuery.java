@@ -0,0 +1,23 @@
+package agents.ontology;
+
+/**
+ * One part of a decomposed query, as sent to a resource agent. The index is the
+ * position within the original query (0 for a query that was not decomposed).
+ */
+public class SubQuery {
+    private final int index;
+    private final String text;
+
+    public SubQuery(int index, String text) {
+        this.index = index;
+        this.text = text;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public String getText() {
+        return text;
+    }
+}
@@ -0,0 +1,96 @@
+package com.example;
+
+import jade.core.Profile;
+import jade.core.ProfileImpl;
+import jade.core.Runtime;
+import jade.wrapper.AgentContainer;
+import jade.wrapper.AgentController;
+import jade.wrapper.StaleProxyException;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Starts one peripheral container of a {@link Topology} and joins it to the main
+ * container. Run it on the container's host:
+ *
+ *   java -cp ... com.example.ContainerLauncher topology.json llm
+ *
+ * Main spawns containers marked "spawn": true itself, as child JVMs.
+ */
+public class ContainerLauncher {
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: ContainerLauncher <topology.json> <container name>");
+            System.exit(1);
+        }
+
+        Topology topology;
+        try {
+            topology = Topology.load(args[0]);
+        } catch (Exception e) {
+            System.err.println("Could not read topology " + args[0] + ": " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        Topology.ContainerSpec spec = topology.container(args[1]);
+        if (spec == null || spec.isMain()) {
+            System.err.println("No peripheral container named " + args[1] + " in " + args[0]);
+            System.exit(1);
+            return;
+        }
+
+        Runtime rt = Runtime.instance();
+        Profile p = new ProfileImpl();
+        p.setParameter(Profile.MAIN_HOST, topology.getMainHost());
+        p.setParameter(Profile.MAIN_PORT, String.valueOf(topology.getMainPort()));
+        p.setParameter(Profile.CONTAINER_NAME, spec.getName());
+        p.setParameter(Profile.LOCAL_HOST, spec.getHost());
+        AgentContainer container = rt.createAgentContainer(p);
+        if (container == null) {
+            System.err.println("Could not reach the main container at "
+                    + topology.getMainHost() + ":" + topology.getMainPort());
+            System.exit(1);
+            return;
+        }
+
+        try {
+            startAgents(container, spec);
+            System.out.println("Container " + spec.getName() + " started.");
+        } catch (StaleProxyException e) {
+            System.err.println("Error starting agents in " + spec.getName() + ":");
+            e.printStackTrace();
+        }
+    }
+
+    public static void startAgents(AgentContainer container, Topology.ContainerSpec spec) throws StaleProxyException {
+        for (Topology.AgentSpec agent : spec.getAgents()) {
+            for (String instanceName : agent.getInstanceNames()) {
+                AgentController controller = container.createNewAgent(instanceName, agent.getClassName(), null);
+                controller.start();
+            }
+        }
+    }
+
+    // Runs the container in a child JVM with the same classpath and -D options as this one
+    public static Process spawn(String topologyFile, Topology.ContainerSpec spec) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (arg.startsWith("-D")) {
+                command.add(arg);
+            }
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ContainerLauncher.class.getName());
+        command.add(topologyFile);
+        command.add(spec.getName());
+
+        return new ProcessBuilder(command).inheritIO().start();
+    }
+}
@@ -4,90 +4,66 @@ import jade.core.Profile;
 import jade.core.ProfileImpl;
 import jade.core.Runtime;
 import jade.wrapper.AgentContainer;
-import jade.wrapper.AgentController;
 import jade.wrapper.StaleProxyException;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 public class Main {
     public static void main(String[] args) {
+        // Which containers to run and which agents go where; see Topology for the format.
+        // Without the file everything starts in one container, as before.
+        String topologyFile = args.length > 0 ? args[0] : System.getProperty("topology", Topology.DEFAULT_FILE);
+        Topology topology;
+        try {
+            topology = Topology.load(topologyFile);
+        } catch (Exception e) {
+            System.err.println("Could not read topology " + topologyFile + ": " + e.getMessage());
+            return;
+        }
+
         // Start JADE platform
         Runtime rt = Runtime.instance();
         Profile p = new ProfileImpl();
-        p.setParameter(Profile.MAIN_HOST, "localhost");
-        p.setParameter(Profile.MAIN_PORT, "1098"); // Change to an available port
-        p.setParameter(Profile.GUI, "true");
+        p.setParameter(Profile.MAIN_HOST, topology.getMainHost());
+        p.setParameter(Profile.MAIN_PORT, String.valueOf(topology.getMainPort()));
+        p.setParameter(Profile.GUI, String.valueOf(topology.isGui()));
         AgentContainer container = rt.createMainContainer(p);
 
         try {
-            // Create and start all supporting agents first
-            AgentController internal = container.createNewAgent(
-                    "InternalAgent", "agents.InternalAgent", null);
-            internal.start();
-
-            // Start user agent with GUI last
-            AgentController user = container.createNewAgent(
-                    "UserAgent", "agents.UserAgent", null);
-            user.start();
-
-            AgentController execution = container.createNewAgent(
-                    "ExecutionAgent", "agents.ExecutionAgent", null);
-            execution.start();
-
-            // Create and start all resource agents
-            AgentController wiki = container.createNewAgent(
-                    "WikipediaAgent", "agents.WikipediaAgent", null);
-            wiki.start();
-
-            AgentController ddg = container.createNewAgent(
-                    "DuckDuckGoAgent", "agents.DuckDuckGoAgent", null);
-            ddg.start();
-
-            AgentController widata = container.createNewAgent(
-                    "WikidataAgent", "agents.WikidataAgent", null);
-            widata.start();
-
-            AgentController book = container.createNewAgent(
-                    "BookSearchAgent", "agents.BookSearchAgent", null);
-            book.start();
-
-            AgentController lsg = container.createNewAgent(
-                    "LangSearchAgent", "agents.LangSearchAgent", null);
-            lsg.start();
-
-            // Add the new OpenRouter agent
-            AgentController openRouter = container.createNewAgent(
-                    "OpenRouterAgent", "agents.OpenRouterAgent", null);
-            openRouter.start();
-
-            // Add Together AI agent
-            AgentController together = container.createNewAgent(
-                    "TogetherAgent", "agents.TogetherAgent", null);
-            together.start();
-
-            //DeepInfraAgent
-
-            // In your main container setup:
-            AgentController deepInfraAgent = container.createNewAgent(
-                    "DeepInfraAgent",
-                    "agents.DeepInfraAgent",
-                    new Object[]{}
-            );
-            deepInfraAgent.start(); // Make sure this is called
-
-            // Start wolfmath agent
-            AgentController wolfram = container.createNewAgent(
-                    "WolframAlphaAgent", "agents.WolframAlphaAgent", null);
-            wolfram.start();
-
-            // Start the broker agent (needs to be after resource agents)
-            AgentController broker = container.createNewAgent(
-                    "BrokerAgent", "agents.BrokerAgent", null);
-            broker.start();
-
-            System.out.println("All agents started successfully!");
-
+            // Agents are started in file order; brokers should come after the resource agents
+            ContainerLauncher.startAgents(container, topology.mainContainer());
         } catch (StaleProxyException e) {
             System.err.println("Error starting agents:");
             e.printStackTrace();
+            return;
+        }
+
+        // Peripheral containers join the main container once it is up. Agents there
+        // register with the DF when ready and the brokers pick them up from then on.
+        List<Process> children = new ArrayList<>();
+        for (Topology.ContainerSpec spec : topology.getContainers()) {
+            if (spec.isMain()) {
+                continue;
+            }
+            if (spec.isSpawn()) {
+                try {
+                    children.add(ContainerLauncher.spawn(topologyFile, spec));
+                    System.out.println("Spawned container " + spec.getName());
+                } catch (IOException e) {
+                    System.err.println("Could not spawn container " + spec.getName() + ": " + e.getMessage());
+                }
+            } else {
+                System.out.println("Start container " + spec.getName() + " on " + spec.getHost()
+                        + " with: java -cp <classpath> " + ContainerLauncher.class.getName()
+                        + " " + topologyFile + " " + spec.getName());
+            }
         }
+        if (!children.isEmpty()) {
+            java.lang.Runtime.getRuntime().addShutdownHook(new Thread(() -> children.forEach(Process::destroy)));
+        }
+
+        System.out.println("All agents started successfully!");
     }
-}
\ No newline at end of file
+}
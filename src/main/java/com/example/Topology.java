@@ -0,0 +1,215 @@
+package com.example;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Which containers the platform runs, where, and which agents go in each.
+ *
+ * <pre>
+ * {
+ *   "main": {"host": "localhost", "port": 1098, "gui": true},
+ *   "containers": [
+ *     {"name": "Main-Container", "main": true, "agents": [
+ *       {"name": "WikipediaAgent", "class": "agents.WikipediaAgent", "replicas": 2}]},
+ *     {"name": "llm", "host": "localhost", "spawn": true, "agents": [...]}
+ *   ]
+ * }
+ * </pre>
+ *
+ * Replicas of one agent may be split over several containers; they are numbered
+ * across the whole file (Name, Name-2, ...) so instance names never clash.
+ */
+public class Topology {
+    public static final String DEFAULT_FILE = "topology.json";
+
+    private final String mainHost;
+    private final int mainPort;
+    private final boolean gui;
+    private final List<ContainerSpec> containers;
+
+    private Topology(String mainHost, int mainPort, boolean gui, List<ContainerSpec> containers) {
+        this.mainHost = mainHost;
+        this.mainPort = mainPort;
+        this.gui = gui;
+        this.containers = containers;
+    }
+
+    // Falls back to the built-in single-container layout when the file does not exist
+    public static Topology load(String path) throws IOException {
+        Path file = Paths.get(path);
+        if (!Files.exists(file)) {
+            System.out.println("No " + path + ", starting everything in one container");
+            return defaults();
+        }
+        return parse(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+    }
+
+    public static Topology parse(String json) {
+        JSONObject root = new JSONObject(json);
+        JSONObject main = root.optJSONObject("main");
+        if (main == null) {
+            main = new JSONObject();
+        }
+
+        Map<String, Integer> instanceCounts = new HashMap<>();
+        List<ContainerSpec> containers = new ArrayList<>();
+        JSONArray containerArray = root.getJSONArray("containers");
+        for (int i = 0; i < containerArray.length(); i++) {
+            JSONObject c = containerArray.getJSONObject(i);
+            List<AgentSpec> agents = new ArrayList<>();
+            JSONArray agentArray = c.optJSONArray("agents");
+            for (int j = 0; agentArray != null && j < agentArray.length(); j++) {
+                JSONObject a = agentArray.getJSONObject(j);
+                agents.add(new AgentSpec(a.getString("name"), a.getString("class"),
+                        a.optInt("replicas", 1), instanceCounts));
+            }
+            containers.add(new ContainerSpec(
+                    c.getString("name"),
+                    c.optString("host", main.optString("host", "localhost")),
+                    c.optBoolean("main", false),
+                    c.optBoolean("spawn", false),
+                    agents));
+        }
+
+        Topology topology = new Topology(main.optString("host", "localhost"), main.optInt("port", 1098),
+                main.optBoolean("gui", true), containers);
+        if (topology.mainContainer() == null) {
+            throw new IllegalArgumentException("Topology has no container with \"main\": true");
+        }
+        return topology;
+    }
+
+    // What Main used to hard-code: one main container on localhost:1098 with the GUI on.
+    // -Dbrokers=N and -Dreplicas.<AgentName>=N still work here.
+    public static Topology defaults() {
+        String[][] agents = {
+                {"InternalAgent", "agents.InternalAgent"},
+                {"LocalSearchAgent", "agents.LocalSearchAgent"},
+                {"UserAgent", "agents.UserAgent"},
+                {"ExecutionAgent", "agents.ExecutionAgent"},
+                {"WikipediaAgent", "agents.WikipediaAgent"},
+                {"DuckDuckGoAgent", "agents.DuckDuckGoAgent"},
+                {"WikidataAgent", "agents.WikidataAgent"},
+                {"BookSearchAgent", "agents.BookSearchAgent"},
+                {"LangSearchAgent", "agents.LangSearchAgent"},
+                {"OpenRouterAgent", "agents.OpenRouterAgent"},
+                {"TogetherAgent", "agents.TogetherAgent"},
+                {"DeepInfraAgent", "agents.DeepInfraAgent"},
+                {"WolframAlphaAgent", "agents.WolframAlphaAgent"},
+        };
+
+        Map<String, Integer> instanceCounts = new HashMap<>();
+        List<AgentSpec> specs = new ArrayList<>();
+        for (String[] agent : agents) {
+            int replicas = Integer.getInteger("replicas." + agent[0], 1);
+            specs.add(new AgentSpec(agent[0], agent[1], replicas, instanceCounts));
+        }
+        // Brokers go last so the resource agents are registered when they look
+        specs.add(new AgentSpec("BrokerAgent", "agents.BrokerAgent", Integer.getInteger("brokers", 1), instanceCounts));
+
+        return new Topology("localhost", 1098, true,
+                Collections.singletonList(new ContainerSpec("Main-Container", "localhost", true, false, specs)));
+    }
+
+    public String getMainHost() {
+        return mainHost;
+    }
+
+    public int getMainPort() {
+        return mainPort;
+    }
+
+    public boolean isGui() {
+        return gui;
+    }
+
+    public List<ContainerSpec> getContainers() {
+        return containers;
+    }
+
+    public ContainerSpec mainContainer() {
+        for (ContainerSpec c : containers) {
+            if (c.isMain()) return c;
+        }
+        return null;
+    }
+
+    public ContainerSpec container(String name) {
+        for (ContainerSpec c : containers) {
+            if (c.getName().equals(name)) return c;
+        }
+        return null;
+    }
+
+    public static class ContainerSpec {
+        private final String name;
+        private final String host;
+        private final boolean main;
+        private final boolean spawn;
+        private final List<AgentSpec> agents;
+
+        ContainerSpec(String name, String host, boolean main, boolean spawn, List<AgentSpec> agents) {
+            this.name = name;
+            this.host = host;
+            this.main = main;
+            this.spawn = spawn;
+            this.agents = agents;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public boolean isMain() {
+            return main;
+        }
+
+        // Main starts this container as a child JVM on the local machine
+        public boolean isSpawn() {
+            return spawn;
+        }
+
+        public List<AgentSpec> getAgents() {
+            return agents;
+        }
+    }
+
+    public static class AgentSpec {
+        private final String name;
+        private final String className;
+        private final List<String> instanceNames = new ArrayList<>();
+
+        AgentSpec(String name, String className, int replicas, Map<String, Integer> instanceCounts) {
+            this.name = name;
+            this.className = className;
+            for (int i = 0; i < Math.max(1, replicas); i++) {
+                int n = instanceCounts.merge(name, 1, Integer::sum);
+                instanceNames.add(n == 1 ? name : name + "-" + n);
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getClassName() {
+            return className;
+        }
+
+        public List<String> getInstanceNames() {
+            return instanceNames;
+        }
+    }
+}
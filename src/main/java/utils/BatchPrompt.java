@@ -0,0 +1,72 @@
+package utils;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Packs several sub-queries into one LLM prompt asking for a JSON answer per
+ * sub-query, and parses the reply back into one answer per sub-query.
+ */
+public class BatchPrompt {
+
+    public static String build(List<String> subQueries) {
+        // Kept on a single line: the LLM helpers only escape quotes when embedding the prompt
+        StringBuilder prompt = new StringBuilder();
+        prompt.append("Answer each of the following ").append(subQueries.size())
+                .append(" questions separately and concisely. ")
+                .append("Reply ONLY with a JSON object of the form ")
+                .append("{\"answers\": [{\"id\": 1, \"answer\": \"...\"}, {\"id\": 2, \"answer\": \"...\"}]} ")
+                .append("with exactly one entry per question id and no text outside the JSON. Questions: ");
+        for (int i = 0; i < subQueries.size(); i++) {
+            String question = subQueries.get(i).replaceAll("\\s+", " ").replace("\\", "").trim();
+            prompt.append("[").append(i + 1).append("] ").append(question).append(" ");
+        }
+        return prompt.toString().trim();
+    }
+
+    // Returns the answers in sub-query order, or null if the reply does not contain one per sub-query
+    public static List<String> parse(String response, int expectedAnswers) {
+        if (response == null) {
+            return null;
+        }
+
+        try {
+            int start = response.indexOf('{');
+            int end = response.lastIndexOf('}');
+            if (start < 0 || end <= start) {
+                return null;
+            }
+
+            JSONObject json = new JSONObject(response.substring(start, end + 1));
+            JSONArray answers = json.optJSONArray("answers");
+            if (answers == null) {
+                return null;
+            }
+
+            String[] byId = new String[expectedAnswers];
+            for (int i = 0; i < answers.length(); i++) {
+                JSONObject entry = answers.optJSONObject(i);
+                if (entry == null) continue;
+                int id = entry.optInt("id", i + 1);
+                String answer = entry.optString("answer", "").trim();
+                if (id >= 1 && id <= expectedAnswers && !answer.isEmpty()) {
+                    byId[id - 1] = answer;
+                }
+            }
+
+            List<String> result = new ArrayList<>();
+            for (String answer : byId) {
+                if (answer == null) {
+                    return null;
+                }
+                result.add(answer);
+            }
+            return result;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package utils;
+
+import java.util.*;
+
+/**
+ * In-memory inverted index ranked with Okapi BM25, maintained one document at a
+ * time. Documents are numbered as they are added; removing one only marks it,
+ * and its postings are purged once removed documents outnumber live ones.
+ * Not thread-safe.
+ */
+public class Bm25Index {
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    private static final Set<String> STOPWORDS = new HashSet<>(Arrays.asList(
+            "a", "an", "and", "are", "as", "at", "be", "by", "did", "do", "does", "for", "from", "how",
+            "in", "is", "it", "of", "on", "or", "that", "the", "this", "to", "was", "were", "what",
+            "when", "where", "which", "who", "whom", "why", "with"));
+
+    public static class Hit {
+        public final int doc;
+        public final double score;
+        // Share of the query's total idf that the document matches, 0 to 1
+        public final double coverage;
+        // Score relative to a document of average length holding every query term once, capped at 1
+        public final double relevance;
+
+        Hit(int doc, double score, double coverage, double relevance) {
+            this.doc = doc;
+            this.score = score;
+            this.coverage = coverage;
+            this.relevance = relevance;
+        }
+    }
+
+    private static class Postings {
+        int[] docs = new int[4];
+        int[] freqs = new int[4];
+        int size;
+
+        void add(int doc, int freq) {
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+                freqs = Arrays.copyOf(freqs, size * 2);
+            }
+            docs[size] = doc;
+            freqs[size] = freq;
+            size++;
+        }
+    }
+
+    private final Map<String, Postings> postings = new HashMap<>();
+    // Length in terms by document, -1 once removed
+    private int[] lengths = new int[1024];
+    private int nextDoc;
+    private int live;
+    private int removed;
+    private long totalLength;
+
+    // Lower-cased words and numbers of the text, without stopwords
+    public static List<String> terms(String text) {
+        List<String> terms = new ArrayList<>();
+        for (String token : text.toLowerCase().split("[^\\p{L}\\p{N}]+")) {
+            if (token.length() > 1 && !STOPWORDS.contains(token)) {
+                terms.add(token);
+            }
+        }
+        return terms;
+    }
+
+    public int add(String text) {
+        int doc = nextDoc++;
+        if (doc == lengths.length) {
+            lengths = Arrays.copyOf(lengths, doc * 2);
+        }
+        Map<String, Integer> freqs = new HashMap<>();
+        List<String> terms = terms(text);
+        for (String term : terms) {
+            freqs.merge(term, 1, Integer::sum);
+        }
+        freqs.forEach((term, freq) -> postings.computeIfAbsent(term, t -> new Postings()).add(doc, freq));
+        lengths[doc] = terms.size();
+        totalLength += terms.size();
+        live++;
+        return doc;
+    }
+
+    public void remove(int doc) {
+        if (doc >= nextDoc || lengths[doc] < 0) {
+            return;
+        }
+        totalLength -= lengths[doc];
+        lengths[doc] = -1;
+        live--;
+        removed++;
+        if (removed > 1024 && removed > live) {
+            purge();
+        }
+    }
+
+    public int size() {
+        return live;
+    }
+
+    // The best limit documents for the query, highest score first
+    public List<Hit> search(String query, int limit) {
+        Set<String> queryTerms = new LinkedHashSet<>(terms(query));
+        if (queryTerms.isEmpty() || live == 0) {
+            return Collections.emptyList();
+        }
+        double averageLength = Math.max(1.0, (double) totalLength / live);
+        double totalIdf = 0;
+        Map<Integer, double[]> scores = new HashMap<>(); // doc -> {score, matched idf}
+        for (String term : queryTerms) {
+            Postings p = postings.get(term);
+            // Counts removed documents until the next purge, which only flattens idf a little
+            int df = p != null ? Math.min(p.size, live) : 0;
+            double idf = Math.log(1 + (live - df + 0.5) / (df + 0.5));
+            totalIdf += idf;
+            if (p == null) {
+                continue;
+            }
+            for (int i = 0; i < p.size; i++) {
+                int doc = p.docs[i];
+                int length = lengths[doc];
+                if (length < 0) {
+                    continue;
+                }
+                int freq = p.freqs[i];
+                double[] s = scores.computeIfAbsent(doc, d -> new double[2]);
+                s[0] += idf * freq * (K1 + 1) / (freq + K1 * (1 - B + B * length / averageLength));
+                s[1] += idf;
+            }
+        }
+
+        PriorityQueue<Hit> top = new PriorityQueue<>(Comparator.comparingDouble((Hit hit) -> hit.score));
+        for (Map.Entry<Integer, double[]> entry : scores.entrySet()) {
+            double[] s = entry.getValue();
+            top.add(new Hit(entry.getKey(), s[0], totalIdf > 0 ? s[1] / totalIdf : 0,
+                    totalIdf > 0 ? Math.min(1, s[0] / totalIdf) : 0));
+            if (top.size() > limit) {
+                top.poll();
+            }
+        }
+        List<Hit> hits = new ArrayList<>(top);
+        hits.sort(Comparator.comparingDouble((Hit hit) -> hit.score).reversed());
+        return hits;
+    }
+
+    // Drops postings of removed documents
+    private void purge() {
+        Iterator<Postings> it = postings.values().iterator();
+        while (it.hasNext()) {
+            Postings p = it.next();
+            int kept = 0;
+            for (int i = 0; i < p.size; i++) {
+                if (lengths[p.docs[i]] >= 0) {
+                    p.docs[kept] = p.docs[i];
+                    p.freqs[kept] = p.freqs[i];
+                    kept++;
+                }
+            }
+            p.size = kept;
+            if (kept == 0) {
+                it.remove();
+            }
+        }
+        removed = 0;
+    }
+}
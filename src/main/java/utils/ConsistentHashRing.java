@@ -0,0 +1,95 @@
+package utils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Consistent hash ring with virtual nodes. Adding or removing a node only
+ * moves the keys that hashed to that node's points on the ring.
+ */
+public class ConsistentHashRing<T> {
+    private static final int DEFAULT_VIRTUAL_NODES = 100;
+
+    private final int virtualNodes;
+    private final TreeMap<Long, T> ring = new TreeMap<>();
+    private final Map<T, String> nodeIds = new HashMap<>();
+
+    public ConsistentHashRing() {
+        this(DEFAULT_VIRTUAL_NODES);
+    }
+
+    public ConsistentHashRing(int virtualNodes) {
+        this.virtualNodes = virtualNodes;
+    }
+
+    // nodeId must be stable across processes so every client builds the same ring
+    public synchronized void add(T node, String nodeId) {
+        if (nodeIds.containsKey(node)) {
+            return;
+        }
+        nodeIds.put(node, nodeId);
+        for (int i = 0; i < virtualNodes; i++) {
+            ring.put(hash(nodeId + "#" + i), node);
+        }
+    }
+
+    public synchronized void remove(T node) {
+        String nodeId = nodeIds.remove(node);
+        if (nodeId == null) {
+            return;
+        }
+        for (int i = 0; i < virtualNodes; i++) {
+            ring.remove(hash(nodeId + "#" + i), node);
+        }
+    }
+
+    public synchronized T get(String key) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, T> entry = ring.ceilingEntry(hash(key));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    // The first `count` distinct nodes clockwise from the key, e.g. for replica placement
+    public synchronized List<T> get(String key, int count) {
+        List<T> nodes = new ArrayList<>();
+        if (ring.isEmpty()) {
+            return nodes;
+        }
+        int wanted = Math.min(count, nodeIds.size());
+        long h = hash(key);
+        for (T node : ring.tailMap(h, true).values()) {
+            if (nodes.size() == wanted) break;
+            if (!nodes.contains(node)) nodes.add(node);
+        }
+        for (T node : ring.headMap(h, false).values()) {
+            if (nodes.size() == wanted) break;
+            if (!nodes.contains(node)) nodes.add(node);
+        }
+        return nodes;
+    }
+
+    public synchronized Set<T> nodes() {
+        return new HashSet<>(nodeIds.keySet());
+    }
+
+    public synchronized boolean isEmpty() {
+        return nodeIds.isEmpty();
+    }
+
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long h = 0;
+            for (int i = 0; i < 8; i++) {
+                h = (h << 8) | (digest[i] & 0xff);
+            }
+            return h;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not available", e);
+        }
+    }
+}
@@ -0,0 +1,688 @@
+package utils;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.*;
+import java.util.function.DoubleUnaryOperator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-process calculator for math queries: arithmetic, powers, percentages,
+ * factorials, common functions (sqrt, trig in radians unless "degrees" is
+ * given, ln, log = base 10, exp, ...) and derivatives with respect to one
+ * variable, written as "derivative of x^2 + 3x" or "d/dx sin(x^2)".
+ *
+ * {@link #answer} returns null for anything it does not parse completely,
+ * including equations and free variables outside a derivative, so callers can
+ * hand those to Wolfram Alpha. It also stays out of questions without a clear
+ * sign of a calculation, such as a bare "9/11" or "1939-1945".
+ */
+public class ExpressionEvaluator {
+    private static final int SIGNIFICANT_DIGITS = 12;
+    private static final MathContext PRECISION = new MathContext(SIGNIFICANT_DIGITS);
+
+    private static final Map<String, DoubleUnaryOperator> FUNCTIONS = new HashMap<>();
+    static {
+        FUNCTIONS.put("sqrt", Math::sqrt);
+        FUNCTIONS.put("cbrt", Math::cbrt);
+        FUNCTIONS.put("sin", Math::sin);
+        FUNCTIONS.put("cos", Math::cos);
+        FUNCTIONS.put("tan", Math::tan);
+        FUNCTIONS.put("asin", Math::asin);
+        FUNCTIONS.put("acos", Math::acos);
+        FUNCTIONS.put("atan", Math::atan);
+        FUNCTIONS.put("sinh", Math::sinh);
+        FUNCTIONS.put("cosh", Math::cosh);
+        FUNCTIONS.put("tanh", Math::tanh);
+        FUNCTIONS.put("exp", Math::exp);
+        FUNCTIONS.put("ln", Math::log);
+        FUNCTIONS.put("log", Math::log10);
+        FUNCTIONS.put("log2", x -> Math.log(x) / Math.log(2));
+        FUNCTIONS.put("abs", Math::abs);
+        FUNCTIONS.put("floor", Math::floor);
+        FUNCTIONS.put("ceil", Math::ceil);
+        FUNCTIONS.put("round", x -> (double) Math.round(x));
+        FUNCTIONS.put("factorial", ExpressionEvaluator::factorial);
+    }
+    private static final Map<String, Double> CONSTANTS = new HashMap<>();
+    static {
+        CONSTANTS.put("pi", Math.PI);
+        CONSTANTS.put("e", Math.E);
+    }
+
+    private static final Pattern LEADING_WORDS = Pattern.compile(
+            "^(?:what is|what's|whats|how much is|calculate|compute|evaluate|simplify|solve|find|the value of|value of|the)\\s+");
+    private static final Pattern DERIVATIVE = Pattern.compile(
+            "^(?:first )?(?:derivative of|differentiate)\\s+(.+?)"
+                    + "(?:\\s+(?:with respect to|wrt)\\s+([a-z]))?(?:\\s+(?:at|for|when)\\s+([a-z])\\s*=\\s*(-?[\\d.]+))?$");
+    private static final Pattern D_BY_DX = Pattern.compile("^d/d([a-z])\\s*(.+)$");
+    // Signs that a question is a calculation. A lone "/" or "-" between numbers is not
+    // one: "9/11", "24/7" and "1939-1945" are dates, names and ranges as often as not.
+    private static final Pattern ASKS_TO_CALCULATE = Pattern.compile("^(?:calculate|compute|evaluate|simplify|solve)\\b");
+    private static final Pattern MATH_CUE = Pattern.compile(
+            "[+*^%!×÷·π°]|\\b(?:plus|minus|times|multiplied|divided|mod|modulo|squared|cubed|root|power|factorial|degrees?)\\b");
+    private static final Pattern NUMBER = Pattern.compile("(\\d+\\.?\\d*|\\.\\d+)(e[+-]?\\d+)?");
+    private static final Pattern WORD = Pattern.compile("[a-z][a-z0-9]*");
+
+    /**
+     * "expression = value" for a query that is only a calculation or a derivative,
+     * or null when it is anything else.
+     */
+    public static String answer(String query) {
+        String text = query.toLowerCase().trim().replaceAll("[?.]+$", "").replaceAll("\\s*=\\s*$", "").trim();
+        boolean asked = ASKS_TO_CALCULATE.matcher(text).find();
+        for (Matcher m = LEADING_WORDS.matcher(text); m.find(); m = LEADING_WORDS.matcher(text)) {
+            text = text.substring(m.end());
+        }
+        try {
+            Matcher derivative = DERIVATIVE.matcher(text);
+            if (derivative.matches()) {
+                return differentiate(derivative.group(1), derivative.group(2),
+                        derivative.group(3), derivative.group(4));
+            }
+            Matcher dByDx = D_BY_DX.matcher(text);
+            if (dByDx.matches()) {
+                return differentiate(dByDx.group(2), dByDx.group(1), null, null);
+            }
+
+            if (!asked && !MATH_CUE.matcher(text).find() && !mentionsFunction(text)) {
+                return null;
+            }
+            Node expression = parse(text);
+            // A bare number or name is not a question for the calculator
+            if (expression instanceof Num || expression instanceof Var || expression instanceof Neg
+                    && ((Neg) expression).operand instanceof Num || !variables(expression).isEmpty()) {
+                return null;
+            }
+            double value = expression.eval(Collections.emptyMap());
+            return Double.isFinite(value) ? text + " = " + format(value) : null;
+        } catch (RuntimeException e) {
+            return null; // not something this evaluator understands
+        }
+    }
+
+    private static String differentiate(String function, String variable, String atVariable, String atValue) {
+        Node expression = parse(function);
+        Set<String> variables = variables(expression);
+        if (variable == null) {
+            variable = variables.size() == 1 ? variables.iterator().next() : "x";
+        }
+        Node derivative = expression.derive(variable);
+        String result = "d/d" + variable + " (" + expression + ") = " + derivative;
+        if (atVariable == null) {
+            return result;
+        }
+        Map<String, Double> at = Collections.singletonMap(atVariable, Double.parseDouble(atValue));
+        double value = derivative.eval(at);
+        if (!Double.isFinite(value)) {
+            return null;
+        }
+        return result + "\nAt " + atVariable + " = " + atValue + ": " + format(value);
+    }
+
+    private static boolean mentionsFunction(String text) {
+        Matcher word = WORD.matcher(text);
+        while (word.find()) {
+            if (FUNCTIONS.containsKey(word.group()) || CONSTANTS.containsKey(word.group())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Node parse(String text) {
+        Parser parser = new Parser(tokenize(rewriteWords(text)));
+        Node expression = parser.expression();
+        if (parser.position != parser.tokens.size()) {
+            throw new IllegalArgumentException("Unexpected " + parser.tokens.get(parser.position));
+        }
+        return expression;
+    }
+
+    // Spelled-out operators become symbols
+    private static String rewriteWords(String text) {
+        return text
+                .replaceAll("(?<=\\d),(?=\\d{3}\\b)", "")
+                .replaceAll("\\bsquare root of\\b", "sqrt ")
+                .replaceAll("\\bcube root of\\b", "cbrt ")
+                .replaceAll("\\b(?:to the power of|raised to(?: the power of)?)\\b", "^")
+                .replaceAll("\\bsquared\\b", "^2")
+                .replaceAll("\\bcubed\\b", "^3")
+                .replaceAll("\\bplus\\b", "+")
+                .replaceAll("\\bminus\\b", "-")
+                .replaceAll("\\b(?:times|multiplied by)\\b", "*")
+                .replaceAll("\\bdivided by\\b", "/")
+                .replaceAll("\\bmod(?:ulo)?\\b", "%")
+                .replaceAll("(\\d)\\s*factorial\\b", "$1!")
+                .replaceAll("%\\s*of\\b", "% *")
+                .replaceAll("\\b([a-z][a-z0-9]*)\\s+of\\b", "$1")
+                .replaceAll("\\s*(?:\\bdegrees?\\b|°)", " deg")
+                .replace("**", "^").replace('×', '*').replace('·', '*').replace('÷', '/').replace('−', '-')
+                .replace("π", "pi");
+    }
+
+    private static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+                continue;
+            }
+            Matcher number = NUMBER.matcher(text).region(i, text.length());
+            Matcher word = WORD.matcher(text).region(i, text.length());
+            if (number.lookingAt()) {
+                tokens.add(number.group());
+                i = number.end();
+            } else if (word.lookingAt()) {
+                tokens.add(word.group());
+                i = word.end();
+            } else if ("+-*/^%!(),".indexOf(c) >= 0) {
+                tokens.add(String.valueOf(c));
+                i++;
+            } else {
+                throw new IllegalArgumentException("Unexpected character " + c);
+            }
+        }
+        return tokens;
+    }
+
+    private static Set<String> variables(Node node) {
+        Set<String> names = new TreeSet<>();
+        node.collectVariables(names);
+        return names;
+    }
+
+    static String format(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return String.valueOf((long) value);
+        }
+        BigDecimal rounded = new BigDecimal(value).round(PRECISION).stripTrailingZeros();
+        return Math.abs(value) >= 1e15 || Math.abs(value) < 1e-6 ? rounded.toString() : rounded.toPlainString();
+    }
+
+    private static double factorial(double n) {
+        if (n < 0 || n != Math.rint(n) || n > 170) {
+            return Double.NaN;
+        }
+        double result = 1;
+        for (int i = 2; i <= n; i++) {
+            result *= i;
+        }
+        return result;
+    }
+
+    // Recursive descent, lowest precedence first; a function name applies to the
+    // parenthesised expression or the power that follows it, so "sin x^2" is sin(x^2)
+    private static class Parser {
+        final List<String> tokens;
+        int position;
+
+        Parser(List<String> tokens) {
+            this.tokens = tokens;
+        }
+
+        Node expression() {
+            Node left = term();
+            while (peek("+") || peek("-")) {
+                String op = tokens.get(position++);
+                left = new Binary(op.charAt(0), left, term());
+            }
+            return left;
+        }
+
+        Node term() {
+            Node left = unary();
+            while (true) {
+                if (peek("*") || peek("/") || peek("%")) {
+                    char op = tokens.get(position++).charAt(0);
+                    left = new Binary(op, left, unary());
+                } else if (startsOperand(position) && !isNumber(position)) {
+                    left = new Binary('*', left, unary()); // 2x, 3(4 + 5), 2 pi
+                } else {
+                    return left;
+                }
+            }
+        }
+
+        Node unary() {
+            if (peek("-")) {
+                position++;
+                return new Neg(unary());
+            }
+            if (peek("+")) {
+                position++;
+                return unary();
+            }
+            return power();
+        }
+
+        Node power() {
+            Node base = postfix();
+            if (peek("^")) {
+                position++;
+                return new Binary('^', base, unary());
+            }
+            return base;
+        }
+
+        Node postfix() {
+            Node node = primary();
+            while (true) {
+                if (peek("!")) {
+                    position++;
+                    node = new Call("factorial", node);
+                } else if (peek("%") && !startsOperand(position + 1)) {
+                    position++;
+                    node = new Binary('/', node, new Num(100)); // a percentage; "7 % 3" is modulo
+                } else if (peek("deg")) {
+                    position++;
+                    node = new Binary('*', node, new Binary('/', new Num(Math.PI, "pi"), new Num(180)));
+                } else {
+                    return node;
+                }
+            }
+        }
+
+        Node primary() {
+            if (position == tokens.size()) {
+                throw new IllegalArgumentException("Expression ends early");
+            }
+            String token = tokens.get(position++);
+            if (token.equals("(")) {
+                Node inner = expression();
+                expect(")");
+                return inner;
+            }
+            if (Character.isDigit(token.charAt(0)) || token.charAt(0) == '.') {
+                return new Num(Double.parseDouble(token));
+            }
+            if (CONSTANTS.containsKey(token)) {
+                return new Num(CONSTANTS.get(token), token);
+            }
+            if (FUNCTIONS.containsKey(token)) {
+                if (peek("(")) {
+                    position++;
+                    Node argument = expression();
+                    expect(")");
+                    return new Call(token, argument);
+                }
+                return new Call(token, unary());
+            }
+            if (token.length() == 1 && Character.isLetter(token.charAt(0))) {
+                return new Var(token);
+            }
+            throw new IllegalArgumentException("Unknown word " + token);
+        }
+
+        boolean startsOperand(int at) {
+            if (at >= tokens.size()) {
+                return false;
+            }
+            String token = tokens.get(at);
+            if (token.equals("deg")) {
+                return false;
+            }
+            return token.equals("(") || Character.isLetterOrDigit(token.charAt(0)) || token.charAt(0) == '.';
+        }
+
+        boolean isNumber(int at) {
+            char c = tokens.get(at).charAt(0);
+            return Character.isDigit(c) || c == '.';
+        }
+
+        boolean peek(String token) {
+            return position < tokens.size() && tokens.get(position).equals(token);
+        }
+
+        void expect(String token) {
+            if (!peek(token)) {
+                throw new IllegalArgumentException("Expected " + token);
+            }
+            position++;
+        }
+    }
+
+    // Expression tree. The parser builds it as written; derivatives are built
+    // through the helpers below, which fold constants and drop identities so
+    // they come out readable.
+    private abstract static class Node {
+        abstract double eval(Map<String, Double> variables);
+
+        abstract Node derive(String variable);
+
+        // Binding strength when printed: sums 1, products 2, negation 3, powers 4, atoms 5
+        abstract int precedence();
+
+        void collectVariables(Set<String> names) {
+        }
+    }
+
+    private static class Num extends Node {
+        final double value;
+        final String name;
+
+        Num(double value) {
+            this(value, null);
+        }
+
+        Num(double value, String name) {
+            this.value = value;
+            this.name = name;
+        }
+
+        double eval(Map<String, Double> variables) {
+            return value;
+        }
+
+        Node derive(String variable) {
+            return new Num(0);
+        }
+
+        int precedence() {
+            return value < 0 && name == null ? 3 : 5;
+        }
+
+        public String toString() {
+            return name != null ? name : format(value);
+        }
+    }
+
+    private static class Var extends Node {
+        final String name;
+
+        Var(String name) {
+            this.name = name;
+        }
+
+        double eval(Map<String, Double> variables) {
+            Double value = variables.get(name);
+            if (value == null) {
+                throw new IllegalArgumentException("No value for " + name);
+            }
+            return value;
+        }
+
+        Node derive(String variable) {
+            return new Num(name.equals(variable) ? 1 : 0);
+        }
+
+        int precedence() {
+            return 5;
+        }
+
+        void collectVariables(Set<String> names) {
+            names.add(name);
+        }
+
+        public String toString() {
+            return name;
+        }
+    }
+
+    private static class Neg extends Node {
+        final Node operand;
+
+        Neg(Node operand) {
+            this.operand = operand;
+        }
+
+        double eval(Map<String, Double> variables) {
+            return -operand.eval(variables);
+        }
+
+        Node derive(String variable) {
+            return neg(operand.derive(variable));
+        }
+
+        int precedence() {
+            return 3;
+        }
+
+        void collectVariables(Set<String> names) {
+            operand.collectVariables(names);
+        }
+
+        public String toString() {
+            return "-" + (operand.precedence() <= 3 ? "(" + operand + ")" : operand.toString());
+        }
+    }
+
+    private static class Binary extends Node {
+        final char op;
+        final Node left;
+        final Node right;
+
+        Binary(char op, Node left, Node right) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+
+        double eval(Map<String, Double> variables) {
+            double a = left.eval(variables);
+            double b = right.eval(variables);
+            switch (op) {
+                case '+':
+                    return a + b;
+                case '-':
+                    return a - b;
+                case '*':
+                    return a * b;
+                case '/':
+                    return a / b;
+                case '%':
+                    return a % b;
+                default:
+                    return Math.pow(a, b);
+            }
+        }
+
+        Node derive(String variable) {
+            Node da = left.derive(variable);
+            Node db = right.derive(variable);
+            switch (op) {
+                case '+':
+                    return add(da, db);
+                case '-':
+                    return sub(da, db);
+                case '*':
+                    return add(mul(da, right), mul(left, db));
+                case '/':
+                    return div(sub(mul(da, right), mul(left, db)), pow(right, new Num(2)));
+                case '^':
+                    if (!variables(right).contains(variable)) {
+                        // Power rule
+                        return mul(mul(right, pow(left, sub(right, new Num(1)))), da);
+                    }
+                    if (!variables(left).contains(variable)) {
+                        Node lnBase = left instanceof Num && "e".equals(((Num) left).name) ? new Num(1) : new Call("ln", left);
+                        return mul(mul(this, lnBase), db);
+                    }
+                    return mul(this, add(mul(db, new Call("ln", left)), div(mul(right, da), left)));
+                default:
+                    throw new UnsupportedOperationException("No derivative for " + op);
+            }
+        }
+
+        int precedence() {
+            return op == '+' || op == '-' ? 1 : op == '^' ? 4 : 2;
+        }
+
+        void collectVariables(Set<String> names) {
+            left.collectVariables(names);
+            right.collectVariables(names);
+        }
+
+        public String toString() {
+            int p = precedence();
+            // Powers group to the right, everything else to the left
+            boolean leftParens = op == '^' ? left.precedence() <= p : left.precedence() < p;
+            boolean rightParens = op == '^' ? right.precedence() < p
+                    : right.precedence() < p || (right.precedence() == p && (op == '-' || op == '/' || op == '%'));
+            String a = leftParens ? "(" + left + ")" : left.toString();
+            String b = rightParens ? "(" + right + ")" : right.toString();
+            return op == '+' || op == '-' ? a + " " + op + " " + b : a + op + b;
+        }
+    }
+
+    private static class Call extends Node {
+        final String function;
+        final Node argument;
+
+        Call(String function, Node argument) {
+            this.function = function;
+            this.argument = argument;
+        }
+
+        double eval(Map<String, Double> variables) {
+            return FUNCTIONS.get(function).applyAsDouble(argument.eval(variables));
+        }
+
+        // Chain rule: f'(u) * u'
+        Node derive(String variable) {
+            Node u = argument;
+            Node outer;
+            switch (function) {
+                case "sqrt":
+                    outer = div(new Num(1), mul(new Num(2), this));
+                    break;
+                case "cbrt":
+                    outer = div(new Num(1), mul(new Num(3), pow(this, new Num(2))));
+                    break;
+                case "sin":
+                    outer = new Call("cos", u);
+                    break;
+                case "cos":
+                    outer = neg(new Call("sin", u));
+                    break;
+                case "tan":
+                    outer = div(new Num(1), pow(new Call("cos", u), new Num(2)));
+                    break;
+                case "asin":
+                    outer = div(new Num(1), new Call("sqrt", sub(new Num(1), pow(u, new Num(2)))));
+                    break;
+                case "acos":
+                    outer = neg(div(new Num(1), new Call("sqrt", sub(new Num(1), pow(u, new Num(2))))));
+                    break;
+                case "atan":
+                    outer = div(new Num(1), add(new Num(1), pow(u, new Num(2))));
+                    break;
+                case "sinh":
+                    outer = new Call("cosh", u);
+                    break;
+                case "cosh":
+                    outer = new Call("sinh", u);
+                    break;
+                case "tanh":
+                    outer = sub(new Num(1), pow(this, new Num(2)));
+                    break;
+                case "exp":
+                    outer = this;
+                    break;
+                case "ln":
+                    outer = div(new Num(1), u);
+                    break;
+                case "log":
+                    outer = div(new Num(1), mul(u, new Call("ln", new Num(10))));
+                    break;
+                case "log2":
+                    outer = div(new Num(1), mul(u, new Call("ln", new Num(2))));
+                    break;
+                default:
+                    throw new UnsupportedOperationException("No derivative for " + function);
+            }
+            return mul(outer, u.derive(variable));
+        }
+
+        int precedence() {
+            return 5;
+        }
+
+        void collectVariables(Set<String> names) {
+            argument.collectVariables(names);
+        }
+
+        public String toString() {
+            if (function.equals("factorial")) {
+                return (argument.precedence() < 5 ? "(" + argument + ")" : argument.toString()) + "!";
+            }
+            return function + "(" + argument + ")";
+        }
+    }
+
+    private static boolean isConstant(Node node) {
+        return node instanceof Num && ((Num) node).name == null;
+    }
+
+    private static boolean is(Node node, double value) {
+        return isConstant(node) && ((Num) node).value == value;
+    }
+
+    // Structural equality; trees print the same exactly when they are the same
+    private static boolean same(Node a, Node b) {
+        return a.toString().equals(b.toString());
+    }
+
+    private static Node add(Node a, Node b) {
+        if (isConstant(a) && isConstant(b)) return new Num(((Num) a).value + ((Num) b).value);
+        if (is(a, 0)) return b;
+        if (is(b, 0)) return a;
+        if (b instanceof Neg) return sub(a, ((Neg) b).operand);
+        return new Binary('+', a, b);
+    }
+
+    private static Node sub(Node a, Node b) {
+        if (isConstant(a) && isConstant(b)) return new Num(((Num) a).value - ((Num) b).value);
+        if (is(b, 0)) return a;
+        if (is(a, 0)) return neg(b);
+        return new Binary('-', a, b);
+    }
+
+    private static Node mul(Node a, Node b) {
+        if (isConstant(a) && isConstant(b)) return new Num(((Num) a).value * ((Num) b).value);
+        if (is(a, 0) || is(b, 0)) return new Num(0);
+        if (is(a, 1)) return b;
+        if (is(b, 1)) return a;
+        if (is(a, -1)) return neg(b);
+        if (is(b, -1)) return neg(a);
+        if (a instanceof Neg) return neg(mul(((Neg) a).operand, b));
+        if (b instanceof Neg) return neg(mul(a, ((Neg) b).operand));
+        // Constant factors go in front: 2*x, not x*2
+        if (isConstant(b)) return mul(b, a);
+        // (p/q)*q = p
+        if (a instanceof Binary && ((Binary) a).op == '/' && same(((Binary) a).right, b)) return ((Binary) a).left;
+        if (b instanceof Binary && ((Binary) b).op == '/' && same(((Binary) b).right, a)) return ((Binary) b).left;
+        if (b instanceof Binary && ((Binary) b).op == '*' && isConstant(((Binary) b).left)) {
+            Binary product = (Binary) b;
+            return isConstant(a) ? mul(mul(a, product.left), product.right) : mul(product.left, mul(a, product.right));
+        }
+        return new Binary('*', a, b);
+    }
+
+    private static Node div(Node a, Node b) {
+        if (isConstant(a) && isConstant(b) && ((Num) b).value != 0) {
+            double quotient = ((Num) a).value / ((Num) b).value;
+            if (quotient == Math.rint(quotient)) return new Num(quotient); // 1/3 stays a fraction
+        }
+        if (is(a, 0)) return new Num(0);
+        if (is(b, 1)) return a;
+        if (same(a, b)) return new Num(1);
+        return new Binary('/', a, b);
+    }
+
+    private static Node pow(Node a, Node b) {
+        if (isConstant(a) && isConstant(b)) return new Num(Math.pow(((Num) a).value, ((Num) b).value));
+        if (is(b, 0)) return new Num(1);
+        if (is(b, 1)) return a;
+        return new Binary('^', a, b);
+    }
+
+    private static Node neg(Node a) {
+        if (isConstant(a)) return new Num(-((Num) a).value);
+        if (a instanceof Neg) return ((Neg) a).operand;
+        return new Neg(a);
+    }
+}
@@ -2,21 +2,35 @@ package utils;
 
 import java.net.*;
 import java.io.*;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import org.json.*;
 
 public class HttpHelper {
     private static final int TIMEOUT = 10000000;
 
+    // Lookups for the same source arriving within a few milliseconds share one HTTP call
+    private static final long BATCH_WINDOW_MS = 5;
+    private static final long BATCH_LOOKUP_TIMEOUT_MS = 30000;
+    private static final RequestBatcher WIKIPEDIA_BATCHER =
+            new RequestBatcher("wikipedia", BATCH_WINDOW_MS, 20, HttpHelper::searchWikipediaBatch);
+    private static final RequestBatcher WIKIDATA_BATCHER =
+            new RequestBatcher("wikidata", BATCH_WINDOW_MS, 50, HttpHelper::searchWikidataBatch);
+
     public static String searchExternalSource(String source, String query) {
         try {
             switch (source.toLowerCase()) {
                 case "wikipedia":
-                    return "\n" + searchWikipedia(query);
+                    return "\n" + lookupBatched(WIKIPEDIA_BATCHER, query, true);
                 case "openrouter":
                     return "\n" + queryOpenRouter(query);
                 case "duckduckgo":
@@ -24,13 +38,15 @@ public class HttpHelper {
                 case "googlebooks":
                     return "\n" + searchGoogleBooks(query);
                 case "wikidata":
-                    return "\n" + searchWikidata(query);
+                    return "\n" + lookupBatched(WIKIDATA_BATCHER, query, false);
                 case "togetherai":
                     return "\n" + queryTogetherAI(query);
                 case "langsearch":
                     return "\n" + queryLangSearch(query);
                 case "deepinfra":
                     return "\n" + queryDeepInfra(query);
+                case "wolfram":
+                    return "\n" + searchWolframAlpha(query);
                 default:
                     return "Unknown source: " + source;
             }
@@ -39,6 +55,242 @@ public class HttpHelper {
         }
     }
 
+    // Non-blocking variant used by agents that drain several requests at once, so their
+    // lookups land in the same batching window
+    public static CompletableFuture<String> searchExternalSourceAsync(String source, String query) {
+        RequestBatcher batcher;
+        switch (source.toLowerCase()) {
+            case "wikipedia":
+                batcher = WIKIPEDIA_BATCHER;
+                break;
+            case "wikidata":
+                batcher = WIKIDATA_BATCHER;
+                break;
+            default:
+                return CompletableFuture.supplyAsync(() -> searchExternalSource(source, query));
+        }
+
+        String title = query.trim();
+        if (title.isEmpty() || title.contains("|")) {
+            return CompletableFuture.supplyAsync(() -> searchExternalSource(source, query));
+        }
+        return batcher.submit(title)
+                .thenApply(result -> "\n" + result)
+                .exceptionally(e -> {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    return source + " Result:\nError fetching from " + source + ": " + cleanErrorMessage(cause.getMessage());
+                });
+    }
+
+    private static String lookupBatched(RequestBatcher batcher, String query, boolean wikipedia) throws Exception {
+        String title = query.trim();
+        // '|' is the multi-title separator of the MediaWiki APIs, so such titles go alone
+        if (title.isEmpty() || title.contains("|")) {
+            return wikipedia ? searchWikipedia(query) : searchWikidata(query);
+        }
+        return batcher.lookup(title, BATCH_LOOKUP_TIMEOUT_MS);
+    }
+
+    // One wbgetentities call for several titles, restricted to the props and language we render
+    public static Map<String, Object> searchWikidataBatch(List<String> titles) {
+        Map<String, Object> results = new HashMap<>();
+        try {
+            List<String> formatted = new ArrayList<>();
+            for (String title : titles) {
+                formatted.add(title.trim().replace(" ", "_"));
+            }
+            String url = "https://www.wikidata.org/w/api.php?action=wbgetentities&sites=enwiki&titles="
+                    + URLEncoder.encode(String.join("|", formatted), "UTF-8")
+                    + "&props=labels%7Cdescriptions%7Csitelinks&languages=en&sitefilter=enwiki&format=json";
+            JSONObject json = new JSONObject(sendGet(url));
+            JSONObject entities = json.optJSONObject("entities");
+            if (entities == null) {
+                throw new Exception("No entities found in Wikidata response");
+            }
+
+            // Index entities by the enwiki title they were resolved from
+            Map<String, String> byTitle = new HashMap<>();
+            for (String key : entities.keySet()) {
+                JSONObject entity = entities.getJSONObject(key);
+                if (entity.has("missing")) {
+                    continue;
+                }
+                JSONObject sitelinks = entity.optJSONObject("sitelinks");
+                if (sitelinks == null || !sitelinks.has("enwiki")) {
+                    continue;
+                }
+                String siteTitle = sitelinks.getJSONObject("enwiki").getString("title");
+                byTitle.put(normalizeTitle(siteTitle), formatWikidataEntity(entity));
+            }
+
+            for (String title : titles) {
+                String formattedEntity = byTitle.get(normalizeTitle(title));
+                results.put(title, formattedEntity != null
+                        ? formattedEntity
+                        : new Exception("No Wikidata entity found"));
+            }
+        } catch (Exception e) {
+            for (String title : titles) {
+                results.put(title, e);
+            }
+        }
+        return results;
+    }
+
+    // One action=query call returning the intro extract for several titles
+    public static Map<String, Object> searchWikipediaBatch(List<String> titles) {
+        Map<String, Object> results = new HashMap<>();
+        try {
+            String url = "https://en.wikipedia.org/w/api.php?action=query&format=json&formatversion=2"
+                    + "&prop=extracts%7Cinfo&exintro=1&explaintext=1&exlimit=max&inprop=url&redirects=1&titles="
+                    + URLEncoder.encode(String.join("|", titles), "UTF-8");
+            JSONObject json = new JSONObject(sendGet(url));
+            JSONObject queryJson = json.optJSONObject("query");
+            if (queryJson == null) {
+                throw new Exception("Page not found or no summary available");
+            }
+
+            // Follow title normalization and redirects so each requested title finds its page
+            Map<String, String> renamed = new HashMap<>();
+            for (String section : new String[]{"normalized", "redirects"}) {
+                JSONArray mappings = queryJson.optJSONArray(section);
+                if (mappings == null) continue;
+                for (int i = 0; i < mappings.length(); i++) {
+                    JSONObject mapping = mappings.getJSONObject(i);
+                    renamed.put(mapping.getString("from"), mapping.getString("to"));
+                }
+            }
+
+            Map<String, JSONObject> pagesByTitle = new HashMap<>();
+            JSONArray pages = queryJson.optJSONArray("pages");
+            if (pages != null) {
+                for (int i = 0; i < pages.length(); i++) {
+                    JSONObject page = pages.getJSONObject(i);
+                    pagesByTitle.put(page.optString("title"), page);
+                }
+            }
+
+            for (String title : titles) {
+                String resolved = title;
+                for (int hops = 0; hops < 3 && renamed.containsKey(resolved); hops++) {
+                    resolved = renamed.get(resolved);
+                }
+                JSONObject page = pagesByTitle.get(resolved);
+                results.put(title, page != null ? formatWikipediaPage(page) : new Exception("Page not found or no summary available"));
+            }
+        } catch (Exception e) {
+            for (String title : titles) {
+                results.put(title, e);
+            }
+        }
+        return results;
+    }
+
+    private static Object formatWikipediaPage(JSONObject page) {
+        if (page.optBoolean("missing", false) || page.optBoolean("invalid", false)) {
+            return new Exception("Page not found or no summary available");
+        }
+
+        String extract = page.optString("extract", "").trim();
+        if (!extract.isEmpty()) {
+            // Add "..." only if the extract appears truncated
+            if (extract.charAt(extract.length() - 1) != '.') {
+                extract += "...";
+            }
+            return extract;
+        }
+
+        if (page.has("fullurl")) {
+            return "Summary not available. Full article: " + page.getString("fullurl");
+        }
+        return new Exception("Page not found or no summary available");
+    }
+
+    private static String formatWikidataEntity(JSONObject entity) {
+        JSONObject labels = entity.optJSONObject("labels");
+        JSONObject descriptions = entity.optJSONObject("descriptions");
+
+        String label = (labels != null && labels.has("en"))
+                ? labels.getJSONObject("en").getString("value")
+                : "";
+        String description = (descriptions != null && descriptions.has("en"))
+                ? descriptions.getJSONObject("en").getString("value")
+                : "No description available";
+
+        return label + ": " + description;
+    }
+
+    // Whole entities with their claims for several enwiki titles: title -> JSONObject, or the Exception
+    // if the call failed. Titles Wikidata has no entity for are left out.
+    public static Map<String, Object> fetchWikidataEntities(List<String> titles) {
+        Map<String, Object> results = new HashMap<>();
+        try {
+            List<String> formatted = new ArrayList<>();
+            for (String title : titles) {
+                formatted.add(title.trim().replace(" ", "_"));
+            }
+            String url = "https://www.wikidata.org/w/api.php?action=wbgetentities&sites=enwiki&titles="
+                    + URLEncoder.encode(String.join("|", formatted), "UTF-8")
+                    + "&props=labels%7Cdescriptions%7Cclaims%7Csitelinks&languages=en&sitefilter=enwiki"
+                    // The API only fixes up the case of a title when it is asked for one alone
+                    + (titles.size() == 1 ? "&normalize=1" : "") + "&format=json";
+            JSONObject entities = new JSONObject(sendGet(url)).optJSONObject("entities");
+            if (entities == null) {
+                throw new Exception("No entities found in Wikidata response");
+            }
+            Map<String, JSONObject> byTitle = new HashMap<>();
+            for (String key : entities.keySet()) {
+                JSONObject entity = entities.getJSONObject(key);
+                JSONObject sitelinks = entity.optJSONObject("sitelinks");
+                if (entity.has("missing") || sitelinks == null || !sitelinks.has("enwiki")) {
+                    continue;
+                }
+                byTitle.put(normalizeTitle(sitelinks.getJSONObject("enwiki").getString("title")), entity);
+            }
+            for (String title : titles) {
+                JSONObject entity = byTitle.get(normalizeTitle(title));
+                if (entity == null && titles.size() == 1 && byTitle.size() == 1) {
+                    entity = byTitle.values().iterator().next(); // normalised by the API, e.g. lower case
+                }
+                if (entity != null) {
+                    results.put(title, entity);
+                }
+            }
+        } catch (Exception e) {
+            for (String title : titles) {
+                results.put(title, e);
+            }
+        }
+        return results;
+    }
+
+    // English labels of Wikidata items, 50 ids per call; ids without one are left out
+    public static Map<String, String> fetchWikidataLabels(Collection<String> ids) throws Exception {
+        Map<String, String> labels = new HashMap<>();
+        List<String> all = new ArrayList<>(ids);
+        for (int from = 0; from < all.size(); from += 50) {
+            String url = "https://www.wikidata.org/w/api.php?action=wbgetentities&ids="
+                    + URLEncoder.encode(String.join("|", all.subList(from, Math.min(all.size(), from + 50))), "UTF-8")
+                    + "&props=labels&languages=en&format=json";
+            JSONObject entities = new JSONObject(sendGet(url)).optJSONObject("entities");
+            if (entities == null) {
+                continue;
+            }
+            for (String id : entities.keySet()) {
+                JSONObject en = entities.getJSONObject(id).optJSONObject("labels");
+                if (en != null && en.has("en")) {
+                    labels.put(id, en.getJSONObject("en").getString("value"));
+                }
+            }
+        }
+        return labels;
+    }
+
+    private static String normalizeTitle(String title) {
+        String normalized = title.trim().replace('_', ' ').replaceAll("\\s+", " ");
+        return normalized.toLowerCase();
+    }
+
     public static String searchWikidata(String query) throws Exception {
         String formattedQuery = query.trim().replace(" ", "_");
         String url = "https://www.wikidata.org/w/api.php?action=wbgetentities&sites=enwiki&titles="
@@ -50,18 +302,7 @@ public class HttpHelper {
             throw new Exception("No entities found in Wikidata response");
         }
         for (String key : entities.keySet()) {
-            JSONObject entity = entities.getJSONObject(key);
-            JSONObject labels = entity.optJSONObject("labels");
-            JSONObject descriptions = entity.optJSONObject("descriptions");
-
-            String label = (labels != null && labels.has("en"))
-                    ? labels.getJSONObject("en").getString("value")
-                    : "";
-            String description = (descriptions != null && descriptions.has("en"))
-                    ? descriptions.getJSONObject("en").getString("value")
-                    : "No description available";
-
-            return label + ": " + description;
+            return formatWikidataEntity(entities.getJSONObject(key));
         }
         throw new Exception("No Wikidata entity found");
     }
@@ -0,0 +1,138 @@
+package utils;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from long to long with linear probing, kept in two
+ * primitive arrays: no boxing and no per-entry objects for the GC to trace.
+ * Not thread-safe.
+ */
+public class LongLongHashMap {
+    private static final long EMPTY = 0L;
+    private static final double MAX_LOAD = 0.6;
+
+    public interface Visitor {
+        void visit(long key, long value);
+    }
+
+    private long[] keys;
+    private long[] values;
+    private int size;
+    // Key 0 marks empty slots, so its value is kept on the side
+    private boolean hasZeroKey;
+    private long zeroValue;
+
+    public LongLongHashMap() {
+        this(1024);
+    }
+
+    public LongLongHashMap(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (expected / MAX_LOAD)) - 1) << 1;
+        keys = new long[capacity];
+        values = new long[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long get(long key, long missing) {
+        if (key == EMPTY) {
+            return hasZeroKey ? zeroValue : missing;
+        }
+        int mask = keys.length - 1;
+        for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+            if (keys[i] == key) return values[i];
+            if (keys[i] == EMPTY) return missing;
+        }
+    }
+
+    public void put(long key, long value) {
+        if (key == EMPTY) {
+            if (!hasZeroKey) size++;
+            hasZeroKey = true;
+            zeroValue = value;
+            return;
+        }
+        if (size + 1 > keys.length * MAX_LOAD) {
+            resize(keys.length << 1);
+        }
+        int mask = keys.length - 1;
+        for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+            if (keys[i] == EMPTY) {
+                keys[i] = key;
+                values[i] = value;
+                size++;
+                return;
+            }
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+        }
+    }
+
+    // Removes the key, shifting later entries of its probe run back so lookups still find them
+    public boolean remove(long key) {
+        if (key == EMPTY) {
+            if (!hasZeroKey) return false;
+            hasZeroKey = false;
+            size--;
+            return true;
+        }
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        while (keys[i] != key) {
+            if (keys[i] == EMPTY) return false;
+            i = (i + 1) & mask;
+        }
+        int gap = i;
+        for (int j = (gap + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+            int home = slot(keys[j], mask);
+            // Move it into the gap unless its home slot lies cyclically in (gap, j]
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        keys[gap] = EMPTY;
+        size--;
+        return true;
+    }
+
+    public void forEach(Visitor visitor) {
+        if (hasZeroKey) {
+            visitor.visit(EMPTY, zeroValue);
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                visitor.visit(keys[i], values[i]);
+            }
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+        hasZeroKey = false;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new long[capacity];
+        values = new long[capacity];
+        size = hasZeroKey ? 1 : 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    private static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,523 @@
+package utils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+
+/**
+ * Embedded log-structured key-value store in one directory, sorted by key.
+ *
+ * Writes are batches applied atomically: a batch is one CRC-checked record in the
+ * write-ahead log, then goes into the in-memory table. When that table is big
+ * enough it is written out as an immutable sorted table file with a sparse key
+ * index, and the log starts over. Lookups check the memory table and then the
+ * table files from newest to oldest; each costs a binary search in memory and
+ * one block read. Once there are too many table files they are merged into one,
+ * which also drops deleted keys. The MANIFEST file names the live table files.
+ *
+ * Reads never lock. A single writer at a time is enough for the write-behind
+ * callers this is meant for.
+ */
+public class LsmStore implements Closeable {
+    private static final String WAL = "wal.log";
+    private static final String MANIFEST = "MANIFEST";
+    private static final int TABLE_MAGIC = 0x4c534d54; // "LSMT"
+    private static final int BLOCK_RECORDS = 16;
+    private static final long MEMTABLE_BYTES = 4L << 20;
+    private static final int MAX_TABLES = 4;
+
+    // Marks a deleted key in the memory table; compared by identity
+    private static final byte[] TOMBSTONE = new byte[0];
+
+    private final Path dir;
+    private FileChannel wal;
+    private volatile ConcurrentSkipListMap<String, byte[]> memtable = new ConcurrentSkipListMap<>();
+    private long memtableBytes;
+    // Newest first; replaced whole, never changed in place
+    private volatile List<Table> tables = Collections.emptyList();
+    private long nextTable;
+
+    private LsmStore(Path dir) {
+        this.dir = dir;
+    }
+
+    public static LsmStore open(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        LsmStore store = new LsmStore(dir);
+        store.loadTables();
+        store.replayWal();
+        return store;
+    }
+
+    // The value, or null if the key is absent or deleted
+    public byte[] get(String key) throws IOException {
+        byte[] value = memtable.get(key);
+        if (value != null) {
+            return value == TOMBSTONE ? null : value;
+        }
+        while (true) {
+            try {
+                for (Table table : tables) {
+                    value = table.get(key);
+                    if (value != null) {
+                        return value == TOMBSTONE ? null : value;
+                    }
+                }
+                return null;
+            } catch (ClosedChannelException e) {
+                // A merge replaced the table meanwhile; look again in the current ones
+            }
+        }
+    }
+
+    // Applies all puts (non-null values) and deletes (null values) of the batch, or none of them
+    public synchronized void write(Map<String, byte[]> batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeInt(batch.size());
+        for (Map.Entry<String, byte[]> op : batch.entrySet()) {
+            writeBytes(out, op.getKey().getBytes(StandardCharsets.UTF_8));
+            out.writeBoolean(op.getValue() == null);
+            writeBytes(out, op.getValue() == null ? TOMBSTONE : op.getValue());
+        }
+        byte[] bytes = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        ByteBuffer record = ByteBuffer.allocate(8 + bytes.length);
+        record.putInt(bytes.length).putInt((int) crc.getValue()).put(bytes).flip();
+        while (record.hasRemaining()) {
+            wal.write(record);
+        }
+
+        for (Map.Entry<String, byte[]> op : batch.entrySet()) {
+            apply(op.getKey(), op.getValue() == null ? TOMBSTONE : op.getValue());
+        }
+        if (memtableBytes >= MEMTABLE_BYTES) {
+            flushMemtable();
+        }
+    }
+
+    // Makes the writes so far survive a crash of the machine
+    public synchronized void sync() throws IOException {
+        wal.force(false);
+    }
+
+    /**
+     * Live entries with from <= key < to (no upper bound if to is null), in key
+     * order or reversed, at most limit of them. The values are those current when
+     * each table was read.
+     */
+    public List<Map.Entry<String, byte[]>> scan(String from, String to, int limit, boolean descending) throws IOException {
+        while (true) {
+            try {
+                return merge(from, to, limit, descending);
+            } catch (ClosedChannelException e) {
+                // A merge replaced a table meanwhile
+            }
+        }
+    }
+
+    public String stats() {
+        long tableBytes = 0;
+        long tableRecords = 0;
+        for (Table table : tables) {
+            tableBytes += table.size;
+            tableRecords += table.records;
+        }
+        return String.format("%d tables (%d records, %d KB), %d keys in memory",
+                tables.size(), tableRecords, tableBytes / 1024, memtable.size());
+    }
+
+    public synchronized void close() throws IOException {
+        wal.close();
+        for (Table table : tables) {
+            table.channel.close();
+        }
+    }
+
+    private void apply(String key, byte[] value) {
+        byte[] previous = memtable.put(key, value);
+        memtableBytes += key.length() * 2L + value.length + 48;
+        if (previous != null) {
+            memtableBytes -= key.length() * 2L + previous.length + 48;
+        }
+    }
+
+    private List<Map.Entry<String, byte[]>> merge(String from, String to, int limit, boolean descending) throws IOException {
+        // Newest source first, so the first one to have a key decides its value
+        List<Iterator<Map.Entry<String, byte[]>>> sources = new ArrayList<>();
+        ConcurrentNavigableMap<String, byte[]> range = to != null ? memtable.subMap(from, true, to, false) : memtable.tailMap(from, true);
+        sources.add((descending ? range.descendingMap() : range).entrySet().iterator());
+        for (Table table : tables) {
+            sources.add(table.iterator(from, to, descending));
+        }
+        try {
+            return merge(sources, limit, descending);
+        } catch (UncheckedIOException e) {
+            // Table iterators read blocks lazily; ClosedChannelException here means a merge replaced one
+            throw e.getCause();
+        }
+    }
+
+    private static List<Map.Entry<String, byte[]>> merge(List<Iterator<Map.Entry<String, byte[]>>> sources, int limit,
+                                                         boolean descending) {
+
+        Comparator<String> order = descending ? Comparator.reverseOrder() : Comparator.naturalOrder();
+        List<Map.Entry<String, byte[]>> heads = new ArrayList<>();
+        for (Iterator<Map.Entry<String, byte[]>> source : sources) {
+            heads.add(source.hasNext() ? source.next() : null);
+        }
+
+        List<Map.Entry<String, byte[]>> result = new ArrayList<>();
+        while (result.size() < limit) {
+            String next = null;
+            for (Map.Entry<String, byte[]> head : heads) {
+                if (head != null && (next == null || order.compare(head.getKey(), next) < 0)) {
+                    next = head.getKey();
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            byte[] value = null;
+            for (int i = 0; i < heads.size(); i++) {
+                Map.Entry<String, byte[]> head = heads.get(i);
+                if (head != null && head.getKey().equals(next)) {
+                    if (value == null) {
+                        value = head.getValue();
+                    }
+                    heads.set(i, sources.get(i).hasNext() ? sources.get(i).next() : null);
+                }
+            }
+            if (value != TOMBSTONE) {
+                result.add(new AbstractMap.SimpleImmutableEntry<>(next, value));
+            }
+        }
+        return result;
+    }
+
+    private void flushMemtable() throws IOException {
+        ConcurrentSkipListMap<String, byte[]> full = memtable;
+        Table table = Table.write(dir.resolve(tableName(nextTable++)), full.entrySet().iterator(), false);
+        List<Table> updated = new ArrayList<>();
+        updated.add(table);
+        updated.addAll(tables);
+        writeManifest(updated);
+        // Readers look at the memory table first, so the table must be visible before it goes
+        tables = Collections.unmodifiableList(updated);
+        memtable = new ConcurrentSkipListMap<>();
+        memtableBytes = 0;
+
+        wal.close();
+        wal = FileChannel.open(dir.resolve(WAL), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+
+        if (updated.size() > MAX_TABLES) {
+            mergeTables();
+        }
+    }
+
+    // Merges every table into one; deleted keys can go since nothing older is left
+    private void mergeTables() throws IOException {
+        List<Table> old = tables;
+        Iterator<Map.Entry<String, byte[]>> all = merge("", null, Integer.MAX_VALUE, false).iterator();
+        Table merged = Table.write(dir.resolve(tableName(nextTable++)), all, true);
+        List<Table> updated = Collections.singletonList(merged);
+        writeManifest(updated);
+        tables = updated;
+        for (Table table : old) {
+            table.channel.close();
+            Files.deleteIfExists(table.path);
+        }
+        System.out.println("Merged " + old.size() + " tables in " + dir + " into one of " + merged.size / 1024 + " KB");
+    }
+
+    private void writeManifest(List<Table> live) throws IOException {
+        StringBuilder names = new StringBuilder();
+        for (Table table : live) {
+            names.append(table.path.getFileName()).append('\n');
+        }
+        Path temp = dir.resolve(MANIFEST + ".tmp");
+        Files.write(temp, names.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, dir.resolve(MANIFEST), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void loadTables() throws IOException {
+        List<Table> loaded = new ArrayList<>();
+        Set<String> live = new HashSet<>();
+        Path manifest = dir.resolve(MANIFEST);
+        if (Files.exists(manifest)) {
+            for (String name : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+                if (!name.isEmpty()) {
+                    loaded.add(Table.open(dir.resolve(name)));
+                    live.add(name);
+                    nextTable = Math.max(nextTable, Long.parseLong(name.substring(6, name.length() - 4)) + 1);
+                }
+            }
+        }
+        // Tables written by a flush or merge that did not make it into the manifest
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "table-*.sst")) {
+            for (Path file : files) {
+                if (!live.contains(file.getFileName().toString())) {
+                    Files.delete(file);
+                }
+            }
+        }
+        tables = Collections.unmodifiableList(loaded);
+    }
+
+    // Applies complete batches from the log and cuts off a torn one at the end
+    private void replayWal() throws IOException {
+        wal = FileChannel.open(dir.resolve(WAL), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = wal.size();
+        long offset = 0;
+        ByteBuffer header = ByteBuffer.allocate(8);
+        while (offset + 8 <= size) {
+            header.clear();
+            readFully(wal, header, offset);
+            header.flip();
+            int length = header.getInt();
+            int crc = header.getInt();
+            if (length <= 0 || offset + 8 + length > size) {
+                break;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(wal, payload, offset + 8);
+            CRC32 check = new CRC32();
+            check.update(payload.array());
+            if ((int) check.getValue() != crc) {
+                break;
+            }
+            payload.flip();
+            int ops = payload.getInt();
+            for (int i = 0; i < ops; i++) {
+                String key = new String(readBytes(payload), StandardCharsets.UTF_8);
+                boolean deleted = payload.get() != 0;
+                byte[] value = readBytes(payload);
+                apply(key, deleted ? TOMBSTONE : value);
+            }
+            offset += 8 + length;
+        }
+        if (offset < size) {
+            System.out.println("Dropping " + (size - offset) + " bytes of an incomplete batch from " + dir.resolve(WAL));
+            wal.truncate(offset);
+        }
+        wal.position(offset);
+    }
+
+    private static String tableName(long number) {
+        return String.format("table-%08d.sst", number);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return bytes;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    /**
+     * Immutable sorted table: records (key, deleted flag, value), then the first
+     * key and offset of every block of BLOCK_RECORDS records, then a footer with
+     * the index offset, block count, record count and magic.
+     */
+    private static class Table {
+        final Path path;
+        final FileChannel channel;
+        final String[] firstKeys;
+        final long[] offsets;
+        final long dataEnd;
+        final long size;
+        final long records;
+
+        private Table(Path path, FileChannel channel, String[] firstKeys, long[] offsets, long dataEnd, long records) throws IOException {
+            this.path = path;
+            this.channel = channel;
+            this.firstKeys = firstKeys;
+            this.offsets = offsets;
+            this.dataEnd = dataEnd;
+            this.size = channel.size();
+            this.records = records;
+        }
+
+        static Table write(Path path, Iterator<Map.Entry<String, byte[]>> entries, boolean dropDeleted) throws IOException {
+            List<String> firstKeys = new ArrayList<>();
+            List<Long> offsets = new ArrayList<>();
+            long records = 0;
+            long offset = 0;
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16))) {
+                while (entries.hasNext()) {
+                    Map.Entry<String, byte[]> entry = entries.next();
+                    boolean deleted = entry.getValue() == TOMBSTONE;
+                    if (deleted && dropDeleted) {
+                        continue;
+                    }
+                    if (records % BLOCK_RECORDS == 0) {
+                        firstKeys.add(entry.getKey());
+                        offsets.add(offset);
+                    }
+                    byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                    writeBytes(out, key);
+                    out.writeBoolean(deleted);
+                    writeBytes(out, entry.getValue());
+                    offset += 4 + key.length + 1 + 4 + entry.getValue().length;
+                    records++;
+                }
+                long indexOffset = offset;
+                for (int i = 0; i < firstKeys.size(); i++) {
+                    writeBytes(out, firstKeys.get(i).getBytes(StandardCharsets.UTF_8));
+                    out.writeLong(offsets.get(i));
+                }
+                out.writeLong(indexOffset);
+                out.writeInt(firstKeys.size());
+                out.writeLong(records);
+                out.writeInt(TABLE_MAGIC);
+            }
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+            channel.force(true);
+            long[] offsetArray = offsets.stream().mapToLong(Long::longValue).toArray();
+            return new Table(path, channel, firstKeys.toArray(new String[0]), offsetArray, offset, records);
+        }
+
+        static Table open(Path path) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+            long size = channel.size();
+            ByteBuffer footer = ByteBuffer.allocate(24);
+            readFully(channel, footer, size - 24);
+            footer.flip();
+            long indexOffset = footer.getLong();
+            int blocks = footer.getInt();
+            long records = footer.getLong();
+            if (footer.getInt() != TABLE_MAGIC) {
+                channel.close();
+                throw new IOException("Not a table file: " + path);
+            }
+            ByteBuffer index = ByteBuffer.allocate((int) (size - 24 - indexOffset));
+            readFully(channel, index, indexOffset);
+            index.flip();
+            String[] firstKeys = new String[blocks];
+            long[] offsets = new long[blocks];
+            for (int i = 0; i < blocks; i++) {
+                firstKeys[i] = new String(readBytes(index), StandardCharsets.UTF_8);
+                offsets[i] = index.getLong();
+            }
+            return new Table(path, channel, firstKeys, offsets, indexOffset, records);
+        }
+
+        byte[] get(String key) throws IOException {
+            int block = blockFor(key);
+            if (block < 0) {
+                return null;
+            }
+            for (Map.Entry<String, byte[]> entry : readBlock(block)) {
+                int c = entry.getKey().compareTo(key);
+                if (c == 0) return entry.getValue();
+                if (c > 0) return null;
+            }
+            return null;
+        }
+
+        Iterator<Map.Entry<String, byte[]>> iterator(String from, String to, boolean descending) throws IOException {
+            List<Map.Entry<String, byte[]>> out = new ArrayList<>();
+            if (firstKeys.length == 0) {
+                return out.iterator();
+            }
+            // Blocks are read lazily, one at a time
+            int first = Math.max(0, blockFor(from));
+            int last = to != null ? Math.max(0, blockFor(to)) : firstKeys.length - 1;
+            return new Iterator<Map.Entry<String, byte[]>>() {
+                int block = descending ? last : first;
+                Iterator<Map.Entry<String, byte[]>> current = Collections.emptyIterator();
+                Map.Entry<String, byte[]> next = advance();
+
+                private Map.Entry<String, byte[]> advance() {
+                    while (true) {
+                        while (current.hasNext()) {
+                            Map.Entry<String, byte[]> entry = current.next();
+                            boolean inRange = entry.getKey().compareTo(from) >= 0 && (to == null || entry.getKey().compareTo(to) < 0);
+                            if (inRange) return entry;
+                        }
+                        if (block < first || block > last) {
+                            return null;
+                        }
+                        try {
+                            List<Map.Entry<String, byte[]>> entries = readBlock(block);
+                            if (descending) {
+                                Collections.reverse(entries);
+                            }
+                            current = entries.iterator();
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        block += descending ? -1 : 1;
+                    }
+                }
+
+                public boolean hasNext() {
+                    return next != null;
+                }
+
+                public Map.Entry<String, byte[]> next() {
+                    Map.Entry<String, byte[]> result = next;
+                    next = advance();
+                    return result;
+                }
+            };
+        }
+
+        // The last block whose first key is <= key, or -1
+        private int blockFor(String key) {
+            int low = 0;
+            int high = firstKeys.length - 1;
+            int found = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (firstKeys[mid].compareTo(key) <= 0) {
+                    found = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return found;
+        }
+
+        private List<Map.Entry<String, byte[]>> readBlock(int block) throws IOException {
+            long start = offsets[block];
+            long end = block + 1 < offsets.length ? offsets[block + 1] : dataEnd;
+            ByteBuffer data = ByteBuffer.allocate((int) (end - start));
+            readFully(channel, data, start);
+            data.flip();
+            List<Map.Entry<String, byte[]>> entries = new ArrayList<>(BLOCK_RECORDS);
+            while (data.hasRemaining()) {
+                String key = new String(readBytes(data), StandardCharsets.UTF_8);
+                boolean deleted = data.get() != 0;
+                byte[] value = readBytes(data);
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(key, deleted ? TOMBSTONE : value));
+            }
+            return entries;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package utils;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * MinHash over word shingles. Two signatures agree in a fraction of positions
+ * that estimates the Jaccard similarity of the shingle sets, without comparing
+ * the texts themselves.
+ */
+public class MinHash {
+    public static final int SHINGLE_WORDS = 4;
+    public static final int SIGNATURE_SIZE = 128;
+
+    // Hashes of the overlapping n-word runs of the text, ignoring case and punctuation
+    public static Set<Long> shingles(String text, int words) {
+        Set<Long> shingles = new HashSet<>();
+        if (text == null) {
+            return shingles;
+        }
+        String[] tokens = text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+");
+        int start = tokens.length > 0 && tokens[0].isEmpty() ? 1 : 0;
+        int count = tokens.length - start;
+        if (count <= 0) {
+            return shingles;
+        }
+        if (count < words) {
+            shingles.add(hash(tokens, start, count));
+            return shingles;
+        }
+        for (int i = start; i + words <= tokens.length; i++) {
+            shingles.add(hash(tokens, i, words));
+        }
+        return shingles;
+    }
+
+    public static long[] signature(Set<Long> shingles, int size) {
+        long[] signature = new long[size];
+        Arrays.fill(signature, Long.MAX_VALUE);
+        for (long shingle : shingles) {
+            for (int i = 0; i < size; i++) {
+                // One seeded mix per position stands in for independent hash functions
+                long h = mix(shingle + 0x9E3779B97F4A7C15L * (i + 1));
+                if (h < signature[i]) {
+                    signature[i] = h;
+                }
+            }
+        }
+        return signature;
+    }
+
+    // Estimated Jaccard similarity of the sets behind two signatures of the same size
+    public static double similarity(long[] a, long[] b) {
+        int same = 0;
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] == b[i]) {
+                same++;
+            }
+        }
+        return (double) same / a.length;
+    }
+
+    private static long hash(String[] tokens, int from, int count) {
+        // FNV-1a over the words, with a separator so "ab c" and "a bc" differ
+        long h = 0xcbf29ce484222325L;
+        for (int i = from; i < from + count; i++) {
+            String token = tokens[i];
+            for (int j = 0; j < token.length(); j++) {
+                h ^= token.charAt(j);
+                h *= 0x100000001b3L;
+            }
+            h ^= ' ';
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    // SplitMix64 finaliser
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,123 @@
+package utils;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+/**
+ * Collects lookups that arrive within a short window and resolves them with a
+ * single batched call. Each caller gets its own future, completed with the
+ * value for its key or with the failure reported for that key.
+ */
+public class RequestBatcher {
+    private final String name;
+    private final long windowMillis;
+    private final int maxBatchSize;
+    private final Function<List<String>, Map<String, Object>> batchFunction;
+
+    private final ScheduledExecutorService scheduler;
+    private final Map<String, CompletableFuture<String>> pending = new LinkedHashMap<>();
+    private ScheduledFuture<?> scheduledFlush;
+
+    /**
+     * @param batchFunction resolves a list of keys in one call. The returned map holds
+     *                      either a String result or an Exception for every key it knows
+     *                      about; keys missing from the map fail with "No result found".
+     */
+    public RequestBatcher(String name, long windowMillis, int maxBatchSize,
+                          Function<List<String>, Map<String, Object>> batchFunction) {
+        this.name = name;
+        this.windowMillis = windowMillis;
+        this.maxBatchSize = maxBatchSize;
+        this.batchFunction = batchFunction;
+        // Two threads so a slow batch does not hold back the next window's flush
+        this.scheduler = Executors.newScheduledThreadPool(2, r -> {
+            Thread t = new Thread(r, name + "-batcher");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public CompletableFuture<String> submit(String key) {
+        Map<String, CompletableFuture<String>> readyBatch = null;
+        CompletableFuture<String> future;
+
+        synchronized (this) {
+            // Identical lookups in the same window share one future
+            future = pending.get(key);
+            if (future != null) {
+                return future;
+            }
+
+            future = new CompletableFuture<>();
+            pending.put(key, future);
+
+            if (pending.size() >= maxBatchSize) {
+                readyBatch = drainPending();
+            } else if (scheduledFlush == null) {
+                scheduledFlush = scheduler.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        if (readyBatch != null) {
+            Map<String, CompletableFuture<String>> batch = readyBatch;
+            scheduler.execute(() -> execute(batch));
+        }
+        return future;
+    }
+
+    // Convenience for callers that just want the value (or the failure) synchronously
+    public String lookup(String key, long timeoutMillis) throws Exception {
+        try {
+            return submit(key).get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    private void flush() {
+        Map<String, CompletableFuture<String>> batch;
+        synchronized (this) {
+            batch = drainPending();
+        }
+        execute(batch);
+    }
+
+    private Map<String, CompletableFuture<String>> drainPending() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        Map<String, CompletableFuture<String>> batch = new LinkedHashMap<>(pending);
+        pending.clear();
+        return batch;
+    }
+
+    private void execute(Map<String, CompletableFuture<String>> waiting) {
+        if (waiting.isEmpty()) {
+            return;
+        }
+
+        System.out.println("[" + name + "] Sending batched request for " + waiting.size() + " keys");
+        Map<String, Object> results;
+        try {
+            results = batchFunction.apply(new ArrayList<>(waiting.keySet()));
+        } catch (Exception e) {
+            waiting.values().forEach(f -> f.completeExceptionally(e));
+            return;
+        }
+
+        // Demultiplex the batched answer back to each waiting caller
+        for (Map.Entry<String, CompletableFuture<String>> entry : waiting.entrySet()) {
+            Object result = results.get(entry.getKey());
+            if (result instanceof String) {
+                entry.getValue().complete((String) result);
+            } else if (result instanceof Exception) {
+                entry.getValue().completeExceptionally((Exception) result);
+            } else {
+                entry.getValue().completeExceptionally(new Exception("No result found for " + entry.getKey()));
+            }
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package utils;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Read-only title -> summary index built from a Wikipedia abstracts dump
+ * (enwiki-latest-abstract.xml, plain or .gz) and memory-mapped for lookups.
+ *
+ * Index file: magic, slot count, record count, then a table of slots (title
+ * hash, record offset) probed linearly, then the records (title, abstract,
+ * each as int length + UTF-8). Records are padded so none crosses a 1 GiB
+ * mapping boundary. A lookup hashes the normalised title, probes the mapped
+ * slots and compares the stored title, without touching the heap beyond the
+ * returned string.
+ */
+public class WikipediaAbstractIndex {
+    private static final int MAGIC = 0x57414253; // "WABS"
+    private static final int HEADER = 16;
+    private static final int SLOT = 16;
+    private static final long SEGMENT = 1L << 30;
+    private static final double MAX_LOAD = 0.6;
+    // Dump titles read "Wikipedia: Anarchism"
+    private static final String TITLE_PREFIX = "Wikipedia: ";
+
+    private static final Map<Path, WikipediaAbstractIndex> BY_DUMP = new HashMap<>();
+
+    private final MappedByteBuffer slots;
+    private final MappedByteBuffer[] records;
+    private final long slotCount;
+    private final int size;
+
+    private WikipediaAbstractIndex(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER);
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a Wikipedia abstract index: " + file);
+            }
+            slotCount = header.getInt() & 0xffffffffL;
+            size = header.getInt();
+            long recordsStart = HEADER + slotCount * SLOT;
+            slots = channel.map(FileChannel.MapMode.READ_ONLY, HEADER, slotCount * SLOT);
+            long recordBytes = channel.size() - recordsStart;
+            records = new MappedByteBuffer[(int) ((recordBytes + SEGMENT - 1) / SEGMENT)];
+            for (int i = 0; i < records.length; i++) {
+                records[i] = channel.map(FileChannel.MapMode.READ_ONLY, recordsStart + i * SEGMENT,
+                        Math.min(SEGMENT, recordBytes - i * SEGMENT));
+            }
+        }
+    }
+
+    /**
+     * The index for a dump, built next to it (dump + ".idx") when missing or older
+     * than the dump. Null if the dump cannot be read; callers then stay online.
+     */
+    public static synchronized WikipediaAbstractIndex forDump(Path dump) {
+        WikipediaAbstractIndex cached = BY_DUMP.get(dump);
+        if (cached != null) {
+            return cached;
+        }
+        Path indexFile = Paths.get(dump + ".idx");
+        try {
+            if (!Files.exists(indexFile)
+                    || Files.getLastModifiedTime(indexFile).compareTo(Files.getLastModifiedTime(dump)) < 0) {
+                long start = System.currentTimeMillis();
+                int count = build(dump, indexFile);
+                System.out.println("Built Wikipedia abstract index " + indexFile + " with " + count + " titles in "
+                        + (System.currentTimeMillis() - start) + " ms");
+            }
+            WikipediaAbstractIndex index = new WikipediaAbstractIndex(indexFile);
+            BY_DUMP.put(dump, index);
+            System.out.println("Opened Wikipedia abstract index " + indexFile + " with " + index.size() + " titles");
+            return index;
+        } catch (IOException | XMLStreamException e) {
+            System.err.println("Offline Wikipedia unavailable, could not index " + dump + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // The abstract for the title, or null if the dump has none
+    public String lookup(String title) {
+        String key = normalize(title);
+        long hash = hash(key);
+        long mask = slotCount - 1;
+        for (long i = hash & mask; ; i = (i + 1) & mask) {
+            long slotHash = slots.getLong((int) (i * SLOT));
+            if (slotHash == 0) {
+                return null;
+            }
+            if (slotHash == hash) {
+                long offset = slots.getLong((int) (i * SLOT + 8));
+                ByteBuffer record = records[(int) (offset / SEGMENT)].duplicate();
+                record.position((int) (offset % SEGMENT));
+                // Two titles can share a hash; the record says which one it holds
+                if (normalize(readString(record)).equals(key)) {
+                    return readString(record);
+                }
+            }
+        }
+    }
+
+    // Streams the dump into a new index file; returns the number of titles
+    public static int build(Path dump, Path indexFile) throws IOException, XMLStreamException {
+        Path recordsFile = Paths.get(indexFile + ".records");
+        // Title hash -> record offset
+        LongLongHashMap entries = new LongLongHashMap();
+        try (InputStream raw = new BufferedInputStream(Files.newInputStream(dump), 1 << 16);
+             InputStream in = dump.toString().endsWith(".gz") ? new GZIPInputStream(raw, 1 << 16) : raw;
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(recordsFile), 1 << 16))) {
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            XMLStreamReader xml = factory.createXMLStreamReader(in, "UTF-8");
+            long offset = 0;
+            String title = null;
+            String summary = null;
+            while (xml.hasNext()) {
+                int event = xml.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    switch (xml.getLocalName()) {
+                        case "doc":
+                            title = null;
+                            summary = null;
+                            break;
+                        case "title":
+                            title = xml.getElementText().trim();
+                            break;
+                        case "abstract":
+                            summary = xml.getElementText().trim();
+                            break;
+                        default:
+                            break;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT && xml.getLocalName().equals("doc")) {
+                    if (title == null || summary == null || summary.isEmpty()) {
+                        continue;
+                    }
+                    if (title.startsWith(TITLE_PREFIX)) {
+                        title = title.substring(TITLE_PREFIX.length());
+                    }
+                    long hash = hash(normalize(title));
+                    if (entries.get(hash, -1) >= 0) {
+                        continue; // the first article with a title wins
+                    }
+                    byte[] titleBytes = title.getBytes(StandardCharsets.UTF_8);
+                    byte[] summaryBytes = summary.getBytes(StandardCharsets.UTF_8);
+                    long length = 8L + titleBytes.length + summaryBytes.length;
+                    if (offset / SEGMENT != (offset + length - 1) / SEGMENT) {
+                        long padding = SEGMENT - offset % SEGMENT;
+                        out.write(new byte[(int) padding]);
+                        offset += padding;
+                    }
+                    entries.put(hash, offset);
+                    out.writeInt(titleBytes.length);
+                    out.write(titleBytes);
+                    out.writeInt(summaryBytes.length);
+                    out.write(summaryBytes);
+                    offset += length;
+                }
+            }
+            xml.close();
+        }
+
+        long slotCount = Long.highestOneBit(Math.max(16, (long) (entries.size() / MAX_LOAD)) - 1) << 1;
+        ByteBuffer table = ByteBuffer.allocate((int) (slotCount * SLOT));
+        long mask = slotCount - 1;
+        entries.forEach((hash, offset) -> {
+            long i = hash & mask;
+            while (table.getLong((int) (i * SLOT)) != 0) {
+                i = (i + 1) & mask;
+            }
+            table.putLong((int) (i * SLOT), hash);
+            table.putLong((int) (i * SLOT + 8), offset);
+        });
+
+        Path temp = Paths.get(indexFile + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+             FileChannel in = FileChannel.open(recordsFile, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.putInt(MAGIC).putInt((int) slotCount).putInt(entries.size()).putInt(0).flip();
+            while (header.hasRemaining()) {
+                out.write(header);
+            }
+            while (table.hasRemaining()) {
+                out.write(table);
+            }
+            long copied = 0;
+            while (copied < in.size()) {
+                copied += in.transferTo(copied, in.size() - copied, out);
+            }
+            out.force(true);
+        } finally {
+            Files.deleteIfExists(recordsFile);
+        }
+        Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING);
+        return entries.size();
+    }
+
+    // Same normalisation as MediaWiki titles: case, underscores and spacing do not matter
+    private static String normalize(String title) {
+        return title.trim().replace('_', ' ').replaceAll("\\s+", " ").toLowerCase();
+    }
+
+    // FNV-1a with a final mix; 0 marks empty slots, so it is never returned
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h != 0 ? h : 1;
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: WikipediaAbstractIndex <abstract dump .xml or .xml.gz> [index file]");
+            System.exit(1);
+        }
+        Path dump = Paths.get(args[0]);
+        Path indexFile = Paths.get(args.length > 1 ? args[1] : args[0] + ".idx");
+        System.out.println("Indexed " + build(dump, indexFile) + " titles into " + indexFile);
+    }
+}